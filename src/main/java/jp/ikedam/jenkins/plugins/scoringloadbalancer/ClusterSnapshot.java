@@ -0,0 +1,371 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.scoringloadbalancer;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.ExecutorSlot;
+import hudson.model.queue.MappingWorksheet.Mapping;
+import hudson.model.queue.MappingWorksheet.WorkChunk;
+import hudson.model.queue.SubTask;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare.ExecutorUsage;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare.GroupBy;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.NodeRegistry;
+
+/**
+ * States of nodes shared by all mappings in a maintenance of the queue.
+ *
+ * Jenkins maps buildable items one by one in a maintenance of the queue,
+ * and rules would look up states of the same nodes for each item.
+ * The snapshot is built at the first mapping in each maintenance,
+ * and shared by subsequent mappings in the same maintenance.
+ * States of nodes are fixed in the snapshot,
+ * and only assignments decided for earlier items are added,
+ * as executors accept them after the maintenance.
+ *
+ * A maintenance is told by executor slots in worksheets,
+ * as Jenkins offers parked executors with new slots in each maintenance.
+ * Slots are held weakly not to retain offers (and builds assigned to them) after the maintenance.
+ * The snapshot is also discarded when executors start or finish builds, or nodes are changed,
+ * so computers of removed nodes are not retained either.
+ *
+ * Values are indexed with ids in {@link NodeRegistry}.
+ * Executors of nodes not in the snapshot (e.g. just added) are looked up directly.
+ * Used while holding the lock of the queue.
+ */
+public class ClusterSnapshot {
+    private static final long NOT_LOOKED_UP = Long.MIN_VALUE;
+
+    private static ClusterSnapshot current;
+
+    private final Computer[] computers;
+    private final int[] executors;
+    private final int[] busy;
+    // idle start times looked up on demand. NOT_LOOKED_UP for not looked up yet.
+    private final long[] idleStarts;
+    // executors used by running builds of each group looked up on demand. -1 for not looked up yet.
+    private final Map<GroupBy, Map<String, int[]>> usedGroups = new EnumMap<GroupBy, Map<String, int[]>>(GroupBy.class);
+    private final Map<GroupBy, Map<String, int[]>> assignedGroups =
+            new EnumMap<GroupBy, Map<String, int[]>>(GroupBy.class);
+    // slots offered in the maintenance. slots never override equals, so they are compared by identity.
+    private final Set<ExecutorSlot> offers = Collections.newSetFromMap(new WeakHashMap<ExecutorSlot, Boolean>());
+
+    /**
+     * Returns the snapshot for the maintenance the worksheet is created in.
+     *
+     * @param worksheet the worksheet to map.
+     * @return the snapshot shared in the maintenance.
+     */
+    static synchronized ClusterSnapshot get(MappingWorksheet worksheet) {
+        ClusterSnapshot snapshot = current;
+        if (snapshot == null || !snapshot.isSameMaintenance(worksheet)) {
+            snapshot = new ClusterSnapshot(Jenkins.get());
+            current = snapshot;
+        }
+        snapshot.addOffers(worksheet);
+        return snapshot;
+    }
+
+    /**
+     * Discards the current snapshot.
+     */
+    static synchronized void invalidate() {
+        current = null;
+    }
+
+    private ClusterSnapshot(Jenkins jenkins) {
+        NodeRegistry registry = NodeRegistry.get();
+        Computer[] all = jenkins.getComputers();
+        int[] ids = new int[all.length];
+        for (int i = 0; i < all.length; ++i) {
+            Node node = all[i].getNode();
+            ids[i] = (node != null) ? registry.getId(node) : -1;
+        }
+
+        int size = registry.size();
+        computers = new Computer[size];
+        executors = new int[size];
+        busy = new int[size];
+        idleStarts = new long[size];
+        Arrays.fill(idleStarts, NOT_LOOKED_UP);
+        ExecutorUsage usage = ExecutorUsage.get();
+        for (int i = 0; i < all.length; ++i) {
+            int id = ids[i];
+            if (id < 0) {
+                continue;
+            }
+            computers[id] = all[i];
+            executors[id] = all[i].countExecutors();
+            busy[id] = usage.countBusy(all[i]);
+        }
+    }
+
+    private boolean isSameMaintenance(MappingWorksheet worksheet) {
+        boolean empty = true;
+        for (ExecutorChunk ec : worksheet.executors) {
+            for (ExecutorSlot slot : ec) {
+                if (offers.contains(slot)) {
+                    return true;
+                }
+                empty = false;
+            }
+        }
+        // nothing to look up without executors.
+        return empty;
+    }
+
+    private void addOffers(MappingWorksheet worksheet) {
+        for (ExecutorChunk ec : worksheet.executors) {
+            offers.addAll(ec);
+        }
+    }
+
+    private int idOf(ExecutorChunk ec) {
+        return idOf(ec.computer);
+    }
+
+    private int idOf(Computer computer) {
+        // the name of a computer is the name of its node.
+        int id = NodeRegistry.get().lookup(computer.getName());
+        return (id >= 0 && id < computers.length && computers[id] == computer) ? id : -1;
+    }
+
+    /**
+     * Adds assignments decided for an item.
+     *
+     * @param m the decided mapping.
+     */
+    void onMapped(Mapping m) {
+        for (int i = 0; i < m.size(); ++i) {
+            ExecutorChunk ec = m.assigned(i);
+            int id = (ec != null) ? idOf(ec) : -1;
+            if (id < 0) {
+                continue;
+            }
+            WorkChunk wc = m.get(i);
+            busy[id] += wc.size();
+            for (SubTask subtask : wc) {
+                for (GroupBy groupBy : GroupBy.values()) {
+                    String group = groupBy.getGroup(subtask);
+                    if (group == null) {
+                        continue;
+                    }
+                    assignedGroups
+                            .computeIfAbsent(groupBy, k -> new HashMap<String, int[]>())
+                            .computeIfAbsent(group, k -> new int[computers.length])[id]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param ec
+     * @return the number of executors of the node.
+     */
+    public int countExecutors(ExecutorChunk ec) {
+        return countExecutors(ec.computer);
+    }
+
+    /**
+     * @param computer
+     * @return the number of executors of the node.
+     */
+    public int countExecutors(Computer computer) {
+        int id = idOf(computer);
+        return (id >= 0) ? executors[id] : computer.countExecutors();
+    }
+
+    /**
+     * Returns the number of busy executors of the node.
+     *
+     * Includes executors assigned to earlier items in the same maintenance.
+     *
+     * @param ec
+     * @return the number of busy executors of the node.
+     */
+    public int countBusy(ExecutorChunk ec) {
+        return countBusy(ec.computer);
+    }
+
+    /**
+     * Returns the number of busy executors of the node.
+     *
+     * Includes executors assigned to earlier items in the same maintenance.
+     *
+     * @param computer
+     * @return the number of busy executors of the node.
+     */
+    public int countBusy(Computer computer) {
+        int id = idOf(computer);
+        return (id >= 0) ? busy[id] : ExecutorUsage.get().countBusy(computer);
+    }
+
+    /**
+     * Returns the number of executors of the node used by the group.
+     *
+     * Includes executors assigned to earlier items in the same maintenance.
+     * Executors used by running builds are fixed at the first lookup in the maintenance.
+     *
+     * @param ec
+     * @param groupBy how to decide the group.
+     * @param group the group.
+     * @return the number of executors used by the group.
+     */
+    public int count(ExecutorChunk ec, GroupBy groupBy, String group) {
+        return count(ec.computer, groupBy, group);
+    }
+
+    /**
+     * Returns the number of executors of the node used by the group.
+     *
+     * Includes executors assigned to earlier items in the same maintenance.
+     *
+     * @param computer
+     * @param groupBy how to decide the group.
+     * @param group the group.
+     * @return the number of executors used by the group.
+     */
+    public int count(Computer computer, GroupBy groupBy, String group) {
+        int id = idOf(computer);
+        if (id < 0) {
+            return ExecutorUsage.get().count(computer, groupBy, group);
+        }
+        Map<String, int[]> used = usedGroups.get(groupBy);
+        if (used == null) {
+            used = new HashMap<String, int[]>();
+            usedGroups.put(groupBy, used);
+        }
+        int[] counts = used.get(group);
+        if (counts == null) {
+            counts = new int[computers.length];
+            Arrays.fill(counts, -1);
+            used.put(group, counts);
+        }
+        if (counts[id] < 0) {
+            counts[id] = ExecutorUsage.get().count(computers[id], groupBy, group);
+        }
+        Map<String, int[]> groups = assignedGroups.get(groupBy);
+        int[] assigned = (groups != null) ? groups.get(group) : null;
+        return (assigned != null) ? counts[id] + assigned[id] : counts[id];
+    }
+
+    /**
+     * @param computer
+     * @return the time the node got idle.
+     * @see Computer#getIdleStartMilliseconds()
+     */
+    public long getIdleStartMilliseconds(Computer computer) {
+        int id = idOf(computer);
+        if (id < 0) {
+            return computer.getIdleStartMilliseconds();
+        }
+        if (idleStarts[id] == NOT_LOOKED_UP) {
+            // iterates executors. looked up only for rules requiring.
+            idleStarts[id] = computers[id].getIdleStartMilliseconds();
+        }
+        return idleStarts[id];
+    }
+
+    /**
+     * Discards the snapshot when builds start and finish.
+     */
+    @Extension
+    public static class ExecutorListenerImpl implements ExecutorListener {
+        @Override
+        public void taskAccepted(Executor executor, Queue.Task task) {
+            invalidate();
+        }
+
+        @Override
+        public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+            invalidate();
+        }
+
+        @Override
+        public void taskCompletedWithProblems(
+                Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Discards the snapshot when nodes are changed.
+     */
+    @Extension
+    public static class NodeListenerImpl extends NodeListener {
+        @Override
+        protected void onCreated(Node node) {
+            invalidate();
+        }
+
+        @Override
+        protected void onUpdated(Node oldOne, Node newOne) {
+            invalidate();
+        }
+
+        @Override
+        protected void onDeleted(Node node) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Discards the snapshot when states of nodes are changed.
+     */
+    @Extension
+    public static class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onConfigurationChange() {
+            invalidate();
+        }
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            invalidate();
+        }
+
+        @Override
+        public void onOffline(Computer c, OfflineCause cause) {
+            invalidate();
+        }
+    }
+}
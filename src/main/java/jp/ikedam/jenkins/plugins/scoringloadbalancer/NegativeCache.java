@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.WorkChunk;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.OfflineCause;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import jenkins.model.NodeListener;
+
+/**
+ * Remembers worksheets {@link ScoringLoadBalancer} failed to map.
+ *
+ * Jenkins asks to map blocked items again in each maintenance of the queue,
+ * typically with the same worksheet.
+ * Failures are remembered with fingerprints of worksheets
+ * (the shapes of work chunks, and applicable executors and their capacities),
+ * and the same worksheet fails immediately without searching assignments again.
+ *
+ * All failures are forgotten when executors start or finish builds, nodes are changed,
+ * a task is mapped, or the configuration is changed.
+ * Failures also expire after the configured time,
+ * as rules can depend on time (e.g. preferences active only in some hours).
+ */
+public class NegativeCache {
+    private static final NegativeCache INSTANCE = new NegativeCache();
+
+    // bounds the memory even with a huge number of blocked items.
+    private static final int MAX_ENTRIES = 10000;
+
+    /**
+     * @return the cache.
+     */
+    public static NegativeCache get() {
+        return INSTANCE;
+    }
+
+    private long generation = 0;
+
+    @SuppressWarnings("serial")
+    private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Returns whether the worksheet is known to fail.
+     *
+     * @param worksheet
+     * @return whether mapping the worksheet failed and nothing relevant has changed since then.
+     */
+    public synchronized boolean isKnownFailure(MappingWorksheet worksheet) {
+        if (worksheet.item == null) {
+            return false;
+        }
+        Entry entry = entries.get(worksheet.item.getId());
+        if (entry == null) {
+            return false;
+        }
+        if (entry.generation != generation || entry.expiresAt - System.currentTimeMillis() <= 0) {
+            entries.remove(worksheet.item.getId());
+            return false;
+        }
+        return entry.fingerprint.equals(getFingerprint(worksheet));
+    }
+
+    /**
+     * Remember the failure to map the worksheet.
+     *
+     * @param worksheet
+     * @param time milliseconds to remember the failure.
+     */
+    public synchronized void putFailure(MappingWorksheet worksheet, long time) {
+        if (worksheet.item == null) {
+            return;
+        }
+        entries.put(
+                worksheet.item.getId(),
+                new Entry(getFingerprint(worksheet), generation, System.currentTimeMillis() + time));
+    }
+
+    /**
+     * Forget all failures.
+     */
+    public synchronized void invalidate() {
+        ++generation;
+        entries.clear();
+    }
+
+    private static List<Object> getFingerprint(MappingWorksheet worksheet) {
+        List<Object> fingerprint = new ArrayList<Object>();
+        fingerprint.add(worksheet.item.task);
+        for (WorkChunk wc : worksheet.works) {
+            fingerprint.add(wc.size());
+            List<ExecutorChunk> applicable = wc.applicableExecutorChunks();
+            fingerprint.add(applicable.size());
+            for (ExecutorChunk ec : applicable) {
+                fingerprint.add(ec.node.getNodeName());
+                fingerprint.add(ec.capacity());
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * A remembered failure.
+     */
+    private static class Entry {
+        private final List<Object> fingerprint;
+        private final long generation;
+        private final long expiresAt;
+
+        private Entry(List<Object> fingerprint, long generation, long expiresAt) {
+            this.fingerprint = fingerprint;
+            this.generation = generation;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Forgets failures when builds start and finish.
+     */
+    @Extension
+    public static class ExecutorListenerImpl implements ExecutorListener {
+        @Override
+        public void taskAccepted(Executor executor, Queue.Task task) {
+            get().invalidate();
+        }
+
+        @Override
+        public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+            get().invalidate();
+        }
+
+        @Override
+        public void taskCompletedWithProblems(
+                Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+            get().invalidate();
+        }
+    }
+
+    /**
+     * Forgets failures when nodes are changed.
+     */
+    @Extension
+    public static class NodeListenerImpl extends NodeListener {
+        @Override
+        protected void onCreated(Node node) {
+            get().invalidate();
+        }
+
+        @Override
+        protected void onUpdated(Node oldOne, Node newOne) {
+            get().invalidate();
+        }
+
+        @Override
+        protected void onDeleted(Node node) {
+            get().invalidate();
+        }
+    }
+
+    /**
+     * Forgets failures when states of nodes are changed.
+     */
+    @Extension
+    public static class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onConfigurationChange() {
+            get().invalidate();
+        }
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            get().invalidate();
+        }
+
+        @Override
+        public void onOffline(Computer c, OfflineCause cause) {
+            get().invalidate();
+        }
+
+        @Override
+        public void onTemporarilyOnline(Computer c) {
+            get().invalidate();
+        }
+
+        @Override
+        public void onTemporarilyOffline(Computer c, OfflineCause cause) {
+            get().invalidate();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.scoringloadbalancer;
+
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.Mapping;
+import hudson.model.queue.MappingWorksheet.WorkChunk;
+import hudson.model.queue.SubTask;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.resources.ResourceRequirementJobProperty;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.resources.Resources;
+
+/**
+ * Holds the number of executors and resources about to be assigned to each {@link ExecutorChunk} in a {@link Mapping}.
+ *
+ * {@link ScoringLoadBalancer} assigns work chunks through this object,
+ * so the counts are updated incrementally (including resets while backtracking)
+ * and {@link ScoringRule}s can look them up without scanning the whole mapping.
+ */
+public class PendingAssignments {
+    private final ExecutorChunk[] assigned;
+    private final int[] pendingExecutors;
+    // resources required by each work chunk. looked up on the first assignment.
+    private final Resources[] requirements;
+    // resources about to be used, accumulated in place not to allocate while backtracking.
+    private final int[] pendingCpu;
+    private final int[] pendingMemory;
+    private final int[] pendingDisk;
+
+    /**
+     * Constructor.
+     *
+     * @param worksheet the worksheet the mapping is created from.
+     */
+    public PendingAssignments(MappingWorksheet worksheet) {
+        assigned = new ExecutorChunk[worksheet.works.size()];
+        pendingExecutors = new int[worksheet.executors.size()];
+        requirements = new Resources[worksheet.works.size()];
+        pendingCpu = new int[worksheet.executors.size()];
+        pendingMemory = new int[worksheet.executors.size()];
+        pendingDisk = new int[worksheet.executors.size()];
+    }
+
+    /**
+     * Assign a work chunk to an executor chunk and update counts.
+     *
+     * Use this instead of {@link Mapping#assign(int, ExecutorChunk)}.
+     *
+     * @param m the mapping to update.
+     * @param index index of the work chunk.
+     * @param ec executor chunk to assign. null to reset the assignment.
+     */
+    public void assign(Mapping m, int index, ExecutorChunk ec) {
+        int size = m.get(index).size();
+        Resources required = getRequirement(m, index);
+        ExecutorChunk old = assigned[index];
+        if (old != null) {
+            pendingExecutors[old.index] -= size;
+            addResources(old.index, required, -1);
+        }
+        m.assign(index, ec);
+        assigned[index] = ec;
+        if (ec != null) {
+            pendingExecutors[ec.index] += size;
+            addResources(ec.index, required, 1);
+        }
+    }
+
+    private void addResources(int ecIndex, Resources required, int sign) {
+        if (required.isZero()) {
+            return;
+        }
+        pendingCpu[ecIndex] += sign * required.getCpu();
+        pendingMemory[ecIndex] += sign * required.getMemory();
+        pendingDisk[ecIndex] += sign * required.getDisk();
+    }
+
+    private Resources getRequirement(Mapping m, int index) {
+        Resources r = requirements[index];
+        if (r == null) {
+            r = countRequirement(m.get(index));
+            requirements[index] = r;
+        }
+        return r;
+    }
+
+    /**
+     * Returns the number of executors of the executor chunk about to be assigned.
+     *
+     * @param ec the executor chunk.
+     * @return the number of executors about to be assigned.
+     */
+    public int getPendingExecutors(ExecutorChunk ec) {
+        if (ec.index < 0 || ec.index >= pendingExecutors.length) {
+            return 0;
+        }
+        return pendingExecutors[ec.index];
+    }
+
+    /**
+     * Returns resources of the executor chunk about to be used.
+     *
+     * @param ec the executor chunk.
+     * @return resources required by work chunks about to be assigned.
+     */
+    public Resources getPendingResources(ExecutorChunk ec) {
+        if (ec.index < 0 || ec.index >= pendingCpu.length) {
+            return Resources.ZERO;
+        }
+        int cpu = pendingCpu[ec.index];
+        int memory = pendingMemory[ec.index];
+        int disk = pendingDisk[ec.index];
+        if (cpu == 0 && memory == 0 && disk == 0) {
+            return Resources.ZERO;
+        }
+        return new Resources(cpu, memory, disk);
+    }
+
+    /**
+     * Counts executors of the executor chunk about to be assigned by scanning the mapping.
+     *
+     * Used when no {@link PendingAssignments} is available
+     * (e.g. {@link ScoringLoadBalancer.NodesScore} is created outside of {@link ScoringLoadBalancer}).
+     *
+     * @param m the mapping.
+     * @param ec the executor chunk.
+     * @return the number of executors about to be assigned.
+     */
+    public static int countPendingExecutors(Mapping m, ExecutorChunk ec) {
+        int pending = 0;
+        for (int i = 0; i < m.size(); ++i) {
+            if (ec.equals(m.assigned(i))) {
+                pending += m.get(i).size();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Counts resources of the executor chunk about to be used by scanning the mapping.
+     *
+     * Used when no {@link PendingAssignments} is available.
+     *
+     * @param m the mapping.
+     * @param ec the executor chunk.
+     * @return resources required by work chunks about to be assigned.
+     */
+    public static Resources countPendingResources(Mapping m, ExecutorChunk ec) {
+        Resources r = Resources.ZERO;
+        for (int i = 0; i < m.size(); ++i) {
+            if (ec.equals(m.assigned(i))) {
+                r = r.add(countRequirement(m.get(i)));
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Resources required by all subtasks of the work chunk.
+     *
+     * @param wc the work chunk.
+     * @return resources required by the work chunk.
+     */
+    public static Resources countRequirement(WorkChunk wc) {
+        Resources r = Resources.ZERO;
+        for (SubTask subtask : wc) {
+            r = r.add(ResourceRequirementJobProperty.getRequirement(subtask));
+        }
+        return r;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer;
+
+import hudson.model.queue.MappingWorksheet.Mapping;
+import hudson.model.queue.MappingWorksheet.WorkChunk;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
+
+/**
+ * Reorders {@link ScoringRule}s by their measured cost and selectivity.
+ *
+ * Only rules declaring {@link ScoringRule#isOrderIndependent()} are moved.
+ * Other rules are pinned at their configured positions,
+ * and order-independent rules are sorted only among rules between the same pinned rules
+ * in the ascending order of the cost per excluded candidate.
+ * That is, no rule moves across a pinned rule.
+ * That is, cheap rules excluding many candidates run first,
+ * and subsequent rules have less candidates to check.
+ *
+ * Measurements are averaged with exponential decay,
+ * and the order is recomputed every {@value #REORDER_INTERVAL} measurements.
+ * Rules not measured yet run first to have them measured.
+ */
+public class RuleOrderOptimizer {
+    /**
+     * Phases of evaluation ordered separately.
+     */
+    public enum Phase {
+        /**
+         * {@link ScoringRule#filterCandidates(hudson.model.Queue.Task, WorkChunk, Mapping, NodesScore)}
+         */
+        FILTER,
+        /**
+         * {@link ScoringRule#updateScores(hudson.model.Queue.Task, WorkChunk, Mapping, NodesScore)}
+         */
+        SCORE,
+    }
+
+    static final int REORDER_INTERVAL = 100;
+
+    // weight of a new measurement.
+    private static final double DECAY = 0.1;
+
+    // rules excluding nothing are ordered only by their costs.
+    private static final double MIN_SELECTIVITY = 0.01;
+
+    // rules are dropped when the configuration is updated.
+    private final Map<ScoringRule, Stats> statsMap = new WeakHashMap<ScoringRule, Stats>();
+    private final Map<Phase, Order> orderMap = new EnumMap<Phase, Order>(Phase.class);
+
+    /**
+     * Returns the order to evaluate rules in.
+     *
+     * @param scoringRuleList configured rules.
+     * @param phase the phase to evaluate rules.
+     * @return rules in the order to evaluate.
+     */
+    public synchronized List<ScoringRule> order(List<ScoringRule> scoringRuleList, Phase phase) {
+        Order order = orderMap.get(phase);
+        if (order == null || order.configured != scoringRuleList || order.measurements >= REORDER_INTERVAL) {
+            order = new Order(scoringRuleList, reorder(scoringRuleList, phase));
+            orderMap.put(phase, order);
+        }
+        return order.ordered;
+    }
+
+    /**
+     * Record an evaluation of a rule.
+     *
+     * @param scoringRule the evaluated rule.
+     * @param phase the phase the rule is evaluated in.
+     * @param nanos the time the evaluation took.
+     * @param candidates the number of valid candidates before the evaluation.
+     * @param excluded the number of candidates the rule excluded.
+     * @param shortCircuited whether the rule stopped subsequent rules.
+     */
+    public synchronized void record(
+            ScoringRule scoringRule, Phase phase, long nanos, int candidates, int excluded, boolean shortCircuited) {
+        int n = Math.max(candidates, 1);
+        double cost = (double) Math.max(nanos, 0) / n;
+        double selectivity = shortCircuited ? 1.0 : (double) excluded / n;
+        statsMap.computeIfAbsent(scoringRule, k -> new Stats()).get(phase).update(cost, selectivity);
+        Order order = orderMap.get(phase);
+        if (order != null) {
+            ++order.measurements;
+        }
+    }
+
+    private List<ScoringRule> reorder(List<ScoringRule> scoringRuleList, Phase phase) {
+        List<ScoringRule> ordered = new ArrayList<ScoringRule>(scoringRuleList);
+        Comparator<ScoringRule> byRank = Comparator.comparingDouble(scoringRule -> getRank(scoringRule, phase));
+        boolean moved = false;
+        int start = 0;
+        while (start < ordered.size()) {
+            if (!ordered.get(start).isOrderIndependent()) {
+                ++start;
+                continue;
+            }
+            // rules never cross pinned rules, as pinned rules may depend on rules evaluated before them.
+            int end = start;
+            while (end < ordered.size() && ordered.get(end).isOrderIndependent()) {
+                ++end;
+            }
+            if (end - start >= 2) {
+                // stable: rules with the same rank keep the configured order.
+                ordered.subList(start, end).sort(byRank);
+                moved = true;
+            }
+            start = end;
+        }
+        return moved ? Collections.unmodifiableList(ordered) : scoringRuleList;
+    }
+
+    private double getRank(ScoringRule scoringRule, Phase phase) {
+        Stats stats = statsMap.get(scoringRule);
+        if (stats == null || !stats.get(phase).measured) {
+            return 0.0;
+        }
+        Estimate estimate = stats.get(phase);
+        return estimate.cost / Math.max(estimate.selectivity, MIN_SELECTIVITY);
+    }
+
+    /**
+     * The order for a configuration.
+     */
+    private static class Order {
+        private final List<ScoringRule> configured;
+        private final List<ScoringRule> ordered;
+        private int measurements = 0;
+
+        private Order(List<ScoringRule> configured, List<ScoringRule> ordered) {
+            this.configured = configured;
+            this.ordered = ordered;
+        }
+    }
+
+    /**
+     * Measurements of a rule.
+     */
+    private static class Stats {
+        private final Estimate[] estimates = new Estimate[Phase.values().length];
+
+        private Estimate get(Phase phase) {
+            if (estimates[phase.ordinal()] == null) {
+                estimates[phase.ordinal()] = new Estimate();
+            }
+            return estimates[phase.ordinal()];
+        }
+    }
+
+    /**
+     * Averaged measurements of a rule in a phase.
+     */
+    private static class Estimate {
+        private boolean measured = false;
+        private double cost;
+        private double selectivity;
+
+        private void update(double cost, double selectivity) {
+            if (!measured) {
+                this.cost = cost;
+                this.selectivity = selectivity;
+                measured = true;
+                return;
+            }
+            this.cost += DECAY * (cost - this.cost);
+            this.selectivity += DECAY * (selectivity - this.selectivity);
+        }
+    }
+}
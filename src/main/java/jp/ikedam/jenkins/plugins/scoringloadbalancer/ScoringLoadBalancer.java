@@ -23,6 +23,7 @@
  */
 package jp.ikedam.jenkins.plugins.scoringloadbalancer;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.DescriptorExtensionList;
 import hudson.Extension;
 import hudson.init.InitMilestone;
@@ -38,24 +39,34 @@ import hudson.model.queue.MappingWorksheet.ExecutorChunk;
 import hudson.model.queue.MappingWorksheet.Mapping;
 import hudson.model.queue.MappingWorksheet.WorkChunk;
 import hudson.model.queue.SubTask;
+import hudson.util.FormValidation;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.RuleOrderOptimizer.Phase;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.NodeRegistry;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ScoreMath;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
 import net.sf.json.JSONObject;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.verb.POST;
 
 /**
  * LoadBalancer using scores of nodes.
@@ -135,6 +146,51 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
         return getDescriptor().getSimultaneousBuildsWorkaroundThrottleTime();
     }
 
+    /**
+     * Returns whether to reorder order-independent {@link ScoringRule}s by their measured cost and selectivity.
+     *
+     * @return whether to reorder scoring rules.
+     */
+    public boolean isRuleOrderOptimizationEnabled() {
+        return getDescriptor().isRuleOrderOptimizationEnabled();
+    }
+
+    /**
+     * Returns the number of nodes to sample for each subtask.
+     *
+     * @return the number of nodes to sample. 0 to evaluate all nodes.
+     */
+    public int getSampleSize() {
+        return getDescriptor().getSampleSize();
+    }
+
+    /**
+     * Returns the time to remember failures to map tasks.
+     *
+     * @return the time in milliseconds to remember failures. 0 not to remember.
+     */
+    public int getNegativeCacheTime() {
+        return getDescriptor().getNegativeCacheTime();
+    }
+
+    /**
+     * Returns whether to share states of nodes among items mapped in a maintenance of the queue.
+     *
+     * @return whether to use {@link ClusterSnapshot}.
+     */
+    public boolean isClusterSnapshotEnabled() {
+        return getDescriptor().isClusterSnapshotEnabled();
+    }
+
+    private final RuleOrderOptimizer ruleOrderOptimizer = new RuleOrderOptimizer();
+
+    /**
+     * @return the optimizer holding measurements of {@link ScoringRule}s.
+     */
+    public RuleOrderOptimizer getRuleOrderOptimizer() {
+        return ruleOrderOptimizer;
+    }
+
     /**
      * Constructor.
      *
@@ -173,10 +229,25 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
         List<ScoringRule> scoringRuleList = getScoringRuleList();
 
         if (isEnabled()) {
+            int negativeCacheTime = getNegativeCacheTime();
+            if (negativeCacheTime > 0 && NegativeCache.get().isKnownFailure(worksheet)) {
+                return null;
+            }
             try {
-                if (assignGreedily(m, task, worksheet, scoringRuleList)) {
+                ClusterSnapshot snapshot = isClusterSnapshotEnabled() ? ClusterSnapshot.get(worksheet) : null;
+                if (assignGreedily(m, task, worksheet, scoringRuleList, snapshot)) {
+                    if (snapshot != null) {
+                        // subsequent items in this maintenance see executors assigned to this item.
+                        snapshot.onMapped(m);
+                    }
+                    // other items can be mapped with assignments of this item.
+                    NegativeCache.get().invalidate();
+                    notifyMapped(task, worksheet, m, scoringRuleList);
                     return m;
                 } else {
+                    if (negativeCacheTime > 0) {
+                        NegativeCache.get().putFailure(worksheet, negativeCacheTime);
+                    }
                     return null;
                 }
             } catch (Exception e) {
@@ -193,9 +264,30 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
         return null;
     }
 
-    private boolean assignGreedily(Mapping m, Task task, MappingWorksheet worksheet, List<ScoringRule> scoringRuleList)
+    private void notifyMapped(Task task, MappingWorksheet worksheet, Mapping m, List<ScoringRule> scoringRuleList) {
+        for (ScoringRule scoringRule : scoringRuleList) {
+            try {
+                scoringRule.onMapped(task, worksheet, m);
+            } catch (RuntimeException e) {
+                // the mapping is already decided.
+                LOGGER.log(Level.WARNING, String.format("Failed to notify the mapping to %s", scoringRule), e);
+            }
+        }
+    }
+
+    private boolean assignGreedily(
+            Mapping m,
+            Task task,
+            MappingWorksheet worksheet,
+            List<ScoringRule> scoringRuleList,
+            ClusterSnapshot snapshot)
             throws Exception {
-        return assignGreedily(m, task, worksheet, scoringRuleList, 0);
+        ScoringWorkspace workspace = ScoringWorkspace.acquire(snapshot);
+        try {
+            return assignGreedily(m, task, worksheet, scoringRuleList, workspace, new PendingAssignments(worksheet), 0);
+        } finally {
+            workspace.release();
+        }
     }
 
     /**
@@ -203,12 +295,18 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
      *
      * Decides in a　greedy and recursive way as following steps:
      * <ol>
-     *   <li>Pick the first subtask</li>
-     *   <li>Score all nodes by calling all enabled {@link ScoringRule}</li>
+     *   <li>Pick the first subtask.
+     *     If sampling is enabled and there are more nodes than the sample size,
+     *     pick nodes at random and ones preferred by {@link ScoringRule}s.</li>
+     *   <li>Exclude nodes by calling {@link ScoringRule#filterCandidates(Task, WorkChunk, Mapping, NodesScore)}
+     *     of all enabled {@link ScoringRule}</li>
+     *   <li>Score remaining nodes by calling all enabled {@link ScoringRule}.
+     *     Order-independent rules may be reordered with {@link RuleOrderOptimizer}.</li>
      *   <li>Pick the node with the highest score. Assign that node to the current subtask.</li>
      *   <li>Pick the next subtask, and back to 2. Scoring is performed for each subtasks,
      *     for the case scores differ for each subtask.</li>
-     *   <li>If assignment is failed (e.g. some constrains is broken), pick the next node, and back to 3.</li>
+     *   <li>If assignment is failed (e.g. some constrains is broken), pick the next node, and back to 4.</li>
+     *   <li>If all nodes are failed with sampling, sample twice as many nodes from the rest, and back to 2.</li>
      *   <li>If assignment is succeeded, return that assignment.</li>
      * </ol>
      *
@@ -216,13 +314,21 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
      * @param task
      * @param worksheet
      * @param scoringRuleList
+     * @param workspace buffers reused for each work chunk.
+     * @param pending executors about to be assigned. updated with each assignment.
      * @param targetWorkChunk
      * @return　whether an proper assignment is found.
      *
      * @throws Exception
      */
     private boolean assignGreedily(
-            Mapping m, Task task, MappingWorksheet worksheet, List<ScoringRule> scoringRuleList, int targetWorkChunk)
+            Mapping m,
+            Task task,
+            MappingWorksheet worksheet,
+            List<ScoringRule> scoringRuleList,
+            ScoringWorkspace workspace,
+            PendingAssignments pending,
+            int targetWorkChunk)
             throws Exception {
         if (targetWorkChunk >= worksheet.works.size()) {
             return m.isCompletelyValid();
@@ -230,39 +336,220 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
 
         // Current target work chunk (subtask).
         WorkChunk wc = worksheet.works(targetWorkChunk);
+        ScoringWorkspace.Level level = workspace.getLevel(targetWorkChunk);
+        List<ExecutorChunk> applicable = level.candidates;
+        applicable.clear();
+        for (ExecutorChunk ec : wc.applicableExecutorChunks()) {
+            applicable.add(ec);
+        }
 
-        // Initialize nodes-to-scores map.
-        List<ExecutorChunk> executors = new ArrayList<ExecutorChunk>(wc.applicableExecutorChunks());
-        NodesScore nodesScore = new NodesScore(executors);
+        int sampleSize = getSampleSize();
+        if (sampleSize <= 0 || applicable.size() <= sampleSize) {
+            if (assignAny(m, task, worksheet, scoringRuleList, workspace, pending, targetWorkChunk, applicable)) {
+                return true;
+            }
+        } else {
+            Set<Node> preferred = level.preferred;
+            preferred.clear();
+            NodesScore candidates = level.nodesScore;
+            candidates.reset(applicable, pending, worksheet.item, workspace.getClusterSnapshot());
+            for (ScoringRule scoringRule : scoringRuleList) {
+                scoringRule.addPreferredNodes(task, wc, m, candidates, preferred);
+            }
 
-        // Score nodes by calling enabled ScoringRules.
-        for (ScoringRule scoringRule : getScoringRuleList()) {
-            if (!scoringRule.updateScores(task, wc, m, nodesScore)) {
-                break;
+            // Sample nodes in random order. Each time no node is assignable,
+            // sample twice as many nodes from ones not sampled yet, as sampled ones are already tried.
+            Random random = ThreadLocalRandom.current();
+            List<ExecutorChunk> sample = level.sample;
+            sample.clear();
+            for (ExecutorChunk ec : applicable) {
+                if (preferred.contains(ec.node)) {
+                    sample.add(ec);
+                }
+            }
+            int sampled = 0;
+            while (true) {
+                int end = Math.min(sampled + sampleSize, applicable.size());
+                for (; sampled < end; ++sampled) {
+                    Collections.swap(applicable, sampled, sampled + random.nextInt(applicable.size() - sampled));
+                    ExecutorChunk ec = applicable.get(sampled);
+                    if (!preferred.contains(ec.node)) {
+                        sample.add(ec);
+                    }
+                }
+                if (assignAny(m, task, worksheet, scoringRuleList, workspace, pending, targetWorkChunk, sample)) {
+                    return true;
+                }
+                if (sampled >= applicable.size()) {
+                    break;
+                }
+                // not to count the last tried executor in the next round.
+                pending.assign(m, targetWorkChunk, null);
+                sample.clear();
+                sampleSize = (int) Math.min(sampleSize * 2L, Integer.MAX_VALUE);
             }
         }
 
+        pending.assign(m, targetWorkChunk, null); // Reset assignment
+
+        return false;
+    }
+
+    /**
+     * Score executors and assign the work chunk to one of them.
+     *
+     * Tries executors in the descending order of their scores,
+     * and proceeds to the next work chunk.
+     *
+     * @param m
+     * @param task
+     * @param worksheet
+     * @param scoringRuleList
+     * @param workspace
+     * @param pending
+     * @param targetWorkChunk
+     * @param applicable executors to try. updated to remove excluded nodes.
+     * @return whether an proper assignment is found.
+     * @throws Exception
+     */
+    private boolean assignAny(
+            Mapping m,
+            Task task,
+            MappingWorksheet worksheet,
+            List<ScoringRule> scoringRuleList,
+            ScoringWorkspace workspace,
+            PendingAssignments pending,
+            int targetWorkChunk,
+            List<ExecutorChunk> applicable)
+            throws Exception {
+        WorkChunk wc = worksheet.works(targetWorkChunk);
+        // Reused both for filtering and scoring.
+        NodesScore nodesScore = workspace.getLevel(targetWorkChunk).nodesScore;
+
+        ClusterSnapshot snapshot = workspace.getClusterSnapshot();
+
+        // Exclude nodes with cheap checks before scoring.
+        nodesScore.reset(applicable, pending, worksheet.item, snapshot);
+        List<ExecutorChunk> executors = filterCandidates(m, task, wc, scoringRuleList, applicable, nodesScore);
+
+        // Initialize nodes-to-scores map.
+        nodesScore.reset(executors, pending, worksheet.item, snapshot);
+
+        // Score nodes by calling enabled ScoringRules.
+        scoreNodes(m, task, wc, scoringRuleList, nodesScore);
+
         sortExecutors(executors, nodesScore);
 
         if (isReportScoresEnabled()) {
             reportScores(wc, executors, nodesScore);
         }
 
-        for (ExecutorChunk ec : executors) {
+        for (int i = 0; i < executors.size(); ++i) {
+            ExecutorChunk ec = executors.get(i);
             if (nodesScore.isInvalid(ec)) {
                 continue;
             }
-            m.assign(targetWorkChunk, ec);
-            if (m.isPartiallyValid() && assignGreedily(m, task, worksheet, scoringRuleList, targetWorkChunk + 1)) {
+            pending.assign(m, targetWorkChunk, ec);
+            if (m.isPartiallyValid()
+                    && assignGreedily(m, task, worksheet, scoringRuleList, workspace, pending, targetWorkChunk + 1)) {
                 return true;
             }
         }
 
-        m.assign(targetWorkChunk, null); // Reset assignment
-
         return false;
     }
 
+    /**
+     * Remove nodes excluded by {@link ScoringRule#filterCandidates(Task, WorkChunk, Mapping, NodesScore)}.
+     *
+     * @param m
+     * @param task
+     * @param wc
+     * @param scoringRuleList
+     * @param executors candidates. updated to remove excluded nodes.
+     * @param candidates holding executors.
+     * @return remaining candidates.
+     * @throws Exception
+     */
+    private List<ExecutorChunk> filterCandidates(
+            Mapping m,
+            Task task,
+            WorkChunk wc,
+            List<ScoringRule> scoringRuleList,
+            List<ExecutorChunk> executors,
+            NodesScore candidates)
+            throws Exception {
+        if (executors.isEmpty()) {
+            return executors;
+        }
+        if (!isRuleOrderOptimizationEnabled()) {
+            for (ScoringRule scoringRule : scoringRuleList) {
+                scoringRule.filterCandidates(task, wc, m, candidates);
+            }
+        } else {
+            for (ScoringRule scoringRule : ruleOrderOptimizer.order(scoringRuleList, Phase.FILTER)) {
+                int before = candidates.countValidExecutors();
+                long start = System.nanoTime();
+                scoringRule.filterCandidates(task, wc, m, candidates);
+                long elapsed = System.nanoTime() - start;
+                int after = candidates.countValidExecutors();
+                ruleOrderOptimizer.record(scoringRule, Phase.FILTER, elapsed, before, before - after, false);
+                if (after <= 0) {
+                    // no more candidates to exclude.
+                    break;
+                }
+            }
+        }
+        // compact in place not to allocate.
+        int valid = 0;
+        for (int i = 0; i < executors.size(); ++i) {
+            ExecutorChunk ec = executors.get(i);
+            if (!candidates.isInvalid(ec)) {
+                executors.set(valid++, ec);
+            }
+        }
+        while (executors.size() > valid) {
+            executors.remove(executors.size() - 1);
+        }
+        return executors;
+    }
+
+    /**
+     * Score nodes by calling {@link ScoringRule#updateScores(Task, WorkChunk, Mapping, NodesScore)}.
+     *
+     * Stops when a rule returns false.
+     *
+     * @param m
+     * @param task
+     * @param wc
+     * @param scoringRuleList
+     * @param nodesScore
+     * @throws Exception
+     */
+    private void scoreNodes(
+            Mapping m, Task task, WorkChunk wc, List<ScoringRule> scoringRuleList, NodesScore nodesScore)
+            throws Exception {
+        if (!isRuleOrderOptimizationEnabled()) {
+            for (ScoringRule scoringRule : scoringRuleList) {
+                if (!scoringRule.updateScores(task, wc, m, nodesScore)) {
+                    break;
+                }
+            }
+            return;
+        }
+        for (ScoringRule scoringRule : ruleOrderOptimizer.order(scoringRuleList, Phase.SCORE)) {
+            int before = nodesScore.countValidExecutors();
+            long start = System.nanoTime();
+            boolean proceed = scoringRule.updateScores(task, wc, m, nodesScore);
+            long elapsed = System.nanoTime() - start;
+            int after = nodesScore.countValidExecutors();
+            ruleOrderOptimizer.record(scoringRule, Phase.SCORE, elapsed, before, before - after, !proceed);
+            if (!proceed) {
+                break;
+            }
+        }
+    }
+
     /**
      * sort {@link ExecutorChunk}s (that is, nodes) by scores.
      *
@@ -271,7 +558,7 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
      */
     protected void sortExecutors(List<ExecutorChunk> executors, NodesScore nodesScore) {
         Collections.shuffle(executors);
-        Collections.sort(executors, nodesScore.new ExecutorComparator());
+        Collections.sort(executors, nodesScore.getComparator());
     }
 
     /**
@@ -285,7 +572,7 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
         List<String> wcs = wc.stream().map(SubTask::toString).collect(Collectors.toList());
         lines.add(String.format("Scoring for %s:", String.join(",", wcs)));
         for (ExecutorChunk ec : executors) {
-            lines.add(String.format("  %20s: %4d", ec.getName(), nodesScore.getScore(ec)));
+            lines.add(String.format("  %20s: %4d", ec.getName(), nodesScore.getLongScore(ec)));
         }
         LOGGER.info(String.join(System.getProperty("line.separator"), lines));
     }
@@ -357,6 +644,62 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
             return simultaneousBuildsWorkaroundThrottleTime;
         }
 
+        private boolean ruleOrderOptimizationEnabled = false;
+
+        /**
+         * Returns whether to reorder order-independent {@link ScoringRule}s by their measured cost and selectivity.
+         *
+         * Rules are measured only when enabled.
+         *
+         * @return whether to reorder scoring rules.
+         */
+        public boolean isRuleOrderOptimizationEnabled() {
+            return ruleOrderOptimizationEnabled;
+        }
+
+        private int sampleSize = 0;
+
+        /**
+         * Returns the number of nodes to sample for each subtask.
+         *
+         * Only sampled nodes and nodes preferred by {@link ScoringRule}s are filtered and scored,
+         * which keeps scoring cost constant for large pools of equivalent nodes.
+         * The sample is widened when no sampled node is assignable.
+         *
+         * @return the number of nodes to sample. 0 to evaluate all nodes.
+         */
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        private int negativeCacheTime = 0;
+
+        /**
+         * Returns the time to remember failures to map tasks.
+         *
+         * Mapping the same worksheet fails immediately in that time,
+         * unless executors, nodes or mappings are changed.
+         *
+         * @return the time in milliseconds to remember failures. 0 not to remember.
+         */
+        public int getNegativeCacheTime() {
+            return negativeCacheTime;
+        }
+
+        private boolean clusterSnapshotEnabled = false;
+
+        /**
+         * Returns whether to share states of nodes among items mapped in a maintenance of the queue.
+         *
+         * Rules look up states of nodes in {@link ClusterSnapshot} built once for each maintenance,
+         * including assignments to earlier items not accepted by executors yet.
+         *
+         * @return whether to use {@link ClusterSnapshot}.
+         */
+        public boolean isClusterSnapshotEnabled() {
+            return clusterSnapshotEnabled;
+        }
+
         private List<ScoringRule> scoringRuleList = Collections.emptyList();
 
         /**
@@ -394,8 +737,13 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
             this.reportScoresEnabled = false;
             this.simultaneousBuildsWorkaroundEnabled = false;
             this.simultaneousBuildsWorkaroundThrottleTime = 1000;
+            this.ruleOrderOptimizationEnabled = false;
+            this.sampleSize = 0;
+            this.negativeCacheTime = 0;
+            this.clusterSnapshotEnabled = false;
             req.bindJSON(this, json);
             save();
+            NegativeCache.get().invalidate();
             return true;
         }
 
@@ -421,6 +769,7 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
             this.simultaneousBuildsWorkaroundThrottleTime = simultaneousBuildsWorkaroundThrottleTime;
             this.scoringRuleList = scoringRuleList;
             save();
+            NegativeCache.get().invalidate();
             return true;
         }
 
@@ -468,6 +817,26 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
             this.simultaneousBuildsWorkaroundThrottleTime = simultaneousBuildsWorkaroundThrottleTime;
         }
 
+        @DataBoundSetter
+        public void setRuleOrderOptimizationEnabled(boolean ruleOrderOptimizationEnabled) {
+            this.ruleOrderOptimizationEnabled = ruleOrderOptimizationEnabled;
+        }
+
+        @DataBoundSetter
+        public void setSampleSize(int sampleSize) {
+            this.sampleSize = sampleSize;
+        }
+
+        @DataBoundSetter
+        public void setNegativeCacheTime(int negativeCacheTime) {
+            this.negativeCacheTime = negativeCacheTime;
+        }
+
+        @DataBoundSetter
+        public void setClusterSnapshotEnabled(boolean clusterSnapshotEnabled) {
+            this.clusterSnapshotEnabled = clusterSnapshotEnabled;
+        }
+
         @DataBoundSetter
         public void setScoringRuleList(List<ScoringRule> scoringRuleList) {
             this.scoringRuleList = scoringRuleList;
@@ -486,6 +855,18 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
             return Messages.ScoringLoadBalancer_DisplayName();
         }
 
+        @POST
+        public FormValidation doCheckSampleSize(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            return ValidationUtil.doCheckNonNegativeInteger(value);
+        }
+
+        @POST
+        public FormValidation doCheckNegativeCacheTime(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            return ValidationUtil.doCheckNonNegativeInteger(value);
+        }
+
         /**
          * Returns all {@link ScoringRule}s registered to Jenkins.
          *
@@ -500,11 +881,40 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
      * Holds scores of nodes.
      *
      * A node with a larger score is preferred to use.
+     * Scores are accumulated in 64 bits with saturation,
+     * so large scales never wrap around and invert the order of nodes.
+     *
+     * {@link ScoringLoadBalancer} reuses instances for subsequent decisions not to allocate in each scoring.
+     * Don't keep references to instances passed to {@link ScoringRule}s.
      */
     public static class NodesScore {
-        private Map<Node, ExecutorChunk> nodeExecutorMap;
-        private Map<ExecutorChunk, Integer> executorScoreMap;
-        private Set<ExecutorChunk> invalidExecutors;
+        private ExecutorChunk[] executors = new ExecutorChunk[0];
+        private long[] scores = new long[0];
+        private boolean[] invalid = new boolean[0];
+        private int size;
+        private int invalidCount;
+        // positions + 1 of executors indexed with ExecutorChunk#index. 0 for none.
+        private int[] indexPositions = new int[0];
+        // executors sharing an index are looked up with linear search.
+        private boolean indexConflicted;
+        // ids in NodeRegistry of nodes at each position.
+        private int[] nodeIds = new int[0];
+        // positions + 1 of nodes indexed with ids in NodeRegistry. 0 for none.
+        private int[] nodePositions = new int[0];
+        // positions of nodes not registered in NodeRegistry (e.g. already removed).
+        private final Map<Node, Integer> unregisteredPositions = new HashMap<Node, Integer>();
+        private PendingAssignments pendingAssignments;
+        private Queue.BuildableItem queueItem;
+        private ClusterSnapshot clusterSnapshot;
+        private final Collection<Node> nodeView = new NodeView();
+        private final Collection<ExecutorChunk> executorView = new ExecutorChunkView();
+        private final ExecutorComparator comparator = new ExecutorComparator();
+
+        /**
+         * Constructor for instances reused with
+         * {@link #reset(Collection, PendingAssignments, Queue.BuildableItem, ClusterSnapshot)}.
+         */
+        NodesScore() {}
 
         /**
          * Constructor
@@ -514,16 +924,213 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * @param executors
          */
         public NodesScore(Collection<ExecutorChunk> executors) {
-            nodeExecutorMap = new HashMap<Node, ExecutorChunk>(executors.size());
-            executorScoreMap = new HashMap<ExecutorChunk, Integer>(executors.size());
-            invalidExecutors = new HashSet<ExecutorChunk>();
+            this(executors, null);
+        }
+
+        /**
+         * Constructor
+         *
+         * Initialize scores for each nodes to 0.
+         *
+         * @param executors
+         * @param pendingAssignments executors about to be assigned in the current mapping. can be null.
+         */
+        public NodesScore(Collection<ExecutorChunk> executors, PendingAssignments pendingAssignments) {
+            this(executors, pendingAssignments, null);
+        }
+
+        /**
+         * Constructor
+         *
+         * Initialize scores for each nodes to 0.
+         *
+         * @param executors
+         * @param pendingAssignments executors about to be assigned in the current mapping. can be null.
+         * @param queueItem the queue item to schedule. can be null.
+         */
+        public NodesScore(
+                Collection<ExecutorChunk> executors,
+                PendingAssignments pendingAssignments,
+                Queue.BuildableItem queueItem) {
+            this(executors, pendingAssignments, queueItem, null);
+        }
+
+        /**
+         * Constructor
+         *
+         * Initialize scores for each nodes to 0.
+         *
+         * @param executors
+         * @param pendingAssignments executors about to be assigned in the current mapping. can be null.
+         * @param queueItem the queue item to schedule. can be null.
+         * @param clusterSnapshot states of nodes shared in the maintenance of the queue. can be null.
+         */
+        public NodesScore(
+                Collection<ExecutorChunk> executors,
+                PendingAssignments pendingAssignments,
+                Queue.BuildableItem queueItem,
+                ClusterSnapshot clusterSnapshot) {
+            reset(executors, pendingAssignments, queueItem, clusterSnapshot);
+        }
 
-            for (ExecutorChunk executor : executors) {
-                nodeExecutorMap.put(executor.node, executor);
-                executorScoreMap.put(executor, 0);
+        /**
+         * Reinitialize for other executors, keeping allocated buffers.
+         *
+         * Scores for each nodes are initialized to 0, and invalid marks are cleared.
+         *
+         * @param executorList
+         * @param pendingAssignments executors about to be assigned in the current mapping. can be null.
+         * @param queueItem the queue item to schedule. can be null.
+         * @param clusterSnapshot states of nodes shared in the maintenance of the queue. can be null.
+         */
+        void reset(
+                Collection<ExecutorChunk> executorList,
+                PendingAssignments pendingAssignments,
+                Queue.BuildableItem queueItem,
+                ClusterSnapshot clusterSnapshot) {
+            this.pendingAssignments = pendingAssignments;
+            this.queueItem = queueItem;
+            this.clusterSnapshot = clusterSnapshot;
+
+            int capacity = executorList.size();
+            int oldSize = size;
+            // clear only entries of previous nodes.
+            for (int pos = 0; pos < oldSize; ++pos) {
+                if (nodeIds[pos] >= 0) {
+                    nodePositions[nodeIds[pos]] = 0;
+                }
+            }
+            if (!unregisteredPositions.isEmpty()) {
+                unregisteredPositions.clear();
+            }
+            if (executors.length < capacity) {
+                executors = new ExecutorChunk[capacity];
+                scores = new long[capacity];
+                invalid = new boolean[capacity];
+                nodeIds = new int[capacity];
+                oldSize = 0;
+            }
+            NodeRegistry registry = NodeRegistry.get();
+
+            size = 0;
+            invalidCount = 0;
+            indexConflicted = false;
+            for (ExecutorChunk executor : executorList) {
+                if (positionOf(executor) >= 0) {
+                    continue;
+                }
+                int pos = size++;
+                executors[pos] = executor;
+                scores[pos] = 0L;
+                invalid[pos] = false;
+                indexExecutor(executor, pos);
+                indexNode(registry, executor.node, pos);
+            }
+            if (oldSize > size) {
+                // not to retain nodes no longer scored.
+                Arrays.fill(executors, size, oldSize, null);
             }
         }
 
+        /**
+         * Reinitialize for other executors in the same decision as another {@link NodesScore},
+         * keeping allocated buffers.
+         *
+         * Allows rules to score with other rules without allocating (e.g. composite rules).
+         *
+         * @param executorList
+         * @param context the {@link NodesScore} to share pending assignments, the queue item and the snapshot with.
+         */
+        public void reset(Collection<ExecutorChunk> executorList, NodesScore context) {
+            reset(executorList, context.pendingAssignments, context.queueItem, context.clusterSnapshot);
+        }
+
+        /**
+         * Drops references to executors and the decision, keeping allocated buffers.
+         *
+         * Call when this is kept for subsequent decisions.
+         */
+        public void clear() {
+            reset(Collections.<ExecutorChunk>emptyList(), null, null, null);
+        }
+
+        private void indexExecutor(ExecutorChunk executor, int pos) {
+            int index = executor.index;
+            if (index < 0) {
+                indexConflicted = true;
+                return;
+            }
+            if (indexPositions.length <= index) {
+                indexPositions = Arrays.copyOf(indexPositions, Math.max(index + 1, indexPositions.length * 2));
+            }
+            int current = indexPositions[index] - 1;
+            if (current >= 0 && current < pos && executors[current].index == index) {
+                indexConflicted = true;
+                return;
+            }
+            indexPositions[index] = pos + 1;
+        }
+
+        private void indexNode(NodeRegistry registry, Node node, int pos) {
+            // never registers nodes here, not to assign ids to removed nodes still in worksheets again.
+            int id = registry.lookup(node.getNodeName());
+            if (id < 0) {
+                nodeIds[pos] = -1;
+                unregisteredPositions.putIfAbsent(node, pos);
+                return;
+            }
+            if (nodePositions.length <= id) {
+                nodePositions = Arrays.copyOf(nodePositions, Math.max(id + 1, registry.size()));
+            }
+            if (nodePositions[id] != 0) {
+                // the same node in multiple executors. the first one is used.
+                nodeIds[pos] = -1;
+                return;
+            }
+            nodeIds[pos] = id;
+            nodePositions[id] = pos + 1;
+        }
+
+        private int positionOf(ExecutorChunk executor) {
+            if (executor == null) {
+                return -1;
+            }
+            int index = executor.index;
+            if (index >= 0 && index < indexPositions.length) {
+                int pos = indexPositions[index] - 1;
+                if (pos >= 0 && pos < size && executors[pos] == executor) {
+                    return pos;
+                }
+            }
+            if (indexConflicted) {
+                for (int pos = 0; pos < size; ++pos) {
+                    if (executors[pos] == executor) {
+                        return pos;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private int positionOf(Node node) {
+            if (node == null || size == 0) {
+                return -1;
+            }
+            int id = NodeRegistry.get().lookup(node.getNodeName());
+            if (id >= 0 && id < nodePositions.length) {
+                int pos = nodePositions[id] - 1;
+                if (pos >= 0 && pos < size && node.equals(executors[pos].node)) {
+                    return pos;
+                }
+            }
+            if (unregisteredPositions.isEmpty()) {
+                return -1;
+            }
+            // nodes not registered when indexed.
+            Integer pos = unregisteredPositions.get(node);
+            return (pos != null) ? pos : -1;
+        }
+
         /**
          * Get nodes to score.
          *
@@ -532,7 +1139,40 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * @return nodes to score.
          */
         public Collection<Node> getNodes() {
-            return nodeExecutorMap.keySet();
+            return nodeView;
+        }
+
+        /**
+         * Get executors about to be assigned in the current mapping.
+         *
+         * @return executors about to be assigned. null if not available.
+         */
+        public PendingAssignments getPendingAssignments() {
+            return pendingAssignments;
+        }
+
+        /**
+         * Get the queue item to schedule.
+         *
+         * Allows rules to refer actions of the item (e.g. build parameters).
+         *
+         * @return the queue item. null if not available.
+         */
+        @CheckForNull
+        public Queue.BuildableItem getQueueItem() {
+            return queueItem;
+        }
+
+        /**
+         * Get states of nodes shared among items mapped in the maintenance of the queue.
+         *
+         * Prefer this to looking up nodes directly, as it counts executors assigned to earlier items.
+         *
+         * @return the snapshot. null if not available.
+         */
+        @CheckForNull
+        public ClusterSnapshot getClusterSnapshot() {
+            return clusterSnapshot;
         }
 
         /**
@@ -541,7 +1181,7 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * @return executors to score.
          */
         public Collection<ExecutorChunk> getExecutorChunks() {
-            return executorScoreMap.keySet();
+            return executorView;
         }
 
         /**
@@ -551,7 +1191,7 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * @param score
          */
         public void addScore(Node node, int score) {
-            addScore(nodeExecutorMap.get(node), score);
+            addScore(node, (long) score);
         }
 
         /**
@@ -563,7 +1203,38 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * @param score
          */
         public void addScore(ExecutorChunk executor, int score) {
-            executorScoreMap.put(executor, executorScoreMap.get(executor) + score);
+            addScore(executor, (long) score);
+        }
+
+        /**
+         * Add score to the node.
+         *
+         * The result saturates at {@link Long#MAX_VALUE} or {@link Long#MIN_VALUE}.
+         *
+         * @param node
+         * @param score
+         */
+        public void addScore(Node node, long score) {
+            addScoreAt(positionOf(node), score);
+        }
+
+        /**
+         * Add score to the node.
+         *
+         * Same to call {@link NodesScore#addScore(Node, long)} for executor.node
+         *
+         * @param executor
+         * @param score
+         */
+        public void addScore(ExecutorChunk executor, long score) {
+            addScoreAt(positionOf(executor), score);
+        }
+
+        private void addScoreAt(int pos, long score) {
+            // ignore nodes not to score.
+            if (pos >= 0) {
+                scores[pos] = ScoreMath.add(scores[pos], score);
+            }
         }
 
         /**
@@ -572,7 +1243,7 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * @param node
          */
         public void resetScore(Node node) {
-            resetScore(nodeExecutorMap.get(node));
+            resetScoreAt(positionOf(node));
         }
 
         /**
@@ -583,17 +1254,26 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * @param executor
          */
         public void resetScore(ExecutorChunk executor) {
-            executorScoreMap.put(executor, 0);
+            resetScoreAt(positionOf(executor));
+        }
+
+        private void resetScoreAt(int pos) {
+            if (pos >= 0) {
+                scores[pos] = 0L;
+            }
         }
 
         /**
          * Get the score of the node.
          *
+         * Kept for rules working with {@code int}.
+         * Use {@link #getLongScore(Node)} for the exact score.
+         *
          * @param node
-         * @return
+         * @return the score saturated to the range of {@code int}.
          */
         public int getScore(Node node) {
-            return getScore(nodeExecutorMap.get(node));
+            return ScoreMath.toInt(getLongScore(node));
         }
 
         /**
@@ -602,10 +1282,36 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * Same to call {@link NodesScore#getScore(Node)} for executor.node.
          *
          * @param executor
-         * @return
+         * @return the score saturated to the range of {@code int}.
          */
         public int getScore(ExecutorChunk executor) {
-            return executorScoreMap.get(executor);
+            return ScoreMath.toInt(getLongScore(executor));
+        }
+
+        /**
+         * Get the score of the node.
+         *
+         * @param node
+         * @return the score. 0 for nodes not to score.
+         */
+        public long getLongScore(Node node) {
+            return getLongScoreAt(positionOf(node));
+        }
+
+        /**
+         * Get the score of the node.
+         *
+         * Same to call {@link NodesScore#getLongScore(Node)} for executor.node.
+         *
+         * @param executor
+         * @return the score. 0 for nodes not to score.
+         */
+        public long getLongScore(ExecutorChunk executor) {
+            return getLongScoreAt(positionOf(executor));
+        }
+
+        private long getLongScoreAt(int pos) {
+            return (pos >= 0) ? scores[pos] : 0L;
         }
 
         /**
@@ -616,7 +1322,7 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * @param executor
          */
         public void markInvalid(ExecutorChunk executor) {
-            invalidExecutors.add(executor);
+            markInvalidAt(positionOf(executor));
         }
 
         /**
@@ -625,21 +1331,38 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * @param node
          */
         public void markInvalid(Node node) {
-            markInvalid(nodeExecutorMap.get(node));
+            markInvalidAt(positionOf(node));
+        }
+
+        private void markInvalidAt(int pos) {
+            // ignore nodes not to score to keep countValidExecutors() cheap.
+            if (pos >= 0 && !invalid[pos]) {
+                invalid[pos] = true;
+                ++invalidCount;
+            }
         }
 
         /**
          * Reset invalid marks on all nodes.
          */
         public void resetInvalid() {
-            invalidExecutors.clear();
+            Arrays.fill(invalid, 0, size, false);
+            invalidCount = 0;
         }
 
         /**
          * Mark all nodes invalid.
          */
         public void markAllInvalid() {
-            invalidExecutors.addAll(executorScoreMap.keySet());
+            Arrays.fill(invalid, 0, size, true);
+            invalidCount = size;
+        }
+
+        /**
+         * @return the number of nodes not marked invalid.
+         */
+        public int countValidExecutors() {
+            return size - invalidCount;
         }
 
         /**
@@ -649,7 +1372,8 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * @return
          */
         public boolean isInvalid(ExecutorChunk executor) {
-            return invalidExecutors.contains(executor);
+            int pos = positionOf(executor);
+            return pos >= 0 && invalid[pos];
         }
 
         /**
@@ -657,7 +1381,58 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
          * @return
          */
         public boolean isInvalid(Node node) {
-            return isInvalid(nodeExecutorMap.get(node));
+            int pos = positionOf(node);
+            return pos >= 0 && invalid[pos];
+        }
+
+        /**
+         * @return the comparator shared by all sorts with this object.
+         */
+        ExecutorComparator getComparator() {
+            return comparator;
+        }
+
+        /**
+         * View of nodes to score. Looks up with ids in {@link NodeRegistry}.
+         */
+        private class NodeView extends AbstractList<Node> implements RandomAccess {
+            @Override
+            public Node get(int index) {
+                return executorView.get(index).node;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return (o instanceof Node) && positionOf((Node) o) >= 0;
+            }
+        }
+
+        /**
+         * View of executors to score. Looks up with {@link ExecutorChunk#index}.
+         */
+        private class ExecutorChunkView extends AbstractList<ExecutorChunk> implements RandomAccess {
+            @Override
+            public ExecutorChunk get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException(index);
+                }
+                return executors[index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return (o instanceof ExecutorChunk) && positionOf((ExecutorChunk) o) >= 0;
+            }
         }
 
         /**
@@ -666,7 +1441,8 @@ public class ScoringLoadBalancer extends LoadBalancer implements Describable<Sco
         public class ExecutorComparator implements Comparator<ExecutorChunk> {
             @Override
             public int compare(ExecutorChunk o1, ExecutorChunk o2) {
-                return getScore(o2) - getScore(o1);
+                // subtraction overflows for scores with large magnitudes.
+                return Long.compare(getLongScore(o2), getLongScore(o1));
             }
         }
     }
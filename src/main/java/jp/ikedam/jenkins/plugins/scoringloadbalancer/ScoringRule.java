@@ -28,9 +28,13 @@ import hudson.ExtensionPoint;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.model.LoadBalancer;
+import hudson.model.Node;
 import hudson.model.Queue.Task;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
 import hudson.model.queue.MappingWorksheet.Mapping;
 import hudson.model.queue.MappingWorksheet.WorkChunk;
+import java.util.Set;
 import jenkins.model.Jenkins;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
 
@@ -38,6 +42,45 @@ import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesSc
  * Scores nodes to determine which is proper to have a task build on.
  */
 public abstract class ScoringRule extends AbstractDescribableImpl<ScoringRule> implements ExtensionPoint {
+    /**
+     * Exclude nodes the work chunk must not run on, before any rule scores nodes.
+     *
+     * Called for all {@link ScoringRule}s before {@link #updateScores(Task, WorkChunk, Mapping, NodesScore)}.
+     * Call {@link NodesScore#markInvalid(ExecutorChunk)} for nodes to exclude.
+     * Excluded nodes are removed from candidates, and no rules score them.
+     * Nodes already excluded by preceding rules can be skipped with {@link NodesScore#isInvalid(ExecutorChunk)}.
+     *
+     * Scores updated in this method are discarded.
+     * Override this for hard constraints cheap to check.
+     *
+     * @param task the root task to build.
+     * @param wc Current work chunk (a set of subtasks that must run on the same node).
+     * @param m currently mapping status. there may be nodes already assigned.
+     * @param candidates nodes to filter.
+     *
+     * @throws Exception if any exception occurs, {@link ScoringLoadBalancer} falls back to a {@link LoadBalancer} registered originally.
+     */
+    public void filterCandidates(Task task, WorkChunk wc, Mapping m, NodesScore candidates) throws Exception {}
+
+    /**
+     * Add nodes to evaluate even when {@link ScoringLoadBalancer} samples nodes.
+     *
+     * With sampling enabled for large pools, only randomly chosen candidates are filtered and scored.
+     * Add nodes this rule is likely to prefer (e.g. nodes with positive preferences)
+     * not to have them dropped from the sample.
+     * Called for all candidates, so keep this cheap.
+     *
+     * @param task the root task to build.
+     * @param wc Current work chunk (a set of subtasks that must run on the same node).
+     * @param m currently mapping status. there may be nodes already assigned.
+     * @param candidates all candidates. scores and invalid marks updated in this method are discarded.
+     * @param preferred nodes to evaluate in addition to the sampled ones.
+     *
+     * @throws Exception if any exception occurs, {@link ScoringLoadBalancer} falls back to a {@link LoadBalancer} registered originally.
+     */
+    public void addPreferredNodes(Task task, WorkChunk wc, Mapping m, NodesScore candidates, Set<Node> preferred)
+            throws Exception {}
+
     /**
      * Score the nodes.
      *
@@ -57,6 +100,40 @@ public abstract class ScoringRule extends AbstractDescribableImpl<ScoringRule> i
      */
     public abstract boolean updateScores(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore) throws Exception;
 
+    /**
+     * Called when {@link ScoringLoadBalancer} decided nodes to run the task on.
+     *
+     * Subtasks are passed to executors of the assigned nodes right after this,
+     * and the executors accept them a bit later.
+     * Override this to track builds in that period.
+     *
+     * @param task the root task to build.
+     * @param worksheet the worksheet the mapping is created from.
+     * @param m the decided mapping.
+     */
+    public void onMapped(Task task, MappingWorksheet worksheet, Mapping m) {}
+
+    /**
+     * Returns whether this rule can be evaluated in any order with other order-independent rules.
+     *
+     * Return true only when all of the following hold:
+     * <ul>
+     *   <li>{@link #filterCandidates(Task, WorkChunk, Mapping, NodesScore)} only marks nodes invalid,
+     *     and the result doesn't depend on marks by other rules.</li>
+     *   <li>{@link #updateScores(Task, WorkChunk, Mapping, NodesScore)} only adds scores and marks nodes invalid,
+     *     and doesn't read scores added by other rules.</li>
+     *   <li>{@link #updateScores(Task, WorkChunk, Mapping, NodesScore)} returns false
+     *     only when subsequent rules can no longer change the decision.</li>
+     * </ul>
+     * {@link RuleOrderOptimizer} moves such rules to evaluate cheap and selective ones first.
+     * Other rules are kept at their configured positions.
+     *
+     * @return whether this rule can be reordered.
+     */
+    public boolean isOrderIndependent() {
+        return false;
+    }
+
     /**
      * Returns all {@link ScoringRule}s registered to Jenkins.
      *
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.scoringloadbalancer;
+
+import hudson.model.Node;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
+
+/**
+ * Buffers reused by {@link ScoringLoadBalancer} for each level of the recursion.
+ *
+ * Kept per thread and reused for subsequent decisions,
+ * so scoring allocates nothing once buffers grow large enough for the nodes.
+ * {@link NodesScore} passed to {@link ScoringRule}s is valid only during the decision,
+ * as buffers are cleared not to retain executors and nodes when the decision finishes.
+ */
+class ScoringWorkspace {
+    private static final ThreadLocal<ScoringWorkspace> WORKSPACE = ThreadLocal.withInitial(ScoringWorkspace::new);
+
+    private final List<Level> levels = new ArrayList<Level>();
+    private boolean inUse;
+    private ClusterSnapshot clusterSnapshot;
+
+    /**
+     * Buffers for a work chunk.
+     */
+    static class Level {
+        /**
+         * Candidates to filter and score.
+         */
+        final List<ExecutorChunk> candidates = new ArrayList<ExecutorChunk>();
+
+        /**
+         * Candidates sampled from {@link #candidates}.
+         */
+        final List<ExecutorChunk> sample = new ArrayList<ExecutorChunk>();
+
+        /**
+         * Nodes to evaluate even when sampling.
+         */
+        final Set<Node> preferred = new HashSet<Node>();
+
+        /**
+         * Scores for filtering and then scoring candidates.
+         */
+        final NodesScore nodesScore = new NodesScore();
+    }
+
+    /**
+     * Returns the workspace for the current thread.
+     *
+     * Call {@link #release()} when the decision finishes.
+     * Returns a new workspace if the one for the current thread is in use.
+     *
+     * @param clusterSnapshot states of nodes for the decision. can be null.
+     * @return the workspace.
+     */
+    static ScoringWorkspace acquire(ClusterSnapshot clusterSnapshot) {
+        ScoringWorkspace workspace = WORKSPACE.get();
+        if (workspace.inUse) {
+            workspace = new ScoringWorkspace();
+        }
+        workspace.inUse = true;
+        workspace.clusterSnapshot = clusterSnapshot;
+        return workspace;
+    }
+
+    /**
+     * Makes this workspace available for subsequent decisions.
+     */
+    void release() {
+        // not to retain executors, items and nodes until the next decision.
+        for (Level level : levels) {
+            level.candidates.clear();
+            level.sample.clear();
+            level.preferred.clear();
+            level.nodesScore.clear();
+        }
+        inUse = false;
+        clusterSnapshot = null;
+    }
+
+    /**
+     * @return states of nodes for the decision. null if not available.
+     */
+    ClusterSnapshot getClusterSnapshot() {
+        return clusterSnapshot;
+    }
+
+    /**
+     * @param depth index of the work chunk.
+     * @return buffers for the work chunk.
+     */
+    Level getLevel(int depth) {
+        while (levels.size() <= depth) {
+            levels.add(new Level());
+        }
+        return levels.get(depth);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.affinity;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.JobProperty;
+import hudson.model.JobPropertyDescriptor;
+import hudson.model.queue.SubTask;
+import hudson.util.FormValidation;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.TaskUtil;
+import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Holds anti-affinity groups of a project.
+ *
+ * Builds of projects in the same group are not preferred to run on the same node at the same time.
+ */
+public class AntiAffinityJobProperty extends JobProperty<Job<?, ?>> {
+    /**
+     * Property name used for job configuration page.
+     */
+    public static final String PROPERTYNAME = "anti_affinity_job_property";
+
+    private String groups;
+
+    /**
+     * Names of groups parsed from {@link #groups}.
+     */
+    private transient Set<String> groupSet;
+
+    /**
+     * Returns names of groups separated with whitespaces or commas.
+     *
+     * @return names of groups
+     */
+    public String getGroups() {
+        return groups;
+    }
+
+    /**
+     * Returns names of groups.
+     *
+     * @return names of groups. never null.
+     */
+    public Set<String> getGroupSet() {
+        return groupSet;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param groups names of groups separated with whitespaces or commas.
+     */
+    @DataBoundConstructor
+    public AntiAffinityJobProperty(String groups) {
+        this.groups = groups == null ? null : groups.trim();
+        this.groupSet = parseGroups(this.groups);
+    }
+
+    /**
+     * Parses groups when loaded.
+     *
+     * @return this object
+     */
+    protected Object readResolve() {
+        groupSet = parseGroups(groups);
+        return this;
+    }
+
+    private static Set<String> parseGroups(String groups) {
+        if (groups == null || groups.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> groupSet = new LinkedHashSet<String>(Arrays.asList(groups.split("[\\s,]+")));
+        groupSet.remove("");
+        return Collections.unmodifiableSet(groupSet);
+    }
+
+    /**
+     * Returns anti-affinity groups of the subtask.
+     *
+     * @param subtask
+     * @return names of groups. empty if not configured.
+     */
+    public static Set<String> getGroups(SubTask subtask) {
+        Job<?, ?> job = TaskUtil.getJob(subtask);
+        if (job == null) {
+            return Collections.emptySet();
+        }
+        AntiAffinityJobProperty prop = job.getProperty(AntiAffinityJobProperty.class);
+        return (prop != null) ? prop.getGroupSet() : Collections.<String>emptySet();
+    }
+
+    /**
+     * Manages views for {@link AntiAffinityJobProperty}
+     */
+    @Extension
+    @Symbol("antiAffinity")
+    public static class DescriptorImpl extends JobPropertyDescriptor {
+        /**
+         * Returns the property name to hold configuration of {@link AntiAffinityJobProperty}
+         *
+         * @return the property name
+         */
+        public String getPropertyName() {
+            return PROPERTYNAME;
+        }
+
+        /**
+         * Returns the name to display
+         *
+         * Displayed in Project Configuration page as a property name.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.AntiAffinityJobProperty_DisplayName();
+        }
+
+        /**
+         * Create a new instance {@link AntiAffinityJobProperty}
+         * from configurations specified by a user in Project Configuration page.
+         *
+         * @param req
+         * @param formData
+         * @return
+         * @throws hudson.model.Descriptor.FormException
+         * @see hudson.model.JobPropertyDescriptor#newInstance(org.kohsuke.stapler.StaplerRequest, net.sf.json.JSONObject)
+         */
+        @Override
+        public AntiAffinityJobProperty newInstance(StaplerRequest req, JSONObject formData)
+                throws hudson.model.Descriptor.FormException {
+            if (formData == null || formData.isNullObject()) {
+                return null;
+            }
+            JSONObject form = formData.getJSONObject(getPropertyName());
+            if (form == null || form.isNullObject()) {
+                return null;
+            }
+            return (AntiAffinityJobProperty) super.newInstance(req, form);
+        }
+
+        /**
+         * Verify the input groups
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckGroups(@QueryParameter String value, @AncestorInPath Item item) {
+            if (item == null) // no context
+            {
+                Jenkins.get().checkPermission(Item.CONFIGURE);
+            } else {
+                item.checkPermission(Item.CONFIGURE);
+            }
+            if (parseGroups(value == null ? null : value.trim()).isEmpty()) {
+                return FormValidation.error(Messages.AntiAffinityJobProperty_groups_required());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
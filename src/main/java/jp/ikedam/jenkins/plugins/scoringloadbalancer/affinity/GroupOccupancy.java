@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.affinity;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.queue.SubTask;
+import hudson.model.queue.WorkUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.model.NodeListener;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.AssignmentKey;
+
+/**
+ * Live table of the number of builds of each anti-affinity group on each computer.
+ *
+ * Maintained with events, not by scanning executors:
+ * <ul>
+ *   <li>Builds are recorded as assigned when the load balancer decides their nodes.</li>
+ *   <li>They become running when executors accept them.</li>
+ *   <li>They are removed when they complete.</li>
+ * </ul>
+ * Assigned builds never accepted (e.g. the node went offline) are discarded after a while.
+ * Counts getting zero are removed, and counts of removed nodes are discarded,
+ * not to retain computers of removed nodes (e.g. ephemeral cloud agents).
+ */
+public class GroupOccupancy {
+    private static final GroupOccupancy INSTANCE = new GroupOccupancy();
+
+    /**
+     * How long assigned builds are counted without being accepted by executors.
+     */
+    private static final long ASSIGNMENT_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * @return the table.
+     */
+    public static GroupOccupancy get() {
+        return INSTANCE;
+    }
+
+    private final Map<Computer, Map<String, AtomicInteger>> running =
+            new ConcurrentHashMap<Computer, Map<String, AtomicInteger>>();
+    private final Map<Computer, Map<String, AtomicInteger>> pending =
+            new ConcurrentHashMap<Computer, Map<String, AtomicInteger>>();
+    private final Map<Executor, Occupation> runningByExecutor = new ConcurrentHashMap<Executor, Occupation>();
+    private final Map<AssignmentKey, Occupation> assigned = new ConcurrentHashMap<AssignmentKey, Occupation>();
+
+    /**
+     * Records a subtask assigned to the computer but not yet accepted.
+     *
+     * @param itemId the id of the queue item.
+     * @param work the subtask.
+     * @param computer the computer to run the subtask.
+     * @param groups anti-affinity groups of the subtask.
+     */
+    public void assign(long itemId, SubTask work, Computer computer, Set<String> groups) {
+        if (groups.isEmpty()) {
+            return;
+        }
+        Occupation occupation = new Occupation(computer, groups);
+        Occupation old = assigned.put(new AssignmentKey(itemId, work), occupation);
+        if (old != null) {
+            decrement(pending, old);
+        }
+        increment(pending, occupation);
+    }
+
+    /**
+     * Records a subtask accepted by the executor.
+     *
+     * @param executor the executor.
+     * @param itemId the id of the queue item.
+     * @param work the subtask.
+     * @param groups anti-affinity groups of the subtask.
+     */
+    public void accept(Executor executor, long itemId, SubTask work, Set<String> groups) {
+        Occupation old = assigned.remove(new AssignmentKey(itemId, work));
+        if (old != null) {
+            decrement(pending, old);
+        }
+        if (groups.isEmpty()) {
+            return;
+        }
+        Occupation occupation = new Occupation(executor.getOwner(), groups);
+        if (runningByExecutor.putIfAbsent(executor, occupation) != null) {
+            return;
+        }
+        increment(running, occupation);
+    }
+
+    /**
+     * Removes a subtask completed on the executor.
+     *
+     * @param executor the executor.
+     */
+    public void complete(Executor executor) {
+        Occupation occupation = runningByExecutor.remove(executor);
+        if (occupation != null) {
+            decrement(running, occupation);
+        }
+    }
+
+    /**
+     * Discards assigned builds not accepted in time.
+     */
+    void expire() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<AssignmentKey, Occupation> e : assigned.entrySet()) {
+            if (now - e.getValue().timestamp > ASSIGNMENT_TIMEOUT && assigned.remove(e.getKey(), e.getValue())) {
+                decrement(pending, e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes builds on the removed node.
+     *
+     * @param name the name of the removed node.
+     */
+    void purge(String name) {
+        // computers of removed nodes are no longer looked up, and builds on them are never accepted.
+        running.keySet().removeIf(computer -> name.equals(computer.getName()));
+        pending.keySet().removeIf(computer -> name.equals(computer.getName()));
+        runningByExecutor.values().removeIf(occupation -> name.equals(occupation.computer.getName()));
+        assigned.values().removeIf(occupation -> name.equals(occupation.computer.getName()));
+    }
+
+    // updated atomically with removals of maps getting empty.
+    private static void increment(Map<Computer, Map<String, AtomicInteger>> table, Occupation occupation) {
+        table.compute(occupation.computer, (computer, counts) -> {
+            Map<String, AtomicInteger> updated =
+                    (counts != null) ? counts : new ConcurrentHashMap<String, AtomicInteger>();
+            for (String group : occupation.groups) {
+                updated.computeIfAbsent(group, g -> new AtomicInteger()).incrementAndGet();
+            }
+            return updated;
+        });
+    }
+
+    private static void decrement(Map<Computer, Map<String, AtomicInteger>> table, Occupation occupation) {
+        table.computeIfPresent(occupation.computer, (computer, counts) -> {
+            for (String group : occupation.groups) {
+                counts.computeIfPresent(group, (g, count) -> (count.decrementAndGet() > 0) ? count : null);
+            }
+            return counts.isEmpty() ? null : counts;
+        });
+    }
+
+    /**
+     * Returns the number of builds in the groups running on or assigned to the computer.
+     *
+     * A build in multiple groups is counted for each group.
+     *
+     * @param computer
+     * @param groups
+     * @return the number of builds.
+     */
+    public int count(Computer computer, Set<String> groups) {
+        return count(running, computer, groups) + count(pending, computer, groups);
+    }
+
+    private static int count(Map<Computer, Map<String, AtomicInteger>> table, Computer computer, Set<String> groups) {
+        Map<String, AtomicInteger> counts = table.get(computer);
+        if (counts == null) {
+            return 0;
+        }
+        int occupied = 0;
+        for (String group : groups) {
+            AtomicInteger count = counts.get(group);
+            if (count != null) {
+                occupied += count.get();
+            }
+        }
+        return occupied;
+    }
+
+    /**
+     * Groups of a build on a computer.
+     */
+    private static class Occupation {
+        private final Computer computer;
+        private final Set<String> groups;
+        private final long timestamp = System.currentTimeMillis();
+
+        private Occupation(Computer computer, Set<String> groups) {
+            this.computer = computer;
+            this.groups = groups;
+        }
+    }
+
+    /**
+     * Updates the table when builds start and complete.
+     */
+    @Extension
+    public static class ExecutorListenerImpl implements ExecutorListener {
+        @Override
+        public void taskAccepted(Executor executor, Queue.Task task) {
+            WorkUnit wu = executor.getCurrentWorkUnit();
+            if (wu == null) {
+                return;
+            }
+            get().accept(executor, wu.context.item.getId(), wu.work, AntiAffinityJobProperty.getGroups(wu.work));
+        }
+
+        @Override
+        public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+            get().complete(executor);
+        }
+
+        @Override
+        public void taskCompletedWithProblems(
+                Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+            get().complete(executor);
+        }
+    }
+
+    /**
+     * Discards builds on removed nodes.
+     */
+    @Extension
+    public static class NodeListenerImpl extends NodeListener {
+        @Override
+        protected void onDeleted(Node node) {
+            get().purge(node.getNodeName());
+        }
+    }
+
+    /**
+     * Discards assigned builds not accepted in time.
+     */
+    @Extension
+    public static class ExpirationWork extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return ASSIGNMENT_TIMEOUT;
+        }
+
+        @Override
+        protected void doRun() {
+            get().expire();
+        }
+    }
+}
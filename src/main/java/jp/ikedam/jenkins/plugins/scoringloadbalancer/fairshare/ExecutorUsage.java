@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.OneOffExecutor;
+import hudson.model.Queue;
+import hudson.model.queue.SubTask;
+import hudson.model.queue.WorkUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts executors used by each group on each computer.
+ *
+ * Counters are updated when executors start and finish builds,
+ * so that scoring can look them up without scanning executors.
+ * Builds are counted for all {@link GroupBy}s at once
+ * not to lose running builds when the configuration changes.
+ * Builds on {@link OneOffExecutor}s (e.g. flyweight tasks) are not counted, as they use no executors of nodes.
+ * Counters are removed when they get zero, not to retain computers of removed nodes.
+ */
+public class ExecutorUsage {
+    private static final ExecutorUsage INSTANCE = new ExecutorUsage();
+
+    /**
+     * @return the counters.
+     */
+    public static ExecutorUsage get() {
+        return INSTANCE;
+    }
+
+    private final Map<Computer, Counters> counters = new ConcurrentHashMap<Computer, Counters>();
+    private final Map<Executor, Usage> usages = new ConcurrentHashMap<Executor, Usage>();
+
+    /**
+     * Counts a build started on the executor.
+     *
+     * @param executor the executor.
+     * @param subtask the subtask the executor runs.
+     */
+    public void start(Executor executor, SubTask subtask) {
+        if (executor instanceof OneOffExecutor) {
+            return;
+        }
+        List<String> keys = new ArrayList<String>(GroupBy.values().length);
+        for (GroupBy groupBy : GroupBy.values()) {
+            String group = groupBy.getGroup(subtask);
+            if (group != null) {
+                keys.add(toKey(groupBy, group));
+            }
+        }
+        Usage usage = new Usage(executor.getOwner(), keys);
+        if (usages.putIfAbsent(executor, usage) != null) {
+            return;
+        }
+        // updated atomically with removals of counters getting zero.
+        counters.compute(usage.computer, (computer, c) -> {
+            Counters updated = (c != null) ? c : new Counters();
+            updated.busy.incrementAndGet();
+            for (String key : keys) {
+                updated.groups.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+            }
+            return updated;
+        });
+    }
+
+    /**
+     * Uncounts a build finished on the executor.
+     *
+     * @param executor the executor.
+     */
+    public void finish(Executor executor) {
+        Usage usage = usages.remove(executor);
+        if (usage == null) {
+            return;
+        }
+        counters.computeIfPresent(usage.computer, (computer, c) -> {
+            for (String key : usage.keys) {
+                c.groups.computeIfPresent(key, (k, count) -> (count.decrementAndGet() > 0) ? count : null);
+            }
+            return (c.busy.decrementAndGet() > 0) ? c : null;
+        });
+    }
+
+    /**
+     * @param computer
+     * @return the number of executors running builds on the computer.
+     */
+    public int countBusy(Computer computer) {
+        Counters c = counters.get(computer);
+        return (c != null) ? c.busy.get() : 0;
+    }
+
+    /**
+     * @param computer
+     * @param groupBy
+     * @param group
+     * @return the number of executors running builds of the group on the computer.
+     */
+    public int count(Computer computer, GroupBy groupBy, String group) {
+        Counters c = counters.get(computer);
+        if (c == null) {
+            return 0;
+        }
+        AtomicInteger count = c.groups.get(toKey(groupBy, group));
+        return (count != null) ? count.get() : 0;
+    }
+
+    private static String toKey(GroupBy groupBy, String group) {
+        return groupBy.name() + ":" + group;
+    }
+
+    /**
+     * Counters for a computer.
+     */
+    private static class Counters {
+        private final AtomicInteger busy = new AtomicInteger();
+        private final Map<String, AtomicInteger> groups = new ConcurrentHashMap<String, AtomicInteger>();
+    }
+
+    /**
+     * Groups of a build on an executor.
+     */
+    private static class Usage {
+        private final Computer computer;
+        private final List<String> keys;
+
+        private Usage(Computer computer, List<String> keys) {
+            this.computer = computer;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * Updates counters when builds start and finish.
+     */
+    @Extension
+    public static class ExecutorListenerImpl implements ExecutorListener {
+        @Override
+        public void taskAccepted(Executor executor, Queue.Task task) {
+            WorkUnit wu = executor.getCurrentWorkUnit();
+            get().start(executor, (wu != null) ? wu.work : task);
+        }
+
+        @Override
+        public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+            get().finish(executor);
+        }
+
+        @Override
+        public void taskCompletedWithProblems(
+                Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+            get().finish(executor);
+        }
+    }
+}
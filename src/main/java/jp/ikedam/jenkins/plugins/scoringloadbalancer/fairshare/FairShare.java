@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * The share of executors allowed for a group.
+ */
+public class FairShare extends AbstractDescribableImpl<FairShare> {
+    private String group;
+    private int share;
+
+    /**
+     * @return the name of the group.
+     */
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * @return the share of executors in a node pool in percent.
+     */
+    public int getShare() {
+        return share;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param group
+     * @param share
+     */
+    @DataBoundConstructor
+    public FairShare(String group, int share) {
+        this.group = group == null ? null : group.trim();
+        this.share = share;
+    }
+
+    /**
+     * Manages view for {@link FairShare}.
+     */
+    @Extension
+    public static class DescriptorImpl extends Descriptor<FairShare> {
+        /**
+         * Returns the name to display.
+         *
+         * Never used.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return "Share for a Group";
+        }
+
+        /**
+         * Verify the input group
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckGroup(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            if (value == null || value.isBlank()) {
+                return FormValidation.error(Messages.FairShare_group_required());
+            }
+            return FormValidation.ok();
+        }
+
+        /**
+         * Verify the input share
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckShare(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            return ValidationUtil.doCheckPercentage(value);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Label;
+import hudson.model.queue.SubTask;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.TaskUtil;
+import org.jvnet.localizer.Localizable;
+
+/**
+ * How to decide groups sharing executors.
+ */
+public enum GroupBy {
+    /**
+     * Groups by top-level folders. Typically, a team owns a top-level folder.
+     */
+    FOLDER(Messages._GroupBy_Folder()) {
+        @Override
+        public String getGroup(SubTask subtask) {
+            Job<?, ?> job = TaskUtil.getJob(subtask);
+            if (job == null) {
+                return null;
+            }
+            Item item = job;
+            while (item.getParent() instanceof Item) {
+                item = (Item) item.getParent();
+            }
+            // projects not in folders don't belong to any group.
+            return (item != job) ? item.getName() : null;
+        }
+    },
+    /**
+     * Groups by label expressions assigned to projects.
+     */
+    LABEL(Messages._GroupBy_Label()) {
+        @Override
+        public String getGroup(SubTask subtask) {
+            Label label = subtask.getAssignedLabel();
+            return (label != null) ? label.getExpression() : null;
+        }
+    };
+
+    private final Localizable displayName;
+
+    GroupBy(Localizable displayName) {
+        this.displayName = displayName;
+    }
+
+    /**
+     * @return the name to display
+     */
+    public String getDisplayName() {
+        return displayName.toString();
+    }
+
+    /**
+     * Returns the group of the subtask.
+     *
+     * @param subtask
+     * @return the name of the group. null if the subtask doesn't belong to any group.
+     */
+    @CheckForNull
+    public abstract String getGroup(SubTask subtask);
+}
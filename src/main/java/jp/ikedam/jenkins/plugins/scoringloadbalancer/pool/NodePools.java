@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.pool;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.labels.LabelAtom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.regex.Pattern;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare.ExecutorUsage;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.NodeIndex;
+
+/**
+ * Groups nodes into pools, and holds aggregate statistics of each pool.
+ *
+ * The pool of a node is the first label of the node (in the lexicographic order) matching a pattern,
+ * e.g. labels for availability zones or cloud templates.
+ * Nodes without such labels belong to the pool with the empty name.
+ *
+ * Pools are built from {@link NodeIndex}, and rebuilt when nodes are changed.
+ * The number of busy executors in each pool is updated when executors start and finish builds,
+ * so that rules can rank pools without looking at each node.
+ */
+public class NodePools {
+    private static final Map<String, NodePools> instances = new ConcurrentHashMap<String, NodePools>();
+
+    /**
+     * Returns pools of current nodes.
+     *
+     * @param pattern the pattern for labels of pools.
+     * @return pools of current nodes.
+     */
+    public static NodePools get(Pattern pattern) {
+        NodeIndex index = NodeIndex.get();
+        NodePools pools = instances.get(pattern.pattern());
+        if (pools == null || pools.index != index) {
+            // pools for old nodes or old configurations.
+            instances.values().removeIf(p -> p.index != index);
+            pools = new NodePools(index, pattern);
+            instances.put(pattern.pattern(), pools);
+        }
+        return pools;
+    }
+
+    private final NodeIndex index;
+    private final String[] names;
+    private final int[] poolIds;
+    private final int[] executors;
+    private final AtomicIntegerArray busy;
+
+    private NodePools(NodeIndex index, Pattern pattern) {
+        this.index = index;
+        List<Node> nodes = index.getNodes();
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        List<String> names = new ArrayList<String>();
+        this.poolIds = new int[nodes.size()];
+        for (int i = 0; i < nodes.size(); ++i) {
+            if (nodes.get(i) == null) {
+                // ids not used in the snapshot.
+                poolIds[i] = -1;
+                continue;
+            }
+            String name = getPoolName(nodes.get(i), pattern);
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                ids.put(name, id);
+                names.add(name);
+            }
+            poolIds[i] = id;
+        }
+        this.names = names.toArray(new String[0]);
+
+        this.executors = new int[this.names.length];
+        this.busy = new AtomicIntegerArray(this.names.length);
+        for (int i = 0; i < nodes.size(); ++i) {
+            Computer c = (nodes.get(i) != null) ? nodes.get(i).toComputer() : null;
+            if (c == null || !c.isOnline()) {
+                continue;
+            }
+            executors[poolIds[i]] += c.getNumExecutors();
+            busy.addAndGet(poolIds[i], ExecutorUsage.get().countBusy(c));
+        }
+    }
+
+    private static String getPoolName(Node node, Pattern pattern) {
+        String name = null;
+        for (LabelAtom atom : node.getAssignedLabels()) {
+            String label = atom.getName();
+            if (pattern.matcher(label).matches() && (name == null || label.compareTo(name) < 0)) {
+                name = label;
+            }
+        }
+        return (name != null) ? name : "";
+    }
+
+    /**
+     * @return the number of pools.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param node
+     * @return the id of the pool of the node. -1 if the node is not indexed yet.
+     */
+    public int getPool(Node node) {
+        int id = index.indexOf(node);
+        return (id >= 0) ? poolIds[id] : -1;
+    }
+
+    /**
+     * @param pool the id of the pool.
+     * @return the name of the pool.
+     */
+    public String getName(int pool) {
+        return names[pool];
+    }
+
+    /**
+     * @param pool the id of the pool.
+     * @return the number of executors of online nodes in the pool.
+     */
+    public int getExecutors(int pool) {
+        return executors[pool];
+    }
+
+    /**
+     * @param pool the id of the pool.
+     * @return the number of executors running builds in the pool.
+     */
+    public int getBusy(int pool) {
+        // builds started before the pools are built can finish.
+        return Math.max(busy.get(pool), 0);
+    }
+
+    /**
+     * @param pool the id of the pool.
+     * @return the number of idle executors in the pool.
+     */
+    public int getFree(int pool) {
+        return Math.max(getExecutors(pool) - getBusy(pool), 0);
+    }
+
+    private void update(Computer computer, int delta) {
+        Node node = computer.getNode();
+        if (node == null) {
+            return;
+        }
+        int pool = getPool(node);
+        if (pool >= 0) {
+            busy.addAndGet(pool, delta);
+        }
+    }
+
+    /**
+     * Updates the number of busy executors when builds start and finish.
+     */
+    @Extension
+    public static class ExecutorListenerImpl implements ExecutorListener {
+        @Override
+        public void taskAccepted(Executor executor, Queue.Task task) {
+            for (NodePools pools : instances.values()) {
+                pools.update(executor.getOwner(), 1);
+            }
+        }
+
+        @Override
+        public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+            for (NodePools pools : instances.values()) {
+                pools.update(executor.getOwner(), -1);
+            }
+        }
+
+        @Override
+        public void taskCompletedWithProblems(
+                Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+            for (NodePools pools : instances.values()) {
+                pools.update(executor.getOwner(), -1);
+            }
+        }
+    }
+}
@@ -24,23 +24,33 @@
 
 package jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.Extension;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.AutoCompletionCandidates;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Item;
 import hudson.model.Label;
 import hudson.model.labels.LabelExpression;
 import hudson.util.FormValidation;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
+import java.util.Calendar;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.NodeIndex;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.TimeWindow;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
+import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.verb.POST;
 
@@ -50,8 +60,17 @@ import org.kohsuke.stapler.verb.POST;
  * Used by {@link BuildPreferenceJobProperty}.
  */
 public class BuildPreference extends AbstractDescribableImpl<BuildPreference> {
+    private static final Logger LOGGER = Logger.getLogger(BuildPreference.class.getName());
+
     private String labelExpression;
 
+    /**
+     * The label parsed from {@link #labelExpression}.
+     *
+     * Also holds invalid expressions not to parse them and warn in each scheduling.
+     */
+    private transient volatile CompiledLabel compiledLabel;
+
     /**
      * Returns the label expression to determine target nodes.
      *
@@ -72,6 +91,147 @@ public class BuildPreference extends AbstractDescribableImpl<BuildPreference> {
         return preference;
     }
 
+    private List<ParameterCondition> parameterConditionList;
+
+    /**
+     * Returns conditions on build parameters to apply this preference.
+     *
+     * @return the list of conditions. can be null.
+     */
+    public List<ParameterCondition> getParameterConditionList() {
+        return parameterConditionList;
+    }
+
+    /**
+     * @param parameterConditionList conditions on build parameters to apply this preference.
+     */
+    @DataBoundSetter
+    public void setParameterConditionList(List<ParameterCondition> parameterConditionList) {
+        this.parameterConditionList =
+                (parameterConditionList == null || parameterConditionList.isEmpty()) ? null : parameterConditionList;
+    }
+
+    /**
+     * Returns whether build parameters satisfy all conditions of this preference.
+     *
+     * @param parameters parameter values of the build, keyed by names.
+     * @return whether this preference is applied to the build.
+     */
+    public boolean matchesParameters(Map<String, String> parameters) {
+        if (parameterConditionList == null) {
+            return true;
+        }
+        for (ParameterCondition cond : parameterConditionList) {
+            if (!cond.matches(parameters)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String timeWindow;
+
+    /**
+     * The time window compiled from {@link #timeWindow}.
+     */
+    private transient volatile TimeWindow compiledTimeWindow;
+
+    /**
+     * Returns the time window when this preference is applied.
+     *
+     * @return the time window in cron syntax. null for always.
+     */
+    public String getTimeWindow() {
+        return timeWindow;
+    }
+
+    /**
+     * @param timeWindow the time window when this preference is applied, in cron syntax.
+     */
+    @DataBoundSetter
+    public void setTimeWindow(String timeWindow) {
+        this.timeWindow = (timeWindow == null || timeWindow.isBlank()) ? null : timeWindow.trim();
+        this.compiledTimeWindow = TimeWindow.compile(this.timeWindow);
+    }
+
+    /**
+     * Returns whether this preference is applied at the time.
+     *
+     * @param now the time to test.
+     * @return whether this preference is applied.
+     */
+    public boolean isActive(Calendar now) {
+        TimeWindow window = compiledTimeWindow;
+        return window == null || window.isActive(now);
+    }
+
+    /**
+     * Compiles the time window when loaded.
+     *
+     * @return this object
+     */
+    protected Object readResolve() {
+        compiledTimeWindow = TimeWindow.compile(timeWindow);
+        return this;
+    }
+
+    /**
+     * Returns the label parsed from the label expression.
+     *
+     * The label expression is parsed only once.
+     * An invalid expression is reported only when parsed.
+     *
+     * @return the label. null if the label expression is invalid.
+     */
+    @CheckForNull
+    public Label getLabel() {
+        return getLabel(null);
+    }
+
+    /**
+     * Returns the label parsed from the label expression.
+     *
+     * Call this where the configuration is known,
+     * so that administrators can find where an invalid expression is configured.
+     *
+     * @param configuredIn where this preference is configured (e.g. the full name of the project). can be null.
+     * @return the label. null if the label expression is invalid.
+     */
+    @CheckForNull
+    public Label getLabel(@CheckForNull String configuredIn) {
+        CompiledLabel compiled = compiledLabel;
+        if (compiled == null) {
+            compiled = CompiledLabel.compile(getLabelExpression(), configuredIn);
+            compiledLabel = compiled;
+        }
+        return compiled.label;
+    }
+
+    /**
+     * Result of parsing a label expression.
+     */
+    private static class CompiledLabel {
+        private final Label label;
+
+        private CompiledLabel(Label label) {
+            this.label = label;
+        }
+
+        private static CompiledLabel compile(String labelExpression, String configuredIn) {
+            try {
+                return new CompiledLabel(LabelExpression.parseExpression(labelExpression));
+            } catch (IllegalArgumentException e) {
+                LOGGER.log(
+                        Level.WARNING,
+                        String.format(
+                                "Skipped an invalid label: %s (configured in %s)",
+                                labelExpression, (configuredIn != null) ? configuredIn : "unknown"),
+                        e);
+                return new CompiledLabel(null);
+            }
+        }
+    }
+
     /**
      * Constructor.
      *
@@ -90,7 +250,26 @@ public class BuildPreference extends AbstractDescribableImpl<BuildPreference> {
      * Manages view for {@link BuildPreference}.
      */
     @Extension
+    @Symbol("buildPreference")
     public static class DescriptorImpl extends Descriptor<BuildPreference> {
+        /**
+         * The maximum number of labels to suggest.
+         */
+        private static final int MAX_AUTO_COMPLETION_CANDIDATES = 100;
+
+        /**
+         * How long results of validation of label expressions are reused in milliseconds.
+         */
+        private static final long VALIDATION_CACHE_TTL = TimeUnit.SECONDS.toMillis(10);
+
+        /**
+         * The maximum number of label expressions to hold results of validation.
+         */
+        private static final int MAX_VALIDATION_CACHE_SIZE = 1000;
+
+        private final transient Map<String, CachedValidation> validationCache =
+                new ConcurrentHashMap<String, CachedValidation>();
+
         /**
          * Returns the name to display.
          *
@@ -126,9 +305,6 @@ public class BuildPreference extends AbstractDescribableImpl<BuildPreference> {
                 return c;
             }
 
-            // candidate labels
-            Set<Label> labels = Jenkins.get().getLabels();
-
             // current inputting value
             StringTokenizer t = new StringTokenizer(value);
             String currentValue = null;
@@ -140,16 +316,8 @@ public class BuildPreference extends AbstractDescribableImpl<BuildPreference> {
                 return c;
             }
 
-            List<String> cands = new ArrayList<String>();
-
-            for (Label l : labels) {
-                if (l.getName().startsWith(currentValue)) {
-                    cands.add(l.getName());
-                }
-            }
-
-            Collections.sort(cands);
-            for (String s : cands) {
+            // labels used by more nodes come first.
+            for (String s : NodeIndex.get().findLabels(currentValue, MAX_AUTO_COMPLETION_CANDIDATES)) {
                 c.add(s);
             }
 
@@ -175,15 +343,66 @@ public class BuildPreference extends AbstractDescribableImpl<BuildPreference> {
                 return FormValidation.error(Messages.BuildPreference_labelExpression_requied());
             }
 
+            // many users can validate same expressions in a short time.
+            String expr = value.trim();
+            NodeIndex index = NodeIndex.get();
+            long now = System.currentTimeMillis();
+            CachedValidation cached = validationCache.get(expr);
+            if (cached != null && cached.index == index && now - cached.timestamp < VALIDATION_CACHE_TTL) {
+                return cached.result;
+            }
+
+            if (validationCache.size() >= MAX_VALIDATION_CACHE_SIZE) {
+                validationCache.clear();
+            }
+            FormValidation result = validateLabelExpression(expr, index);
+            validationCache.put(expr, new CachedValidation(index, now, result));
+            return result;
+        }
+
+        private static FormValidation validateLabelExpression(String value, NodeIndex index) {
+            Label l;
             try {
-                Label l = LabelExpression.parseExpression(value);
-                if (l.getNodes().isEmpty()) {
-                    return FormValidation.warning(Messages.BuildPreference_labelExpression_empty());
-                }
+                l = LabelExpression.parseExpression(value);
             } catch (IllegalArgumentException e) {
                 return FormValidation.error(e, Messages.BuildPreference_labelExpression_invalid());
             }
-            return FormValidation.ok();
+
+            // expressions typed in forms are not cached in the index.
+            BitSet ids = index.evaluate(l);
+            if (ids.isEmpty()) {
+                return FormValidation.warning(Messages.BuildPreference_labelExpression_empty());
+            }
+
+            int online = 0;
+            int freeExecutors = 0;
+            for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+                Computer c = index.getNodes().get(id).toComputer();
+                if (c == null || !c.isOnline()) {
+                    continue;
+                }
+                ++online;
+                if (c.isAcceptingTasks()) {
+                    freeExecutors += c.countIdle();
+                }
+            }
+            return FormValidation.ok(
+                    Messages.BuildPreference_labelExpression_matched(ids.cardinality(), online, freeExecutors));
+        }
+
+        /**
+         * A result of validation of a label expression.
+         */
+        private static class CachedValidation {
+            private final NodeIndex index;
+            private final long timestamp;
+            private final FormValidation result;
+
+            private CachedValidation(NodeIndex index, long timestamp, FormValidation result) {
+                this.index = index;
+                this.timestamp = timestamp;
+                this.result = result;
+            }
         }
 
         @POST
@@ -191,5 +410,17 @@ public class BuildPreference extends AbstractDescribableImpl<BuildPreference> {
             Jenkins.get().checkPermission(Jenkins.READ);
             return ValidationUtil.doCheckInteger(value);
         }
+
+        /**
+         * Verify the input time window
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckTimeWindow(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return TimeWindow.doCheck(value);
+        }
     }
 }
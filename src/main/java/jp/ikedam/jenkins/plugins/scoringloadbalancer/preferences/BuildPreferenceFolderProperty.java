@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderProperty;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderPropertyDescriptor;
+import hudson.Extension;
+import hudson.model.ItemGroup;
+import java.util.List;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Holds configuration that which nodes are preferred by projects in a folder.
+ *
+ * Applied to all projects in the folder, including ones in sub folders.
+ */
+public class BuildPreferenceFolderProperty extends AbstractFolderProperty<AbstractFolder<?>> {
+    /**
+     * Property name used for folder configuration page.
+     */
+    public static final String PROPERTYNAME = "build_preference_folder_property";
+
+    private List<BuildPreference> buildPreferenceList;
+
+    /**
+     * Returns the list of preferences.
+     *
+     * @return the list of preferences
+     */
+    public List<BuildPreference> getBuildPreferenceList() {
+        return buildPreferenceList;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param buildPreferenceList
+     */
+    @DataBoundConstructor
+    public BuildPreferenceFolderProperty(List<BuildPreference> buildPreferenceList) {
+        this.buildPreferenceList = buildPreferenceList;
+    }
+
+    /**
+     * Parses label expressions when the folder is configured or loaded,
+     * not to parse them in each scheduling.
+     *
+     * @param owner
+     * @see com.cloudbees.hudson.plugins.folder.AbstractFolderProperty#setOwner(com.cloudbees.hudson.plugins.folder.AbstractFolder)
+     */
+    @Override
+    protected void setOwner(AbstractFolder<?> owner) {
+        super.setOwner(owner);
+        if (buildPreferenceList == null) {
+            return;
+        }
+        for (BuildPreference pref : buildPreferenceList) {
+            pref.getLabel(owner.getFullName());
+        }
+    }
+
+    /**
+     * Collects preferences configured in the folder and its ancestors.
+     *
+     * Call only when Folders plugin is installed.
+     *
+     * @param parent the folder containing the project
+     * @param result the list to add preferences to
+     */
+    static void collectBuildPreferences(ItemGroup<?> parent, List<BuildPreference> result) {
+        while (parent instanceof AbstractFolder) {
+            AbstractFolder<?> folder = (AbstractFolder<?>) parent;
+            BuildPreferenceFolderProperty prop = folder.getProperties().get(BuildPreferenceFolderProperty.class);
+            if (prop != null && prop.getBuildPreferenceList() != null) {
+                result.addAll(prop.getBuildPreferenceList());
+            }
+            parent = folder.getParent();
+        }
+    }
+
+    /**
+     * Manages views for {@link BuildPreferenceFolderProperty}
+     */
+    @Extension(optional = true)
+    public static class DescriptorImpl extends AbstractFolderPropertyDescriptor {
+        /**
+         * Returns the property name to hold configuration of {@link BuildPreferenceFolderProperty}
+         *
+         * @return the property name
+         */
+        public String getPropertyName() {
+            return PROPERTYNAME;
+        }
+
+        /**
+         * Returns the name to display
+         *
+         * Displayed in Folder Configuration page as a property name.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.BuildPreferenceFolderProperty_DisplayName();
+        }
+
+        /**
+         * Create a new instance {@link BuildPreferenceFolderProperty}
+         * from configurations specified by a user in Folder Configuration page.
+         *
+         * @param req
+         * @param formData
+         * @return
+         * @throws hudson.model.Descriptor.FormException
+         * @see hudson.model.Descriptor#newInstance(org.kohsuke.stapler.StaplerRequest, net.sf.json.JSONObject)
+         */
+        @Override
+        public BuildPreferenceFolderProperty newInstance(StaplerRequest req, JSONObject formData)
+                throws hudson.model.Descriptor.FormException {
+            if (formData == null || formData.isNullObject()) {
+                return null;
+            }
+            JSONObject form = formData.getJSONObject(getPropertyName());
+            if (form == null || form.isNullObject()) {
+                return null;
+            }
+            return (BuildPreferenceFolderProperty) super.newInstance(req, form);
+        }
+    }
+}
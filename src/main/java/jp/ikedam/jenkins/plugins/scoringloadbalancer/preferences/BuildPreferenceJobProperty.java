@@ -25,18 +25,22 @@
 package jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences;
 
 import hudson.Extension;
-import hudson.model.AbstractProject;
+import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
 import java.util.List;
 import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 
 /**
  * Holds configuration that which nodes are preferred by a project.
+ *
+ * Applicable to any type of projects including Pipeline jobs,
+ * where it can be configured with {@code properties([buildPreferences(...)])}.
  */
-public class BuildPreferenceJobProperty extends JobProperty<AbstractProject<?, ?>> {
+public class BuildPreferenceJobProperty extends JobProperty<Job<?, ?>> {
     /**
      * Property name used for job configuration page.
      */
@@ -67,10 +71,29 @@ public class BuildPreferenceJobProperty extends JobProperty<AbstractProject<?, ?
         this.buildPreferenceList = buildPreferenceList;
     }
 
+    /**
+     * Parses label expressions when the project is configured or loaded,
+     * not to parse them in each scheduling.
+     *
+     * @param owner
+     * @see hudson.model.JobProperty#setOwner(hudson.model.Job)
+     */
+    @Override
+    protected void setOwner(Job<?, ?> owner) {
+        super.setOwner(owner);
+        if (buildPreferenceList == null) {
+            return;
+        }
+        for (BuildPreference pref : buildPreferenceList) {
+            pref.getLabel(owner.getFullName());
+        }
+    }
+
     /**
      * Manages views for {@link BuildPreferenceJobProperty}
      */
     @Extension
+    @Symbol("buildPreferences")
     public static class DescriptorImpl extends JobPropertyDescriptor {
         /**
          * Returns the property name to hold configuration of {@link BuildPreferenceJobProperty}
@@ -24,14 +24,18 @@
 
 package jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.Extension;
 import hudson.model.Node;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.NodePropertyDescriptor;
 import hudson.util.FormValidation;
+import java.util.Calendar;
 import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.TimeWindow;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.verb.POST;
 
@@ -52,6 +56,62 @@ public class BuildPreferenceNodeProperty extends NodeProperty<Node> {
         return preference;
     }
 
+    private String timeWindow;
+
+    /**
+     * The time window compiled from {@link #timeWindow}.
+     */
+    private transient volatile TimeWindow compiledTimeWindow;
+
+    /**
+     * Returns the time window when this preference is applied.
+     *
+     * @return the time window in cron syntax. null for always.
+     */
+    public String getTimeWindow() {
+        return timeWindow;
+    }
+
+    /**
+     * @param timeWindow the time window when this preference is applied, in cron syntax.
+     */
+    @DataBoundSetter
+    public void setTimeWindow(String timeWindow) {
+        this.timeWindow = (timeWindow == null || timeWindow.isBlank()) ? null : timeWindow.trim();
+        this.compiledTimeWindow = TimeWindow.compile(this.timeWindow);
+    }
+
+    /**
+     * Returns whether this preference is applied at the time.
+     *
+     * @param now the time to test.
+     * @return whether this preference is applied.
+     */
+    public boolean isActive(Calendar now) {
+        TimeWindow window = compiledTimeWindow;
+        return window == null || window.isActive(now);
+    }
+
+    /**
+     * Returns the time window compiled from {@link #getTimeWindow()}.
+     *
+     * @return the compiled time window. null for always.
+     */
+    @CheckForNull
+    public TimeWindow getCompiledTimeWindow() {
+        return compiledTimeWindow;
+    }
+
+    /**
+     * Compiles the time window when loaded.
+     *
+     * @return this object
+     */
+    protected Object readResolve() {
+        compiledTimeWindow = TimeWindow.compile(timeWindow);
+        return this;
+    }
+
     /**
      * Constructor.
      *
@@ -93,5 +153,17 @@ public class BuildPreferenceNodeProperty extends NodeProperty<Node> {
             Jenkins.get().checkPermission(Jenkins.READ);
             return ValidationUtil.doCheckInteger(value);
         }
+
+        /**
+         * Verify an input time window.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckTimeWindow(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return TimeWindow.doCheck(value);
+        }
     }
 }
@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.model.queue.SubTask;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.TaskUtil;
+
+/**
+ * Resolves preferences applied to a project into a flat list.
+ *
+ * Preferences are collected from following configurations, and cached for each project:
+ * <ol>
+ *   <li>{@link BuildPreferenceJobProperty} of the project</li>
+ *   <li>{@link BuildPreferenceFolderProperty} of folders containing the project</li>
+ *   <li>{@link JobNameBuildPreference}s configured globally</li>
+ * </ol>
+ * A cached list is discarded when the project or a folder containing it is reconfigured, moved or removed.
+ */
+public class BuildPreferenceResolver {
+    /**
+     * Resolvers in use, to discard their caches when projects or folders are changed.
+     */
+    private static final Set<BuildPreferenceResolver> resolvers = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<BuildPreferenceResolver, Boolean>()));
+
+    private final List<JobNameBuildPreference> jobNameBuildPreferenceList;
+    private final Map<String, List<BuildPreference>> cache = new ConcurrentHashMap<String, List<BuildPreference>>();
+
+    /**
+     * Constructor.
+     *
+     * @param jobNameBuildPreferenceList preferences configured globally. can be null.
+     */
+    public BuildPreferenceResolver(List<JobNameBuildPreference> jobNameBuildPreferenceList) {
+        this.jobNameBuildPreferenceList = (jobNameBuildPreferenceList != null)
+                ? jobNameBuildPreferenceList
+                : Collections.<JobNameBuildPreference>emptyList();
+        resolvers.add(this);
+    }
+
+    /**
+     * Returns preferences applied to the subtask.
+     *
+     * Do not modify the returned list.
+     *
+     * @param subtask
+     * @return preferences applied to the subtask. empty if the subtask does not belong to a project.
+     */
+    public List<BuildPreference> resolve(SubTask subtask) {
+        Job<?, ?> job = TaskUtil.getJob(subtask);
+        if (job == null) {
+            return Collections.emptyList();
+        }
+
+        // a project discarded while collecting is removed after collected.
+        return cache.computeIfAbsent(job.getFullName(), k -> collectBuildPreferences(job));
+    }
+
+    private List<BuildPreference> collectBuildPreferences(Job<?, ?> job) {
+        List<BuildPreference> result = new ArrayList<BuildPreference>();
+
+        BuildPreferenceJobProperty prop = job.getProperty(BuildPreferenceJobProperty.class);
+        if (prop != null && prop.getBuildPreferenceList() != null) {
+            result.addAll(prop.getBuildPreferenceList());
+        }
+
+        if (Jenkins.get().getPlugin("cloudbees-folder") != null) {
+            BuildPreferenceFolderProperty.collectBuildPreferences(job.getParent(), result);
+        }
+
+        // parse labels here not to parse them in scheduling.
+        // those of folders are already parsed with their names.
+        for (BuildPreference pref : result) {
+            pref.getLabel(job.getFullName());
+        }
+
+        for (JobNameBuildPreference pref : jobNameBuildPreferenceList) {
+            if (pref.isApplicable(job)) {
+                pref.getLabel("the global configuration");
+                result.add(pref);
+            }
+        }
+
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Discards all cached preferences.
+     */
+    public static void invalidate() {
+        for (BuildPreferenceResolver resolver : getResolvers()) {
+            resolver.cache.clear();
+        }
+    }
+
+    /**
+     * Discards cached preferences of the item, and of items in it if it is a folder.
+     *
+     * @param fullName the full name of the item.
+     * @param group whether the item can contain other items.
+     */
+    static void invalidate(String fullName, boolean group) {
+        String prefix = fullName + "/";
+        for (BuildPreferenceResolver resolver : getResolvers()) {
+            resolver.cache.remove(fullName);
+            if (group) {
+                resolver.cache.keySet().removeIf(name -> name.startsWith(prefix));
+            }
+        }
+    }
+
+    private static void invalidate(Item item) {
+        invalidate(item.getFullName(), item instanceof ItemGroup);
+    }
+
+    private static List<BuildPreferenceResolver> getResolvers() {
+        synchronized (resolvers) {
+            return new ArrayList<BuildPreferenceResolver>(resolvers);
+        }
+    }
+
+    /**
+     * Discards cached preferences when projects or folders are reconfigured.
+     */
+    @Extension
+    public static class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Item) {
+                invalidate((Item) o);
+            }
+        }
+    }
+
+    /**
+     * Discards cached preferences when projects or folders are moved or removed.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onUpdated(Item item) {
+            invalidate(item);
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            invalidate(item);
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            invalidate(oldFullName, item instanceof ItemGroup);
+            invalidate(newFullName, item instanceof ItemGroup);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.util.FormValidation;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * {@link BuildPreference} applied to projects whose full names match a pattern.
+ *
+ * Configured globally in "Scoring by Node Preferences".
+ */
+public class JobNameBuildPreference extends BuildPreference {
+    private static final Logger LOGGER = Logger.getLogger(JobNameBuildPreference.class.getName());
+
+    private String jobNamePattern;
+
+    /**
+     * The pattern compiled from {@link #jobNamePattern}.
+     * {@link #NEVER_MATCH} if the pattern is invalid.
+     */
+    private transient volatile Pattern compiledJobNamePattern;
+
+    private static final Pattern NEVER_MATCH = Pattern.compile("(?!)");
+
+    /**
+     * Returns the regular expression for full names of target projects.
+     *
+     * @return the regular expression for full names of projects
+     */
+    public String getJobNamePattern() {
+        return jobNamePattern;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param jobNamePattern
+     * @param labelExpression
+     * @param preference
+     */
+    @DataBoundConstructor
+    public JobNameBuildPreference(String jobNamePattern, String labelExpression, int preference) {
+        super(labelExpression, preference);
+        this.jobNamePattern = jobNamePattern == null ? null : jobNamePattern.trim();
+    }
+
+    /**
+     * Returns whether this preference is applied to the project.
+     *
+     * @param job
+     * @return whether this preference is applied to the project
+     */
+    public boolean isApplicable(Job<?, ?> job) {
+        Pattern p = compiledJobNamePattern;
+        if (p == null) {
+            p = compileJobNamePattern(getJobNamePattern());
+            compiledJobNamePattern = p;
+        }
+        return p.matcher(job.getFullName()).matches();
+    }
+
+    private static Pattern compileJobNamePattern(String jobNamePattern) {
+        if (jobNamePattern == null || jobNamePattern.isEmpty()) {
+            return NEVER_MATCH;
+        }
+        try {
+            return Pattern.compile(jobNamePattern);
+        } catch (PatternSyntaxException e) {
+            LOGGER.log(Level.WARNING, String.format("Skipped an invalid job name pattern: %s", jobNamePattern), e);
+            return NEVER_MATCH;
+        }
+    }
+
+    /**
+     * Manages view for {@link JobNameBuildPreference}.
+     */
+    @Extension
+    public static class DescriptorImpl extends BuildPreference.DescriptorImpl {
+        /**
+         * Returns the name to display.
+         *
+         * Never used.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return "Preference for Nodes used in Building Projects Matching Names";
+        }
+
+        /**
+         * Verify the input job name pattern
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckJobNamePattern(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            if (value == null || value.isBlank()) {
+                return FormValidation.error(Messages.JobNameBuildPreference_jobNamePattern_required());
+            }
+            try {
+                Pattern.compile(value.trim());
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(e, Messages.JobNameBuildPreference_jobNamePattern_invalid());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.util.FormValidation;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import jenkins.model.Jenkins;
+import org.jvnet.localizer.Localizable;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * A condition on a build parameter to apply a {@link BuildPreference}.
+ *
+ * The condition is compiled when configured or loaded,
+ * and only evaluated against parameter values in scheduling.
+ */
+public class ParameterCondition extends AbstractDescribableImpl<ParameterCondition> {
+    private static final Logger LOGGER = Logger.getLogger(ParameterCondition.class.getName());
+
+    /**
+     * How to match a parameter value.
+     */
+    public enum MatchType {
+        /**
+         * Matches if the value is equal to the configured one.
+         */
+        EXACT(Messages._ParameterCondition_MatchType_EXACT()),
+        /**
+         * Matches if the whole value matches the configured regular expression.
+         */
+        REGEX(Messages._ParameterCondition_MatchType_REGEX()),
+        /**
+         * Matches if the value is a number in the configured range, like "1..10".
+         * Either of bounds can be omitted, and bounds are inclusive.
+         */
+        RANGE(Messages._ParameterCondition_MatchType_RANGE());
+
+        private final Localizable displayName;
+
+        MatchType(Localizable displayName) {
+            this.displayName = displayName;
+        }
+
+        /**
+         * @return the name to display
+         */
+        public String getDisplayName() {
+            return displayName.toString();
+        }
+    }
+
+    private static final String RANGE_SEPARATOR = "..";
+
+    private static final Predicate<String> NEVER_MATCH = v -> false;
+
+    private String parameterName;
+    private MatchType matchType;
+    private String value;
+
+    /**
+     * The matcher compiled from {@link #matchType} and {@link #value}.
+     */
+    private transient Predicate<String> matcher;
+
+    /**
+     * Returns the name of the parameter to test.
+     *
+     * @return the name of the parameter
+     */
+    public String getParameterName() {
+        return parameterName;
+    }
+
+    /**
+     * Returns how to match the parameter value.
+     *
+     * @return how to match the parameter value
+     */
+    public MatchType getMatchType() {
+        return (matchType != null) ? matchType : MatchType.EXACT;
+    }
+
+    /**
+     * Returns the value to match.
+     *
+     * @return the value, the regular expression, or the range to match
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param parameterName
+     * @param matchType
+     * @param value
+     */
+    @DataBoundConstructor
+    public ParameterCondition(String parameterName, MatchType matchType, String value) {
+        this.parameterName = parameterName == null ? null : parameterName.trim();
+        this.matchType = matchType;
+        this.value = value;
+        this.matcher = compile(getMatchType(), value);
+    }
+
+    /**
+     * Compiles the condition when loaded.
+     *
+     * @return this object
+     */
+    protected Object readResolve() {
+        matcher = compile(getMatchType(), value);
+        return this;
+    }
+
+    /**
+     * Returns whether the parameter satisfies this condition.
+     *
+     * @param parameters parameter values of the build, keyed by names.
+     * @return whether the parameter satisfies this condition. false if the parameter is not defined.
+     */
+    public boolean matches(Map<String, String> parameters) {
+        String v = parameters.get(getParameterName());
+        if (v == null) {
+            return false;
+        }
+        return matcher.test(v);
+    }
+
+    private static Predicate<String> compile(MatchType matchType, String value) {
+        if (value == null) {
+            return NEVER_MATCH;
+        }
+        try {
+            switch (matchType) {
+                case REGEX:
+                    Pattern p = Pattern.compile(value);
+                    return v -> p.matcher(v).matches();
+                case RANGE:
+                    return compileRange(value);
+                case EXACT:
+                default:
+                    return value::equals;
+            }
+        } catch (IllegalArgumentException e) {
+            // PatternSyntaxException and NumberFormatException
+            LOGGER.log(Level.WARNING, String.format("Skipped an invalid parameter condition: %s", value), e);
+            return NEVER_MATCH;
+        }
+    }
+
+    private static Predicate<String> compileRange(String range) {
+        int pos = range.indexOf(RANGE_SEPARATOR);
+        if (pos < 0) {
+            throw new NumberFormatException(String.format("No %s in %s", RANGE_SEPARATOR, range));
+        }
+        String minStr = range.substring(0, pos).trim();
+        String maxStr = range.substring(pos + RANGE_SEPARATOR.length()).trim();
+        double min = minStr.isEmpty() ? Double.NEGATIVE_INFINITY : Double.parseDouble(minStr);
+        double max = maxStr.isEmpty() ? Double.POSITIVE_INFINITY : Double.parseDouble(maxStr);
+        return v -> {
+            double d;
+            try {
+                d = Double.parseDouble(v.trim());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            return min <= d && d <= max;
+        };
+    }
+
+    /**
+     * Returns parameter values of the queue item.
+     *
+     * @param item the queue item. can be null.
+     * @return parameter values keyed by names. values of parameters without string representations are not contained.
+     */
+    public static Map<String, String> getParameterValues(@CheckForNull Queue.Item item) {
+        if (item == null) {
+            return Collections.emptyMap();
+        }
+        ParametersAction action = item.getAction(ParametersAction.class);
+        if (action == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> parameters = new HashMap<String, String>();
+        for (ParameterValue pv : action.getParameters()) {
+            Object v = pv.getValue();
+            if (v != null) {
+                parameters.put(pv.getName(), v.toString());
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Manages view for {@link ParameterCondition}.
+     */
+    @Extension
+    public static class DescriptorImpl extends Descriptor<ParameterCondition> {
+        /**
+         * Returns the name to display.
+         *
+         * Never used.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return "Condition on a Build Parameter";
+        }
+
+        /**
+         * Verify the input parameter name
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckParameterName(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            if (value == null || value.isBlank()) {
+                return FormValidation.error(Messages.ParameterCondition_parameterName_required());
+            }
+            return FormValidation.ok();
+        }
+
+        /**
+         * Verify the input value
+         *
+         * @param value
+         * @param matchType
+         * @return
+         */
+        @POST
+        public FormValidation doCheckValue(@QueryParameter String value, @QueryParameter String matchType) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            if (value == null) {
+                return FormValidation.ok();
+            }
+            try {
+                if (MatchType.REGEX.name().equals(matchType)) {
+                    Pattern.compile(value);
+                } else if (MatchType.RANGE.name().equals(matchType)) {
+                    compileRange(value);
+                }
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(e, Messages.ParameterCondition_value_invalidRegex());
+            } catch (NumberFormatException e) {
+                return FormValidation.error(Messages.ParameterCondition_value_invalidRange());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.resources;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.ExecutorListener;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.queue.SubTask;
+import hudson.model.queue.WorkUnit;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.AssignmentKey;
+
+/**
+ * Tracks resources reserved by builds on each computer.
+ *
+ * Maintained with events, not by scanning executors:
+ * <ul>
+ *   <li>Resources are counted as assigned when the load balancer decides nodes of builds.</li>
+ *   <li>They become reserved when executors accept the builds.</li>
+ *   <li>They are released when the builds complete.</li>
+ * </ul>
+ * Counting assigned builds prevents builds scheduled in succession
+ * from being placed on the same node beyond its capacity.
+ * Assigned builds never accepted (e.g. the node went offline) are discarded after a while.
+ */
+public class ReservationLedger {
+    private static final ReservationLedger INSTANCE = new ReservationLedger();
+
+    /**
+     * How long assigned builds are counted without being accepted by executors.
+     */
+    private static final long ASSIGNMENT_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * @return the ledger.
+     */
+    public static ReservationLedger get() {
+        return INSTANCE;
+    }
+
+    private final Map<Executor, Reservation> reservations = new ConcurrentHashMap<Executor, Reservation>();
+    private final Map<AssignmentKey, Reservation> assignments = new ConcurrentHashMap<AssignmentKey, Reservation>();
+    private final Map<Computer, Resources> reserved = new ConcurrentHashMap<Computer, Resources>();
+
+    /**
+     * Counts resources for a subtask assigned to the computer but not yet accepted.
+     *
+     * @param itemId the id of the queue item.
+     * @param work the subtask.
+     * @param computer the computer to run the subtask.
+     * @param resources resources required by the subtask.
+     */
+    public void assign(long itemId, SubTask work, Computer computer, Resources resources) {
+        if (resources.isZero()) {
+            return;
+        }
+        Reservation reservation = new Reservation(computer, resources);
+        Reservation old = assignments.put(new AssignmentKey(itemId, work), reservation);
+        if (old != null) {
+            subtract(old);
+        }
+        reserved.merge(computer, resources, Resources::add);
+    }
+
+    /**
+     * Reserves resources for a build on the executor.
+     *
+     * @param executor the executor running the build.
+     * @param itemId the id of the queue item.
+     * @param work the subtask.
+     * @param resources resources to reserve.
+     */
+    public void reserve(Executor executor, long itemId, SubTask work, Resources resources) {
+        Reservation assigned = assignments.remove(new AssignmentKey(itemId, work));
+        if (assigned != null) {
+            subtract(assigned);
+        }
+        if (resources.isZero()) {
+            return;
+        }
+        Computer computer = executor.getOwner();
+        if (reservations.putIfAbsent(executor, new Reservation(computer, resources)) == null) {
+            reserved.merge(computer, resources, Resources::add);
+        }
+    }
+
+    /**
+     * Releases resources reserved for a build on the executor.
+     *
+     * @param executor the executor running the build.
+     */
+    public void release(Executor executor) {
+        Reservation reservation = reservations.remove(executor);
+        if (reservation != null) {
+            subtract(reservation);
+        }
+    }
+
+    /**
+     * Discards assigned builds not accepted in time.
+     */
+    void expire() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<AssignmentKey, Reservation> e : assignments.entrySet()) {
+            if (now - e.getValue().timestamp > ASSIGNMENT_TIMEOUT && assignments.remove(e.getKey(), e.getValue())) {
+                subtract(e.getValue());
+            }
+        }
+    }
+
+    private void subtract(Reservation reservation) {
+        reserved.computeIfPresent(reservation.computer, (c, r) -> {
+            Resources left = r.subtract(reservation.resources);
+            return left.isZero() ? null : left;
+        });
+    }
+
+    /**
+     * Returns resources reserved on the computer.
+     *
+     * Includes builds assigned to executors but not yet started.
+     *
+     * @param computer
+     * @return resources reserved on the computer.
+     */
+    public Resources getReserved(Computer computer) {
+        return reserved.getOrDefault(computer, Resources.ZERO);
+    }
+
+    /**
+     * Resources reserved by a build.
+     */
+    private static class Reservation {
+        private final Computer computer;
+        private final Resources resources;
+        private final long timestamp = System.currentTimeMillis();
+
+        private Reservation(Computer computer, Resources resources) {
+            this.computer = computer;
+            this.resources = resources;
+        }
+    }
+
+    /**
+     * Updates the ledger when builds start and complete.
+     */
+    @Extension
+    public static class ExecutorListenerImpl implements ExecutorListener {
+        @Override
+        public void taskAccepted(Executor executor, Queue.Task task) {
+            WorkUnit wu = executor.getCurrentWorkUnit();
+            if (wu == null) {
+                return;
+            }
+            get().reserve(
+                    executor, wu.context.item.getId(), wu.work, ResourceRequirementJobProperty.getRequirement(wu.work));
+        }
+
+        @Override
+        public void taskCompleted(Executor executor, Queue.Task task, long durationMS) {
+            get().release(executor);
+        }
+
+        @Override
+        public void taskCompletedWithProblems(
+                Executor executor, Queue.Task task, long durationMS, Throwable problems) {
+            get().release(executor);
+        }
+    }
+
+    /**
+     * Discards assigned builds not accepted in time.
+     */
+    @Extension
+    public static class ExpirationWork extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return ASSIGNMENT_TIMEOUT;
+        }
+
+        @Override
+        protected void doRun() {
+            get().expire();
+        }
+    }
+}
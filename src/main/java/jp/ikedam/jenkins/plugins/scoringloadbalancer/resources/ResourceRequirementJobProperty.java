@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.resources;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.JobProperty;
+import hudson.model.JobPropertyDescriptor;
+import hudson.model.queue.SubTask;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.TaskUtil;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
+import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Holds resources required by each build of a project.
+ */
+public class ResourceRequirementJobProperty extends JobProperty<Job<?, ?>> {
+    /**
+     * Property name used for job configuration page.
+     */
+    public static final String PROPERTYNAME = "resource_requirement_job_property";
+
+    private int cpu;
+    private int memory;
+    private int disk;
+
+    /**
+     * @return the number of CPU cores.
+     */
+    public int getCpu() {
+        return cpu;
+    }
+
+    /**
+     * @return the amount of memory in MB.
+     */
+    public int getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return the amount of disk space in MB.
+     */
+    public int getDisk() {
+        return disk;
+    }
+
+    /**
+     * @return resources required by a build.
+     */
+    public Resources getRequirement() {
+        return new Resources(getCpu(), getMemory(), getDisk());
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param cpu
+     * @param memory
+     * @param disk
+     */
+    @DataBoundConstructor
+    public ResourceRequirementJobProperty(int cpu, int memory, int disk) {
+        this.cpu = cpu;
+        this.memory = memory;
+        this.disk = disk;
+    }
+
+    /**
+     * Returns resources required by the subtask.
+     *
+     * @param subtask
+     * @return resources required by the subtask. {@link Resources#ZERO} if not configured.
+     */
+    public static Resources getRequirement(SubTask subtask) {
+        Job<?, ?> job = TaskUtil.getJob(subtask);
+        if (job == null) {
+            return Resources.ZERO;
+        }
+        ResourceRequirementJobProperty prop = job.getProperty(ResourceRequirementJobProperty.class);
+        return (prop != null) ? prop.getRequirement() : Resources.ZERO;
+    }
+
+    /**
+     * Manages views for {@link ResourceRequirementJobProperty}
+     */
+    @Extension
+    @Symbol("resourceRequirement")
+    public static class DescriptorImpl extends JobPropertyDescriptor {
+        /**
+         * Returns the property name to hold configuration of {@link ResourceRequirementJobProperty}
+         *
+         * @return the property name
+         */
+        public String getPropertyName() {
+            return PROPERTYNAME;
+        }
+
+        /**
+         * Returns the name to display
+         *
+         * Displayed in Project Configuration page as a property name.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.ResourceRequirementJobProperty_DisplayName();
+        }
+
+        /**
+         * Create a new instance {@link ResourceRequirementJobProperty}
+         * from configurations specified by a user in Project Configuration page.
+         *
+         * @param req
+         * @param formData
+         * @return
+         * @throws hudson.model.Descriptor.FormException
+         * @see hudson.model.JobPropertyDescriptor#newInstance(org.kohsuke.stapler.StaplerRequest, net.sf.json.JSONObject)
+         */
+        @Override
+        public ResourceRequirementJobProperty newInstance(StaplerRequest req, JSONObject formData)
+                throws hudson.model.Descriptor.FormException {
+            if (formData == null || formData.isNullObject()) {
+                return null;
+            }
+            JSONObject form = formData.getJSONObject(getPropertyName());
+            if (form == null || form.isNullObject()) {
+                return null;
+            }
+            return (ResourceRequirementJobProperty) super.newInstance(req, form);
+        }
+
+        /**
+         * Verify an input number of CPU cores.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckCpu(@QueryParameter String value, @AncestorInPath Item item) {
+            checkConfigurePermission(item);
+            return ValidationUtil.doCheckNonNegativeInteger(value);
+        }
+
+        /**
+         * Verify an input amount of memory.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckMemory(@QueryParameter String value, @AncestorInPath Item item) {
+            checkConfigurePermission(item);
+            return ValidationUtil.doCheckNonNegativeInteger(value);
+        }
+
+        /**
+         * Verify an input amount of disk space.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckDisk(@QueryParameter String value, @AncestorInPath Item item) {
+            checkConfigurePermission(item);
+            return ValidationUtil.doCheckNonNegativeInteger(value);
+        }
+
+        private static void checkConfigurePermission(Item item) {
+            if (item == null) {
+                Jenkins.get().checkPermission(Item.CONFIGURE);
+            } else {
+                item.checkPermission(Item.CONFIGURE);
+            }
+        }
+    }
+}
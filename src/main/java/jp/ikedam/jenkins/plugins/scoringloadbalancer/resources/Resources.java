@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.resources;
+
+/**
+ * Amounts of resources: CPU cores, memory and disk space.
+ *
+ * Immutable.
+ */
+public final class Resources {
+    /**
+     * No resources.
+     */
+    public static final Resources ZERO = new Resources(0, 0, 0);
+
+    private final int cpu;
+    private final int memory;
+    private final int disk;
+
+    /**
+     * Constructor.
+     *
+     * @param cpu the number of CPU cores.
+     * @param memory the amount of memory in MB.
+     * @param disk the amount of disk space in MB.
+     */
+    public Resources(int cpu, int memory, int disk) {
+        this.cpu = cpu;
+        this.memory = memory;
+        this.disk = disk;
+    }
+
+    /**
+     * @return the number of CPU cores.
+     */
+    public int getCpu() {
+        return cpu;
+    }
+
+    /**
+     * @return the amount of memory in MB.
+     */
+    public int getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return the amount of disk space in MB.
+     */
+    public int getDisk() {
+        return disk;
+    }
+
+    /**
+     * @return whether no resources are contained.
+     */
+    public boolean isZero() {
+        return cpu == 0 && memory == 0 && disk == 0;
+    }
+
+    /**
+     * @param other
+     * @return the sum of resources.
+     */
+    public Resources add(Resources other) {
+        if (other.isZero()) {
+            return this;
+        }
+        return new Resources(cpu + other.cpu, memory + other.memory, disk + other.disk);
+    }
+
+    /**
+     * @param other
+     * @return the difference of resources.
+     */
+    public Resources subtract(Resources other) {
+        if (other.isZero()) {
+            return this;
+        }
+        return new Resources(cpu - other.cpu, memory - other.memory, disk - other.disk);
+    }
+
+    /**
+     * Returns whether additional resources fit in the capacity.
+     *
+     * Kinds of resources without capacities (0 or less) are not limited.
+     *
+     * @param used resources already used.
+     * @param capacity the capacity.
+     * @return whether the resources fit.
+     */
+    public boolean fitsIn(Resources used, Resources capacity) {
+        return fits(cpu, used.cpu, capacity.cpu)
+                && fits(memory, used.memory, capacity.memory)
+                && fits(disk, used.disk, capacity.disk);
+    }
+
+    private static boolean fits(int required, int used, int capacity) {
+        return capacity <= 0 || (long) used + required <= capacity;
+    }
+
+    /**
+     * Returns the ratio of resources left after allocating these resources.
+     *
+     * Averaged over kinds of resources with capacities.
+     *
+     * @param used resources already used.
+     * @param capacity the capacity.
+     * @return the ratio of resources left in percent (0 - 100). 100 if no capacities are defined.
+     */
+    public int getLeftoverPercent(Resources used, Resources capacity) {
+        long total = 0;
+        int kinds = 0;
+        if (capacity.cpu > 0) {
+            total += leftoverPercent(cpu, used.cpu, capacity.cpu);
+            ++kinds;
+        }
+        if (capacity.memory > 0) {
+            total += leftoverPercent(memory, used.memory, capacity.memory);
+            ++kinds;
+        }
+        if (capacity.disk > 0) {
+            total += leftoverPercent(disk, used.disk, capacity.disk);
+            ++kinds;
+        }
+        return (kinds > 0) ? (int) (total / kinds) : 100;
+    }
+
+    private static long leftoverPercent(int required, int used, int capacity) {
+        long left = (long) capacity - used - required;
+        return Math.max(0, Math.min(100, left * 100 / capacity));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cpu=%d, memory=%dMB, disk=%dMB", cpu, memory, disk);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Queue.Task;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.Mapping;
+import hudson.model.queue.MappingWorksheet.WorkChunk;
+import hudson.model.queue.SubTask;
+import hudson.util.FormValidation;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.affinity.AntiAffinityJobProperty;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.affinity.GroupOccupancy;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ScoreMath;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
+import org.jenkinsci.Symbol;
+import org.jvnet.localizer.Localizable;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Avoids running builds of projects in the same anti-affinity group on the same node at the same time.
+ *
+ * Groups are configured in projects with {@link AntiAffinityJobProperty}.
+ */
+public class AntiAffinityScoringRule extends ScoringRule {
+    /**
+     * How to treat nodes running builds in the same group.
+     */
+    public enum Mode {
+        /**
+         * Decreases scores for each build in the same group.
+         */
+        PENALIZE(Messages._AntiAffinityScoringRule_Mode_Penalize()),
+        /**
+         * Never uses nodes running builds in the same group.
+         */
+        EXCLUDE(Messages._AntiAffinityScoringRule_Mode_Exclude());
+
+        private final Localizable displayName;
+
+        Mode(Localizable displayName) {
+            this.displayName = displayName;
+        }
+
+        /**
+         * @return the name to display
+         */
+        public String getDisplayName() {
+            return displayName.toString();
+        }
+    }
+
+    // default values are defined in config.jelly.
+    private int scale;
+    private Mode mode;
+
+    /**
+     * @return the scale
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * @return how to treat nodes running builds in the same group.
+     */
+    public Mode getMode() {
+        return (mode != null) ? mode : Mode.PENALIZE;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param scale
+     * @param mode
+     */
+    @DataBoundConstructor
+    public AntiAffinityScoringRule(int scale, Mode mode) {
+        this.scale = scale;
+        this.mode = mode;
+    }
+
+    /**
+     * Exclude nodes running builds in the same groups if configured so.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param candidates
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#filterCandidates(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public void filterCandidates(Task task, WorkChunk wc, Mapping m, NodesScore candidates) {
+        if (getMode() != Mode.EXCLUDE) {
+            return;
+        }
+        Set<String> groups = getGroups(wc);
+        if (groups.isEmpty()) {
+            return;
+        }
+
+        GroupOccupancy occupancy = GroupOccupancy.get();
+        for (ExecutorChunk ec : candidates.getExecutorChunks()) {
+            if (candidates.isInvalid(ec)) {
+                continue;
+            }
+            if (occupancy.count(ec.computer, groups) + countPending(m, ec, groups) > 0) {
+                candidates.markInvalid(ec);
+            }
+        }
+    }
+
+    /**
+     * Score nodes depending on builds in the same groups on them.
+     *
+     * Nodes are excluded in {@link #filterCandidates(Task, WorkChunk, Mapping, NodesScore)} instead
+     * when {@link Mode#EXCLUDE}.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param nodesScore
+     * @return
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#updateScores(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public boolean updateScores(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore) {
+        if (getMode() != Mode.PENALIZE) {
+            return true;
+        }
+        Set<String> groups = getGroups(wc);
+        if (groups.isEmpty()) {
+            return true;
+        }
+
+        GroupOccupancy occupancy = GroupOccupancy.get();
+        for (ExecutorChunk ec : nodesScore.getExecutorChunks()) {
+            int occupied = occupancy.count(ec.computer, groups) + countPending(m, ec, groups);
+            if (occupied > 0) {
+                nodesScore.addScore(ec, ScoreMath.multiply(-occupied, getScale()));
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Builds of groups are counted without looking at other rules.
+     */
+    @Override
+    public boolean isOrderIndependent() {
+        return true;
+    }
+
+    /**
+     * Records assigned subtasks until executors accept them.
+     *
+     * @param task
+     * @param worksheet
+     * @param m
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#onMapped(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet, hudson.model.queue.MappingWorksheet.Mapping)
+     */
+    @Override
+    public void onMapped(Task task, MappingWorksheet worksheet, Mapping m) {
+        if (worksheet.item == null) {
+            return;
+        }
+        GroupOccupancy occupancy = GroupOccupancy.get();
+        for (int i = 0; i < m.size(); ++i) {
+            ExecutorChunk ec = m.assigned(i);
+            if (ec == null) {
+                continue;
+            }
+            for (SubTask subtask : m.get(i)) {
+                occupancy.assign(
+                        worksheet.item.getId(), subtask, ec.computer, AntiAffinityJobProperty.getGroups(subtask));
+            }
+        }
+    }
+
+    private static Set<String> getGroups(WorkChunk wc) {
+        Set<String> groups = null;
+        for (SubTask subtask : wc) {
+            Set<String> g = AntiAffinityJobProperty.getGroups(subtask);
+            if (g.isEmpty()) {
+                continue;
+            }
+            if (groups == null) {
+                groups = new LinkedHashSet<String>();
+            }
+            groups.addAll(g);
+        }
+        return (groups != null) ? groups : Collections.<String>emptySet();
+    }
+
+    /**
+     * Counts builds in the groups in other work chunks about to be assigned to the executor chunk.
+     *
+     * @param m
+     * @param ec
+     * @param groups
+     * @return the number of builds.
+     */
+    private static int countPending(Mapping m, ExecutorChunk ec, Set<String> groups) {
+        int pending = 0;
+        for (int i = 0; i < m.size(); ++i) {
+            if (!ec.equals(m.assigned(i))) {
+                continue;
+            }
+            for (SubTask subtask : m.get(i)) {
+                for (String group : AntiAffinityJobProperty.getGroups(subtask)) {
+                    if (groups.contains(group)) {
+                        ++pending;
+                    }
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Manages views for {@link AntiAffinityScoringRule}
+     */
+    @Extension
+    @Symbol("antiAffinityScoringRule")
+    public static class DescriptorImpl extends Descriptor<ScoringRule> {
+        /**
+         * Returns the name to display.
+         *
+         * Displayed in System Configuration page, as a name of a scoring rule.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.AntiAffinityScoringRule_DisplayName();
+        }
+
+        /**
+         * Verify the input scale.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckScale(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return ValidationUtil.doCheckInteger(value);
+        }
+    }
+}
@@ -34,11 +34,12 @@ import hudson.model.queue.MappingWorksheet.Mapping;
 import hudson.model.queue.MappingWorksheet.WorkChunk;
 import hudson.model.queue.SubTask;
 import hudson.util.FormValidation;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 import jenkins.model.Jenkins;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ScoreMath;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -49,6 +50,9 @@ import org.kohsuke.stapler.verb.POST;
  * A score keeper depends on build results on each nodes.
  */
 public class BuildResultScoringRule extends ScoringRule {
+    // nodes already scored for the subtask. reused not to allocate for each subtask.
+    private static final ThreadLocal<List<Node>> SCORED_NODES = ThreadLocal.withInitial(ArrayList::new);
+
     // default values are defined in config.jelly
     private int numberOfBuilds;
     private int scale;
@@ -137,38 +141,58 @@ public class BuildResultScoringRule extends ScoringRule {
      */
     @Override
     public boolean updateScores(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore) {
+        List<Node> scoredNodes = SCORED_NODES.get();
+        try {
+            scoreSubTasks(wc, nodesScore, scoredNodes);
+        } finally {
+            // not to retain nodes.
+            scoredNodes.clear();
+        }
+        return true;
+    }
+
+    private void scoreSubTasks(WorkChunk wc, NodesScore nodesScore, List<Node> scoredNodes) {
         for (SubTask subtask : wc) {
             if (!(subtask instanceof AbstractProject)) {
-                return true;
+                return;
             }
 
             AbstractProject<?, ?> project = (AbstractProject<?, ?>) subtask;
 
-            Set<Node> nodeSet = new HashSet<Node>(nodesScore.getNodes());
+            // at most numberOfBuilds nodes, so linear search is enough.
+            scoredNodes.clear();
             AbstractBuild<?, ?> build = project.getLastBuild();
             for (int pastNum = 0;
                     pastNum < getNumberOfBuilds() && build != null;
                     ++pastNum, build = build.getPreviousBuild()) {
                 Node node = build.getBuiltOn();
-                if (!nodeSet.contains(node)) {
+                if (!nodesScore.getNodes().contains(node) || scoredNodes.contains(node)) {
                     continue;
                 }
 
-                int scale = getScale() + getScaleAdjustForOlder() * pastNum;
+                long scale = ScoreMath.add(getScale(), ScoreMath.multiply(getScaleAdjustForOlder(), pastNum));
 
                 if (Result.SUCCESS == build.getResult()) {
-                    nodesScore.addScore(node, getScoreForSuccess() * scale);
-                    nodeSet.remove(node);
+                    nodesScore.addScore(node, ScoreMath.multiply(getScoreForSuccess(), scale));
+                    scoredNodes.add(node);
                 } else if (Result.FAILURE == build.getResult()) {
-                    nodesScore.addScore(node, getScoreForFailure() * scale);
-                    nodeSet.remove(node);
+                    nodesScore.addScore(node, ScoreMath.multiply(getScoreForFailure(), scale));
+                    scoredNodes.add(node);
                 } else if (Result.UNSTABLE == build.getResult()) {
-                    nodesScore.addScore(node, getScoreForUnstable() * scale);
-                    nodeSet.remove(node);
+                    nodesScore.addScore(node, ScoreMath.multiply(getScoreForUnstable(), scale));
+                    scoredNodes.add(node);
                 }
             }
         }
+    }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Scores depend only on build results of the project.
+     */
+    @Override
+    public boolean isOrderIndependent() {
         return true;
     }
 
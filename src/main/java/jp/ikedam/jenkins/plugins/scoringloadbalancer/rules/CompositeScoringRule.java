@@ -0,0 +1,502 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.model.Queue.Task;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.Mapping;
+import hudson.model.queue.MappingWorksheet.WorkChunk;
+import hudson.util.FormValidation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ScoreMath;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
+import org.jenkinsci.Symbol;
+import org.jvnet.localizer.Localizable;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Combines scores of multiple {@link ScoringRule}s in other ways than simply adding them.
+ *
+ * Each component rule scores nodes separately,
+ * and the combined score is added to the nodes.
+ * Nodes marked invalid by any component are invalid.
+ */
+public class CompositeScoringRule extends ScoringRule {
+    /**
+     * How to combine scores of component rules.
+     */
+    public enum Combination {
+        /**
+         * Weighted average of scores normalized to [0, 1].
+         */
+        WEIGHTED_SUM(Messages._CompositeScoringRule_Combination_WeightedSum()),
+        /**
+         * The minimum of scores normalized to [0, 1].
+         */
+        MIN(Messages._CompositeScoringRule_Combination_Min()),
+        /**
+         * The maximum of scores normalized to [0, 1].
+         */
+        MAX(Messages._CompositeScoringRule_Combination_Max()),
+        /**
+         * Lexicographic order. Later components only break ties of former ones.
+         */
+        TIERS(Messages._CompositeScoringRule_Combination_Tiers());
+
+        private final Localizable displayName;
+
+        Combination(Localizable displayName) {
+            this.displayName = displayName;
+        }
+
+        /**
+         * @return the name to display
+         */
+        public String getDisplayName() {
+            return displayName.toString();
+        }
+    }
+
+    // default values are defined in config.jelly.
+    private Combination combination;
+    private int scale;
+    private List<ScoringRuleComponent> componentList;
+    private boolean stopAtUniqueTop;
+
+    /**
+     * @return how to combine scores.
+     */
+    public Combination getCombination() {
+        return (combination != null) ? combination : Combination.WEIGHTED_SUM;
+    }
+
+    /**
+     * @return the scale
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * @return component rules.
+     */
+    public List<ScoringRuleComponent> getComponentList() {
+        return (componentList != null) ? componentList : Collections.<ScoringRuleComponent>emptyList();
+    }
+
+    /**
+     * Returns whether to skip lower tiers once the best node is decided.
+     *
+     * Skipped rules cannot exclude nodes either.
+     *
+     * @return whether to skip lower tiers once the best node is decided.
+     */
+    public boolean isStopAtUniqueTop() {
+        return stopAtUniqueTop;
+    }
+
+    /**
+     * @param stopAtUniqueTop whether to skip lower tiers once the best node is decided.
+     */
+    @DataBoundSetter
+    public void setStopAtUniqueTop(boolean stopAtUniqueTop) {
+        this.stopAtUniqueTop = stopAtUniqueTop;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param combination
+     * @param scale
+     * @param componentList
+     */
+    @DataBoundConstructor
+    public CompositeScoringRule(Combination combination, int scale, List<ScoringRuleComponent> componentList) {
+        this.combination = combination;
+        this.scale = scale;
+        this.componentList = componentList;
+    }
+
+    /**
+     * Exclude nodes with component rules.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param candidates
+     * @throws Exception
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#filterCandidates(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public void filterCandidates(Task task, WorkChunk wc, Mapping m, NodesScore candidates) throws Exception {
+        for (ScoringRuleComponent component : getComponentList()) {
+            component.getScoringRule().filterCandidates(task, wc, m, candidates);
+        }
+    }
+
+    /**
+     * Add nodes preferred by component rules.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param candidates
+     * @param preferred
+     * @throws Exception
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#addPreferredNodes(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore, java.util.Set)
+     */
+    @Override
+    public void addPreferredNodes(Task task, WorkChunk wc, Mapping m, NodesScore candidates, Set<Node> preferred)
+            throws Exception {
+        for (ScoringRuleComponent component : getComponentList()) {
+            if (component.getWeight() > 0) {
+                component.getScoringRule().addPreferredNodes(task, wc, m, candidates, preferred);
+            }
+        }
+    }
+
+    /**
+     * Score nodes with component rules and add combined scores.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param nodesScore
+     * @return
+     * @throws Exception
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#updateScores(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public boolean updateScores(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore) throws Exception {
+        if (nodesScore.getExecutorChunks().isEmpty() || getComponentList().isEmpty()) {
+            return true;
+        }
+        Buffers buffers = Buffers.acquire(nodesScore);
+        try {
+            if (getCombination() == Combination.TIERS) {
+                scoreTiers(task, wc, m, nodesScore, buffers);
+            } else {
+                scoreNormalized(task, wc, m, nodesScore, buffers);
+            }
+        } finally {
+            buffers.release();
+        }
+        return true;
+    }
+
+    /**
+     * Buffers reused for scoring with components.
+     *
+     * Kept per thread and reused for subsequent subtasks.
+     * A new one is used when composite rules are nested.
+     */
+    private static class Buffers {
+        private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+        /**
+         * Executors to score, to access with indexes.
+         */
+        private final List<ExecutorChunk> executors = new ArrayList<ExecutorChunk>();
+
+        /**
+         * Scores by a component rule.
+         */
+        private final NodesScore componentScore = new NodesScore(Collections.<ExecutorChunk>emptyList());
+
+        /**
+         * Scores by a component rule for each of {@link #executors}.
+         */
+        private long[] scores = new long[0];
+
+        private double[] normalized = new double[0];
+        private double[] combined = new double[0];
+        private boolean inUse;
+
+        private static Buffers acquire(NodesScore nodesScore) {
+            Buffers buffers = BUFFERS.get();
+            if (buffers.inUse) {
+                buffers = new Buffers();
+            }
+            buffers.inUse = true;
+            for (ExecutorChunk ec : nodesScore.getExecutorChunks()) {
+                buffers.executors.add(ec);
+            }
+            int size = buffers.executors.size();
+            if (buffers.scores.length < size) {
+                buffers.scores = new long[size];
+                buffers.normalized = new double[size];
+                buffers.combined = new double[size];
+            }
+            return buffers;
+        }
+
+        private void release() {
+            // not to retain executors and nodes until the next subtask.
+            executors.clear();
+            componentScore.clear();
+            inUse = false;
+        }
+    }
+
+    /**
+     * Score with a component on a separate {@link NodesScore}.
+     *
+     * Invalid marks are shared with nodesScore.
+     * Scores are stored to {@link Buffers#scores}.
+     *
+     * @return whether to proceed to subsequent rules.
+     */
+    private static boolean scoreComponent(
+            ScoringRuleComponent component, Task task, WorkChunk wc, Mapping m, NodesScore nodesScore, Buffers buffers)
+            throws Exception {
+        List<ExecutorChunk> executors = buffers.executors;
+        NodesScore componentScore = buffers.componentScore;
+        componentScore.reset(executors, nodesScore);
+        for (ExecutorChunk ec : executors) {
+            if (nodesScore.isInvalid(ec)) {
+                componentScore.markInvalid(ec);
+            }
+        }
+        boolean proceed = component.getScoringRule().updateScores(task, wc, m, componentScore);
+        for (int i = 0; i < executors.size(); ++i) {
+            ExecutorChunk ec = executors.get(i);
+            if (componentScore.isInvalid(ec)) {
+                nodesScore.markInvalid(ec);
+            }
+            buffers.scores[i] = componentScore.getLongScore(ec);
+        }
+        return proceed;
+    }
+
+    private void scoreNormalized(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore, Buffers buffers)
+            throws Exception {
+        Combination combination = getCombination();
+        List<ExecutorChunk> executors = buffers.executors;
+        int size = executors.size();
+        double[] combined = buffers.combined;
+        double[] normalized = buffers.normalized;
+        Arrays.fill(combined, 0, size, 0.0);
+        long totalWeight = 0;
+        boolean first = true;
+        for (ScoringRuleComponent component : getComponentList()) {
+            boolean proceed = scoreComponent(component, task, wc, m, nodesScore, buffers);
+            normalize(buffers.scores, executors, nodesScore, normalized);
+            for (int i = 0; i < size; ++i) {
+                switch (combination) {
+                    case MIN:
+                        combined[i] = first ? normalized[i] : Math.min(combined[i], normalized[i]);
+                        break;
+                    case MAX:
+                        combined[i] = first ? normalized[i] : Math.max(combined[i], normalized[i]);
+                        break;
+                    default:
+                        combined[i] += normalized[i] * component.getWeight();
+                        break;
+                }
+            }
+            totalWeight += component.getWeight();
+            first = false;
+            if (!proceed) {
+                break;
+            }
+        }
+        if (combination == Combination.WEIGHTED_SUM) {
+            if (totalWeight <= 0) {
+                return;
+            }
+            for (int i = 0; i < size; ++i) {
+                combined[i] /= totalWeight;
+            }
+        }
+        for (int i = 0; i < size; ++i) {
+            nodesScore.addScore(executors.get(i), Math.round(combined[i] * getScale()));
+        }
+    }
+
+    /**
+     * Normalize scores of valid executors to [0, 1].
+     *
+     * Normalized scores are 0 if all valid executors have the same score.
+     */
+    private static void normalize(
+            long[] scores, List<ExecutorChunk> executors, NodesScore nodesScore, double[] normalized) {
+        int size = executors.size();
+        Arrays.fill(normalized, 0, size, 0.0);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < size; ++i) {
+            if (nodesScore.isInvalid(executors.get(i))) {
+                continue;
+            }
+            min = Math.min(min, scores[i]);
+            max = Math.max(max, scores[i]);
+        }
+        if (min >= max) {
+            return;
+        }
+        double range = (double) max - (double) min;
+        for (int i = 0; i < size; ++i) {
+            if (nodesScore.isInvalid(executors.get(i))) {
+                continue;
+            }
+            normalized[i] = ((double) scores[i] - (double) min) / range;
+        }
+    }
+
+    /**
+     * Score executors in lexicographic order of component scores.
+     *
+     * Executors are split into ordered groups of ties, refined by each tier.
+     * If {@link #isStopAtUniqueTop()}, lower tiers are not evaluated once the top group has only one executor,
+     * as they can no longer change the best executor.
+     */
+    private void scoreTiers(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore, Buffers buffers)
+            throws Exception {
+        List<ExecutorChunk> executors = buffers.executors;
+        long[] scores = buffers.scores;
+        List<List<Integer>> groups = new ArrayList<List<Integer>>();
+        groups.add(validIndexes(executors, nodesScore));
+        for (ScoringRuleComponent component : getComponentList()) {
+            if (isStopAtUniqueTop() && (groups.isEmpty() || groups.get(0).size() <= 1)) {
+                break;
+            }
+            boolean proceed = scoreComponent(component, task, wc, m, nodesScore, buffers);
+            List<List<Integer>> refined = new ArrayList<List<Integer>>();
+            for (List<Integer> group : groups) {
+                refine(group, scores, executors, nodesScore, refined);
+            }
+            groups = refined;
+            if (!proceed) {
+                break;
+            }
+        }
+        for (int g = 0; g < groups.size(); ++g) {
+            for (int i : groups.get(g)) {
+                nodesScore.addScore(executors.get(i), ScoreMath.multiply(groups.size() - 1 - g, getScale()));
+            }
+        }
+    }
+
+    private static List<Integer> validIndexes(List<ExecutorChunk> executors, NodesScore nodesScore) {
+        List<Integer> indexes = new ArrayList<Integer>(executors.size());
+        for (int i = 0; i < executors.size(); ++i) {
+            if (!nodesScore.isInvalid(executors.get(i))) {
+                indexes.add(i);
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Split a group of ties into groups of executors with the same score, in descending order.
+     */
+    private static void refine(
+            List<Integer> group,
+            long[] scores,
+            List<ExecutorChunk> executors,
+            NodesScore nodesScore,
+            List<List<Integer>> refined) {
+        List<Integer> sorted = new ArrayList<Integer>(group.size());
+        for (int i : group) {
+            // components may have marked executors invalid.
+            if (!nodesScore.isInvalid(executors.get(i))) {
+                sorted.add(i);
+            }
+        }
+        sorted.sort(Comparator.comparingLong((Integer i) -> scores[i]).reversed());
+        List<Integer> current = null;
+        for (int i : sorted) {
+            if (current == null || scores[current.get(0)] != scores[i]) {
+                current = new ArrayList<Integer>();
+                refined.add(current);
+            }
+            current.add(i);
+        }
+    }
+
+    /**
+     * Notify component rules.
+     *
+     * @param task
+     * @param worksheet
+     * @param m
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#onMapped(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet, hudson.model.queue.MappingWorksheet.Mapping)
+     */
+    @Override
+    public void onMapped(Task task, MappingWorksheet worksheet, Mapping m) {
+        for (ScoringRuleComponent component : getComponentList()) {
+            component.getScoringRule().onMapped(task, worksheet, m);
+        }
+    }
+
+    /**
+     * Manages views for {@link CompositeScoringRule}
+     */
+    @Extension
+    @Symbol("compositeScoringRule")
+    public static class DescriptorImpl extends Descriptor<ScoringRule> {
+        /**
+         * Returns the name to display.
+         *
+         * Displayed in System Configuration page, as a name of a scoring rule.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.CompositeScoringRule_DisplayName();
+        }
+
+        /**
+         * Verify the input scale.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckScale(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return ValidationUtil.doCheckInteger(value);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.model.Queue.Task;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.Mapping;
+import hudson.model.queue.MappingWorksheet.WorkChunk;
+import hudson.util.FormValidation;
+import java.util.BitSet;
+import java.util.List;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ClusterSnapshot;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare.ExecutorUsage;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare.FairShare;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare.GroupBy;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.NodeIndex;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ScoreMath;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
+import org.jenkinsci.Symbol;
+import org.jvnet.localizer.Localizable;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Keeps each group (folder or label) within its share of executors in the node pool.
+ *
+ * The node pool is the online nodes matching the label of the build, including ones without idle executors.
+ * Groups can borrow executors over their shares while the pool is idle enough.
+ */
+public class FairShareScoringRule extends ScoringRule {
+    /**
+     * How to treat nodes when a group is over its share.
+     */
+    public enum Mode {
+        /**
+         * Decreases scores, preferring nodes where the group uses less executors.
+         */
+        PENALIZE(Messages._FairShareScoringRule_Mode_Penalize()),
+        /**
+         * Never uses nodes. Builds wait until the group gets under its share.
+         */
+        EXCLUDE(Messages._FairShareScoringRule_Mode_Exclude());
+
+        private final Localizable displayName;
+
+        Mode(Localizable displayName) {
+            this.displayName = displayName;
+        }
+
+        /**
+         * @return the name to display
+         */
+        public String getDisplayName() {
+            return displayName.toString();
+        }
+    }
+
+    // default values are defined in config.jelly.
+    private GroupBy groupBy;
+    private int defaultShare;
+    private int idlePercentToBorrow;
+    private Mode mode;
+    private int scale;
+    private List<FairShare> shareList;
+
+    /**
+     * @return how to decide groups.
+     */
+    public GroupBy getGroupBy() {
+        return (groupBy != null) ? groupBy : GroupBy.FOLDER;
+    }
+
+    /**
+     * @return the share for groups not listed in {@link #getShareList()}, in percent.
+     */
+    public int getDefaultShare() {
+        return defaultShare;
+    }
+
+    /**
+     * @return groups can use executors over their shares when idle executors in the pool are this percent or more.
+     */
+    public int getIdlePercentToBorrow() {
+        return idlePercentToBorrow;
+    }
+
+    /**
+     * @return how to treat nodes when a group is over its share.
+     */
+    public Mode getMode() {
+        return (mode != null) ? mode : Mode.PENALIZE;
+    }
+
+    /**
+     * @return the scale
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * @return shares for specific groups.
+     */
+    public List<FairShare> getShareList() {
+        return shareList;
+    }
+
+    /**
+     * @param shareList shares for specific groups.
+     */
+    @DataBoundSetter
+    public void setShareList(List<FairShare> shareList) {
+        this.shareList = (shareList == null || shareList.isEmpty()) ? null : shareList;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param groupBy
+     * @param defaultShare
+     * @param idlePercentToBorrow
+     * @param mode
+     * @param scale
+     */
+    @DataBoundConstructor
+    public FairShareScoringRule(GroupBy groupBy, int defaultShare, int idlePercentToBorrow, Mode mode, int scale) {
+        this.groupBy = groupBy;
+        this.defaultShare = defaultShare;
+        this.idlePercentToBorrow = idlePercentToBorrow;
+        this.mode = mode;
+        this.scale = scale;
+    }
+
+    /**
+     * Returns the share of the group.
+     *
+     * @param group
+     * @return the share in percent.
+     */
+    public int getShare(String group) {
+        if (shareList != null) {
+            for (FairShare share : shareList) {
+                if (group.equals(share.getGroup())) {
+                    return share.getShare();
+                }
+            }
+        }
+        return getDefaultShare();
+    }
+
+    /**
+     * Exclude all nodes if the group of the build is over its share and configured so.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param candidates
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#filterCandidates(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public void filterCandidates(Task task, WorkChunk wc, Mapping m, NodesScore candidates) {
+        if (getMode() != Mode.EXCLUDE) {
+            return;
+        }
+        if (isOverShare(wc, m, candidates.getClusterSnapshot())) {
+            candidates.markAllInvalid();
+        }
+    }
+
+    /**
+     * Score nodes if the group of the build is over its share.
+     *
+     * Nodes are excluded in {@link #filterCandidates(Task, WorkChunk, Mapping, NodesScore)} instead
+     * when {@link Mode#EXCLUDE}.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param nodesScore
+     * @return
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#updateScores(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public boolean updateScores(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore) {
+        if (getMode() != Mode.PENALIZE) {
+            return true;
+        }
+        ClusterSnapshot snapshot = nodesScore.getClusterSnapshot();
+        if (!isOverShare(wc, m, snapshot)) {
+            return true;
+        }
+        GroupBy groupBy = getGroupBy();
+        String group = groupBy.getGroup(wc.get(0));
+        ExecutorUsage usage = ExecutorUsage.get();
+        for (ExecutorChunk ec : nodesScore.getExecutorChunks()) {
+            int used = (snapshot != null)
+                    ? snapshot.count(ec, groupBy, group)
+                    : usage.count(ec.computer, groupBy, group);
+            nodesScore.addScore(ec, ScoreMath.multiply(-(used + 1L), getScale()));
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Usage of groups is counted without looking at other rules.
+     */
+    @Override
+    public boolean isOrderIndependent() {
+        return true;
+    }
+
+    /**
+     * Whether the group of the build is over its share in the node pool.
+     *
+     * The pool is all nodes the build can run on (nodes matching its label),
+     * not only candidates, so that nodes the group fully uses still count
+     * and the result does not depend on other rules or sampling.
+     * Counters in the snapshot also include items mapped earlier in the same queue maintenance.
+     *
+     * @param wc
+     * @param m
+     * @param snapshot states of nodes. can be null.
+     * @return whether the group is over its share.
+     */
+    private boolean isOverShare(WorkChunk wc, Mapping m, @CheckForNull ClusterSnapshot snapshot) {
+        GroupBy groupBy = getGroupBy();
+        String group = groupBy.getGroup(wc.get(0));
+        if (group == null) {
+            return false;
+        }
+        int share = getShare(group);
+        if (share >= 100) {
+            return false;
+        }
+
+        int poolExecutors = 0;
+        int poolBusy = 0;
+        int groupUsed = 0;
+        ExecutorUsage usage = ExecutorUsage.get();
+        NodeIndex index = NodeIndex.get();
+        List<Node> nodes = index.getNodes();
+        BitSet pool = (wc.assignedLabel != null) ? index.getNodes(wc.assignedLabel) : null;
+        for (int id = nextInPool(pool, nodes, 0); id >= 0; id = nextInPool(pool, nodes, id + 1)) {
+            Node node = nodes.get(id);
+            if (node == null || (pool == null && node.getMode() != Node.Mode.NORMAL)) {
+                // removed, or not used for builds without labels.
+                continue;
+            }
+            Computer computer = node.toComputer();
+            if (computer == null || computer.isOffline()) {
+                continue;
+            }
+            if (snapshot != null) {
+                groupUsed += snapshot.count(computer, groupBy, group);
+                poolExecutors += snapshot.countExecutors(computer);
+                poolBusy += snapshot.countBusy(computer);
+            } else {
+                groupUsed += usage.count(computer, groupBy, group);
+                poolExecutors += computer.countExecutors();
+                poolBusy += usage.countBusy(computer);
+            }
+        }
+
+        // other work chunks in the same build are about to use executors.
+        for (int i = 0; i < m.size(); ++i) {
+            if (m.assigned(i) != null) {
+                WorkChunk assigned = m.get(i);
+                poolBusy += assigned.size();
+                if (group.equals(groupBy.getGroup(assigned.get(0)))) {
+                    groupUsed += assigned.size();
+                }
+            }
+        }
+
+        long limit = (long) poolExecutors * share / 100;
+        if (share > 0 && limit <= 0) {
+            limit = 1;
+        }
+        if (groupUsed < limit) {
+            return false;
+        }
+        // the pool is idle enough to allow borrowing.
+        return (long) (poolExecutors - poolBusy) * 100 < (long) poolExecutors * getIdlePercentToBorrow();
+    }
+
+    /**
+     * @param pool ids of nodes in the pool. null for all nodes.
+     * @param nodes indexed nodes.
+     * @param from
+     * @return the next id in the pool. -1 if none.
+     */
+    private static int nextInPool(@CheckForNull BitSet pool, List<Node> nodes, int from) {
+        int id = (pool != null) ? pool.nextSetBit(from) : from;
+        return (id >= 0 && id < nodes.size()) ? id : -1;
+    }
+
+    /**
+     * Manages views for {@link FairShareScoringRule}
+     */
+    @Extension
+    @Symbol("fairShareScoringRule")
+    public static class DescriptorImpl extends Descriptor<ScoringRule> {
+        /**
+         * Returns the name to display.
+         *
+         * Displayed in System Configuration page, as a name of a scoring rule.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.FairShareScoringRule_DisplayName();
+        }
+
+        /**
+         * Verify the input default share.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckDefaultShare(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return ValidationUtil.doCheckPercentage(value);
+        }
+
+        /**
+         * Verify the input percent of idle executors to allow borrowing.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckIdlePercentToBorrow(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return ValidationUtil.doCheckPercentage(value);
+        }
+
+        /**
+         * Verify the input scale.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckScale(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return ValidationUtil.doCheckInteger(value);
+        }
+    }
+}
@@ -23,19 +23,31 @@
  */
 package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.Extension;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Node;
 import hudson.model.Queue.Task;
 import hudson.model.queue.MappingWorksheet.ExecutorChunk;
 import hudson.model.queue.MappingWorksheet.Mapping;
 import hudson.model.queue.MappingWorksheet.WorkChunk;
+import hudson.slaves.AbstractCloudSlave;
+import hudson.slaves.EphemeralNode;
+import hudson.slaves.RetentionStrategy;
 import hudson.util.FormValidation;
+import java.util.concurrent.TimeUnit;
 import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ClusterSnapshot;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.PendingAssignments;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ScoreMath;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
 import org.jenkinsci.Symbol;
+import org.jvnet.localizer.Localizable;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.verb.POST;
 
@@ -43,10 +55,58 @@ import org.kohsuke.stapler.verb.POST;
  * Score nodes depending on their loads.
  */
 public class NodeLoadScoringRule extends ScoringRule {
+    /**
+     * How to place builds on nodes.
+     */
+    public enum PlacementStrategy {
+        /**
+         * Scores with {@link NodeLoadScoringRule#getScoreForIdleExecutor()}
+         * and {@link NodeLoadScoringRule#getScoreForBusyExecutor()}.
+         */
+        SCORE_PER_EXECUTOR(Messages._NodeLoadScoringRule_PlacementStrategy_ScorePerExecutor()),
+        /**
+         * Prefers busier nodes so that idle nodes can be released.
+         */
+        PACK(Messages._NodeLoadScoringRule_PlacementStrategy_Pack()),
+        /**
+         * Prefers less busy nodes.
+         */
+        SPREAD(Messages._NodeLoadScoringRule_PlacementStrategy_Spread()),
+        /**
+         * Packs builds while the usage of a node is under the threshold, and spreads otherwise.
+         */
+        HYBRID(Messages._NodeLoadScoringRule_PlacementStrategy_Hybrid());
+
+        private final Localizable displayName;
+
+        PlacementStrategy(Localizable displayName) {
+            this.displayName = displayName;
+        }
+
+        /**
+         * @return the name to display
+         */
+        public String getDisplayName() {
+            return displayName.toString();
+        }
+    }
+
+    /**
+     * Penalty for an idle node owned by a cloud when packing builds.
+     */
+    private static final int SCORE_FOR_IDLE_CLOUD_NODE = -1;
+
+    /**
+     * Penalty for an idle node owned by a cloud and about to be reclaimed when packing builds.
+     */
+    private static final int SCORE_FOR_RECLAIMING_CLOUD_NODE = -2;
+
     // default values are defined in config.jelly.
     private int scale;
     private int scoreForIdleExecutor;
     private int scoreForBusyExecutor;
+    private PlacementStrategy placementStrategy;
+    private int hybridThreshold = 80;
 
     /**
      * @return the scale
@@ -69,6 +129,40 @@ public class NodeLoadScoringRule extends ScoringRule {
         return scoreForBusyExecutor;
     }
 
+    /**
+     * @return the strategy to place builds.
+     */
+    public PlacementStrategy getPlacementStrategy() {
+        return (placementStrategy != null) ? placementStrategy : PlacementStrategy.SCORE_PER_EXECUTOR;
+    }
+
+    /**
+     * @param placementStrategy the strategy to place builds.
+     */
+    @DataBoundSetter
+    public void setPlacementStrategy(PlacementStrategy placementStrategy) {
+        this.placementStrategy = placementStrategy;
+    }
+
+    /**
+     * Returns the usage of a node (in percent) to switch from packing to spreading.
+     *
+     * Used only with {@link PlacementStrategy#HYBRID}.
+     *
+     * @return the threshold in percent.
+     */
+    public int getHybridThreshold() {
+        return hybridThreshold;
+    }
+
+    /**
+     * @param hybridThreshold the usage of a node (in percent) to switch from packing to spreading.
+     */
+    @DataBoundSetter
+    public void setHybridThreshold(int hybridThreshold) {
+        this.hybridThreshold = hybridThreshold;
+    }
+
     /**
      * Constructor.
      *
@@ -98,26 +192,121 @@ public class NodeLoadScoringRule extends ScoringRule {
      */
     @Override
     public boolean updateScores(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore) {
+        PendingAssignments pending = nodesScore.getPendingAssignments();
+        ClusterSnapshot snapshot = nodesScore.getClusterSnapshot();
         for (ExecutorChunk ec : nodesScore.getExecutorChunks()) {
             // There are cases that ec.computer.countBusy(), ec.computer.countIdle()
             // is not yet updated when builds are triggered consequently.
             int idle = ec.capacity();
-            for (int i = 0; i < m.size(); ++i) {
-                // count executors about to be assigned
-                if (ec.equals(m.assigned(i))) {
-                    idle -= m.get(i).size();
-                }
+            // count executors about to be assigned
+            if (pending != null) {
+                idle -= pending.getPendingExecutors(ec);
+            } else {
+                idle -= PendingAssignments.countPendingExecutors(m, ec);
             }
-            int busy = ec.computer.countExecutors() - idle;
+            int executors = (snapshot != null) ? snapshot.countExecutors(ec) : ec.computer.countExecutors();
+            int busy = executors - idle;
 
-            int busyScore = busy * getScoreForBusyExecutor();
-            int idleScore = idle * getScoreForIdleExecutor();
-            nodesScore.addScore(ec, (busyScore + idleScore) * getScale());
+            long score = scoreExecutors(ec.node, ec.computer, snapshot, busy, idle);
+            nodesScore.addScore(ec, ScoreMath.multiply(score, getScale()));
         }
 
         return true;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Scores depend only on executors of each node.
+     */
+    @Override
+    public boolean isOrderIndependent() {
+        return true;
+    }
+
+    /**
+     * Score a node with its executors.
+     *
+     * With {@link PlacementStrategy#HYBRID}, the score drops from +busy to -busy at the threshold,
+     * and a node over the threshold is ranked even below idle nodes.
+     *
+     * @param node
+     * @param computer the computer of the node.
+     * @param snapshot states of nodes. can be null.
+     * @param busy the number of busy executors including ones about to be assigned.
+     * @param idle the number of idle executors excluding ones about to be assigned.
+     * @return the score (not scaled). saturated instead of overflowing.
+     */
+    long scoreExecutors(Node node, Computer computer, @CheckForNull ClusterSnapshot snapshot, int busy, int idle) {
+        switch (getPlacementStrategy()) {
+            case PACK:
+                return scoreForPacking(node, computer, snapshot, busy);
+            case SPREAD:
+                return (long) idle - busy;
+            case HYBRID:
+                int total = busy + idle;
+                if (total > 0 && busy * 100L >= (long) total * getHybridThreshold()) {
+                    // spread to less busy nodes.
+                    return -busy;
+                }
+                return scoreForPacking(node, computer, snapshot, busy);
+            default:
+                long busyScore = ScoreMath.multiply(busy, getScoreForBusyExecutor());
+                long idleScore = ScoreMath.multiply(idle, getScoreForIdleExecutor());
+                return ScoreMath.add(busyScore, idleScore);
+        }
+    }
+
+    /**
+     * Score a node to pack builds on busier nodes.
+     *
+     * Idle nodes owned by clouds are avoided so that they can be terminated,
+     * especially ones about to be reclaimed with their retention strategies.
+     *
+     * @param node
+     * @param computer
+     * @param snapshot states of nodes. can be null.
+     * @param busy
+     * @return the score
+     */
+    private int scoreForPacking(Node node, Computer computer, ClusterSnapshot snapshot, int busy) {
+        if (busy > 0 || !isCloudNode(node)) {
+            return busy;
+        }
+        long idleStart = (snapshot != null)
+                ? snapshot.getIdleStartMilliseconds(computer)
+                : computer.getIdleStartMilliseconds();
+        if (isAboutToBeReclaimed(computer, idleStart)) {
+            return SCORE_FOR_RECLAIMING_CLOUD_NODE;
+        }
+        return SCORE_FOR_IDLE_CLOUD_NODE;
+    }
+
+    private static boolean isCloudNode(Node node) {
+        return node instanceof AbstractCloudSlave || node instanceof EphemeralNode;
+    }
+
+    /**
+     * Whether the idle computer is going to be terminated soon.
+     *
+     * Decided only for retention strategies exposing their idle timers.
+     * The computer is considered to be reclaimed soon when it has been idle
+     * for more than a half of the idle delay.
+     *
+     * @param computer
+     * @param idleStart the time the computer got idle.
+     * @return whether the computer is going to be terminated soon.
+     */
+    private static boolean isAboutToBeReclaimed(Computer computer, long idleStart) {
+        RetentionStrategy<?> retentionStrategy = computer.getRetentionStrategy();
+        if (!(retentionStrategy instanceof RetentionStrategy.Demand)) {
+            return false;
+        }
+        long idleDelay = TimeUnit.MINUTES.toMillis(((RetentionStrategy.Demand) retentionStrategy).getIdleDelay());
+        long idleTime = System.currentTimeMillis() - idleStart;
+        return idleTime * 2 >= idleDelay;
+    }
+
     /**
      * Manages views for {@link NodeLoadScoringRule}
      */
@@ -161,6 +350,26 @@ public class NodeLoadScoringRule extends ScoringRule {
             return ValidationUtil.doCheckInteger(value);
         }
 
+        /**
+         * Verify the input hybridThreshold.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckHybridThreshold(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            FormValidation v = ValidationUtil.doCheckInteger(value);
+            if (v.kind != FormValidation.Kind.OK) {
+                return v;
+            }
+            int threshold = Integer.parseInt(value.trim());
+            if (threshold < 0 || threshold > 100) {
+                return FormValidation.error(Messages.NodeLoadScoringRule_hybridThreshold_invalid());
+            }
+            return FormValidation.ok();
+        }
+
         /**
          * Verify the input scoreForBusyExecutor.
          *
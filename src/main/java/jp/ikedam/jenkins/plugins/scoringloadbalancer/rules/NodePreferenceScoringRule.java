@@ -25,29 +25,35 @@ package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
 
 import hudson.Extension;
 import hudson.Util;
-import hudson.matrix.MatrixConfiguration;
 import hudson.model.Descriptor;
-import hudson.model.Job;
 import hudson.model.Label;
 import hudson.model.Node;
 import hudson.model.Queue.Task;
-import hudson.model.labels.LabelExpression;
 import hudson.model.queue.MappingWorksheet.Mapping;
 import hudson.model.queue.MappingWorksheet.WorkChunk;
 import hudson.model.queue.SubTask;
 import hudson.util.FormValidation;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Map;
+import java.util.Set;
 import jenkins.model.Jenkins;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences.BuildPreference;
-import jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences.BuildPreferenceJobProperty;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences.BuildPreferenceNodeProperty;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences.BuildPreferenceResolver;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences.JobNameBuildPreference;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences.ParameterCondition;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.NodeIndex;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ScoreMath;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.TimeWindow;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.verb.POST;
 
@@ -55,10 +61,13 @@ import org.kohsuke.stapler.verb.POST;
  * Scores nodes depending on preferences of nodes and projects.
  */
 public class NodePreferenceScoringRule extends ScoringRule {
-    private static Logger LOGGER = Logger.getLogger(NodePreferenceScoringRule.class.getName());
+    private static final String NODE_PREFERENCE_TABLE = NodePreferenceScoringRule.class.getName() + ".nodePreferences";
 
     private int nodesPreferenceScale;
     private int projectPreferenceScale;
+    private List<JobNameBuildPreference> jobNameBuildPreferenceList;
+
+    private transient volatile BuildPreferenceResolver buildPreferenceResolver;
 
     /**
      * @return the nodesPreferenceScale
@@ -74,6 +83,33 @@ public class NodePreferenceScoringRule extends ScoringRule {
         return projectPreferenceScale;
     }
 
+    /**
+     * Returns preferences applied to projects matching names.
+     *
+     * @return the list of preferences
+     */
+    public List<JobNameBuildPreference> getJobNameBuildPreferenceList() {
+        return jobNameBuildPreferenceList;
+    }
+
+    /**
+     * @param jobNameBuildPreferenceList preferences applied to projects matching names.
+     */
+    @DataBoundSetter
+    public void setJobNameBuildPreferenceList(List<JobNameBuildPreference> jobNameBuildPreferenceList) {
+        this.jobNameBuildPreferenceList = jobNameBuildPreferenceList;
+        this.buildPreferenceResolver = null;
+    }
+
+    private BuildPreferenceResolver getBuildPreferenceResolver() {
+        BuildPreferenceResolver resolver = buildPreferenceResolver;
+        if (resolver == null) {
+            resolver = new BuildPreferenceResolver(getJobNameBuildPreferenceList());
+            buildPreferenceResolver = resolver;
+        }
+        return resolver;
+    }
+
     /**
      * Constructor.
      *
@@ -88,6 +124,68 @@ public class NodePreferenceScoringRule extends ScoringRule {
         this.projectPreferenceScale = projectPreferenceScale;
     }
 
+    /**
+     * Buffers reused for scoring.
+     *
+     * Kept per thread and reused for subsequent subtasks.
+     * A new one is used when called recursively.
+     */
+    private static class Buffers {
+        private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+        /**
+         * Nodes to score, to access with indexes.
+         */
+        private final List<Node> nodes = new ArrayList<Node>();
+
+        /**
+         * Ids in {@link NodeIndex} for each of {@link #nodes}.
+         */
+        private int[] nodeIds = new int[0];
+
+        /**
+         * Set to the current time when acquired.
+         */
+        private final Calendar now = Calendar.getInstance();
+
+        private final List<BuildPreference> prefs = new ArrayList<BuildPreference>();
+
+        /**
+         * Nodes matching labels for each of {@link #prefs}.
+         */
+        private final List<BitSet> matched = new ArrayList<BitSet>();
+
+        private boolean inUse;
+
+        private static Buffers acquire(NodesScore nodesScore, NodeIndex index) {
+            Buffers buffers = BUFFERS.get();
+            if (buffers.inUse) {
+                buffers = new Buffers();
+            }
+            buffers.inUse = true;
+            for (Node node : nodesScore.getNodes()) {
+                buffers.nodes.add(node);
+            }
+            int size = buffers.nodes.size();
+            if (buffers.nodeIds.length < size) {
+                buffers.nodeIds = new int[size];
+            }
+            for (int i = 0; i < size; ++i) {
+                buffers.nodeIds[i] = index.indexOf(buffers.nodes.get(i));
+            }
+            buffers.now.setTimeInMillis(System.currentTimeMillis());
+            return buffers;
+        }
+
+        private void release() {
+            // not to retain nodes and preferences until the next subtask.
+            nodes.clear();
+            prefs.clear();
+            matched.clear();
+            inUse = false;
+        }
+    }
+
     /**
      * Scores nodes depending on preferences of nodes and projects.
      *
@@ -100,59 +198,199 @@ public class NodePreferenceScoringRule extends ScoringRule {
      */
     @Override
     public boolean updateScores(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore) {
-        // scores by preference configured in nodes.
-        for (Node node : nodesScore.getNodes()) {
-            List<BuildPreferenceNodeProperty> prefList =
-                    Util.filter(node.getNodeProperties(), BuildPreferenceNodeProperty.class);
-            if (prefList == null || prefList.isEmpty()) {
-                continue;
+        NodeIndex index = NodeIndex.get();
+        Buffers buffers = Buffers.acquire(nodesScore, index);
+        try {
+            List<Node> nodes = buffers.nodes;
+            int[] nodeIds = buffers.nodeIds;
+            Calendar now = buffers.now;
+
+            // scores by preference configured in nodes.
+            NodePreferences nodePreferences = index.getTable(NODE_PREFERENCE_TABLE, NodePreferences::new);
+            for (int i = 0; i < nodes.size(); ++i) {
+                // nodes not indexed yet are looked up directly.
+                int preference = (nodeIds[i] >= 0)
+                        ? nodePreferences.getPreference(nodeIds[i], now)
+                        : getNodePreference(nodes.get(i), now);
+                if (preference == 0) {
+                    continue;
+                }
+                nodesScore.addScore(nodes.get(i), ScoreMath.multiply(preference, getNodesPreferenceScale()));
+            }
+
+            // scores by preference configured in projects, folders and globally.
+            List<BuildPreference> prefs = buffers.prefs;
+            collectApplicablePreferences(wc, nodesScore, now, prefs);
+            for (int p = 0; p < prefs.size(); ++p) {
+                BuildPreference pref = prefs.get(p);
+                Label l = pref.getLabel();
+                BitSet matched = index.getNodes(l);
+                for (int i = 0; i < nodes.size(); ++i) {
+                    // nodes not indexed yet are tested directly.
+                    boolean contains = (nodeIds[i] >= 0) ? matched.get(nodeIds[i]) : l.contains(nodes.get(i));
+                    if (!contains) {
+                        continue;
+                    }
+                    nodesScore.addScore(
+                            nodes.get(i), ScoreMath.multiply(pref.getPreference(), getProjectPreferenceScale()));
+                }
             }
-            BuildPreferenceNodeProperty pref = prefList.get(0);
-            nodesScore.addScore(node, pref.getPreference() * getNodesPreferenceScale());
+        } finally {
+            buffers.release();
         }
 
-        // scores by preference configured in projects.
+        return true;
+    }
+
+    /**
+     * Collects preferences of projects applicable to the work chunk now.
+     *
+     * @param wc
+     * @param nodesScore
+     * @param now
+     * @param prefs stores active preferences with valid labels and matching parameters.
+     */
+    private void collectApplicablePreferences(
+            WorkChunk wc, NodesScore nodesScore, Calendar now, List<BuildPreference> prefs) {
+        BuildPreferenceResolver resolver = getBuildPreferenceResolver();
+        Map<String, String> parameters = null;
         for (SubTask subtask : wc) {
-            BuildPreferenceJobProperty prefs = getBuildPreferenceJobProperty(subtask);
-            if (prefs == null || prefs.getBuildPreferenceList() == null) {
-                continue;
+            for (BuildPreference pref : resolver.resolve(subtask)) {
+                if (!pref.isActive(now)) {
+                    continue;
+                }
+                if (pref.getParameterConditionList() != null) {
+                    if (parameters == null) {
+                        parameters = ParameterCondition.getParameterValues(nodesScore.getQueueItem());
+                    }
+                    if (!pref.matchesParameters(parameters)) {
+                        continue;
+                    }
+                }
+                // invalid expressions are already reported when parsed.
+                if (pref.getLabel() == null) {
+                    continue;
+                }
+                prefs.add(pref);
+            }
+        }
+    }
+
+    /**
+     * Adds nodes getting positive scores from preferences.
+     *
+     * Nodes with negative preferences are left to sampling, as they are less likely to be used.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param candidates
+     * @param preferred
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#addPreferredNodes(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore, java.util.Set)
+     */
+    @Override
+    public void addPreferredNodes(Task task, WorkChunk wc, Mapping m, NodesScore candidates, Set<Node> preferred) {
+        NodeIndex index = NodeIndex.get();
+        Buffers buffers = Buffers.acquire(candidates, index);
+        try {
+            List<Node> nodes = buffers.nodes;
+            int[] nodeIds = buffers.nodeIds;
+            Calendar now = buffers.now;
+            NodePreferences nodePreferences = index.getTable(NODE_PREFERENCE_TABLE, NodePreferences::new);
+
+            // keep only preferences adding positive scores.
+            List<BuildPreference> prefs = buffers.prefs;
+            collectApplicablePreferences(wc, candidates, now, prefs);
+            List<BitSet> matched = buffers.matched;
+            int positive = 0;
+            for (int p = 0; p < prefs.size(); ++p) {
+                BuildPreference pref = prefs.get(p);
+                if (ScoreMath.multiply(pref.getPreference(), getProjectPreferenceScale()) > 0) {
+                    prefs.set(positive++, pref);
+                    matched.add(index.getNodes(pref.getLabel()));
+                }
             }
 
-            for (BuildPreference pref : prefs.getBuildPreferenceList()) {
-                try {
-                    Label l = LabelExpression.parseExpression(pref.getLabelExpression());
-                    for (Node node : nodesScore.getNodes()) {
-                        if (!l.contains(node)) {
-                            continue;
-                        }
-                        nodesScore.addScore(node, pref.getPreference() * getProjectPreferenceScale());
+            for (int i = 0; i < nodes.size(); ++i) {
+                Node node = nodes.get(i);
+                int id = nodeIds[i];
+                int nodePreference = (id >= 0) ? nodePreferences.getPreference(id, now) : getNodePreference(node, now);
+                if (ScoreMath.multiply(nodePreference, getNodesPreferenceScale()) > 0) {
+                    preferred.add(node);
+                    continue;
+                }
+                for (int p = 0; p < positive; ++p) {
+                    // nodes not indexed yet are tested directly.
+                    if ((id >= 0) ? matched.get(p).get(id) : prefs.get(p).getLabel().contains(node)) {
+                        preferred.add(node);
+                        break;
                     }
-                } catch (IllegalArgumentException e) {
-                    LOGGER.log(
-                            Level.WARNING,
-                            String.format(
-                                    "Skipped an invalid label: %s (configured in %s)",
-                                    pref.getLabelExpression(), subtask.toString()),
-                            e);
                 }
             }
+        } finally {
+            buffers.release();
         }
+    }
 
+    /**
+     * {@inheritDoc}
+     *
+     * Scores depend only on preferences of nodes and the project.
+     */
+    @Override
+    public boolean isOrderIndependent() {
         return true;
     }
 
-    private BuildPreferenceJobProperty getBuildPreferenceJobProperty(SubTask subtask) {
-        if (!(subtask instanceof Job)) {
-            return null;
+    /**
+     * Preferences of nodes aligned with ids in {@link NodeIndex}.
+     */
+    private static class NodePreferences {
+        private final int[] preferences;
+
+        /**
+         * Time windows of preferences. null for preferences always applied.
+         * The array itself is null when no node has a time window.
+         */
+        private final TimeWindow[] timeWindows;
+
+        private NodePreferences(NodeIndex index) {
+            int size = index.getNodes().size();
+            int[] preferences = new int[size];
+            TimeWindow[] timeWindows = null;
+            for (int id = 0; id < size; ++id) {
+                BuildPreferenceNodeProperty pref = index.getNodeProperty(id, BuildPreferenceNodeProperty.class);
+                if (pref == null) {
+                    continue;
+                }
+                preferences[id] = pref.getPreference();
+                TimeWindow window = pref.getCompiledTimeWindow();
+                if (window != null) {
+                    if (timeWindows == null) {
+                        timeWindows = new TimeWindow[size];
+                    }
+                    timeWindows[id] = window;
+                }
+            }
+            this.preferences = preferences;
+            this.timeWindows = timeWindows;
         }
 
-        if (subtask instanceof MatrixConfiguration) {
-            MatrixConfiguration conf = (MatrixConfiguration) subtask;
-            return conf.getParent().getProperty(BuildPreferenceJobProperty.class);
+        private int getPreference(int id, Calendar now) {
+            if (timeWindows != null && timeWindows[id] != null && !timeWindows[id].isActive(now)) {
+                return 0;
+            }
+            return preferences[id];
         }
+    }
 
-        Job<?, ?> job = (Job<?, ?>) subtask;
-        return job.getProperty(BuildPreferenceJobProperty.class);
+    private static int getNodePreference(Node node, Calendar now) {
+        List<BuildPreferenceNodeProperty> prefList =
+                Util.filter(node.getNodeProperties(), BuildPreferenceNodeProperty.class);
+        if (prefList == null || prefList.isEmpty() || !prefList.get(0).isActive(now)) {
+            return 0;
+        }
+        return prefList.get(0).getPreference();
     }
 
     /**
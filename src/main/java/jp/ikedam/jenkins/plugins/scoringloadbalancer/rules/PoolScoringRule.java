@@ -0,0 +1,482 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Descriptor;
+import hudson.model.Queue.Task;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.Mapping;
+import hudson.model.queue.MappingWorksheet.WorkChunk;
+import hudson.util.FormValidation;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.pool.NodePools;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ScoreMath;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
+import org.jenkinsci.Symbol;
+import org.jvnet.localizer.Localizable;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Ranks pools of nodes (e.g. availability zones) first, and then nodes in the best pools.
+ *
+ * Pools are ranked with statistics aggregated in {@link NodePools},
+ * so the cost to rank pools doesn't depend on the number of nodes in them.
+ * Restricting candidates to the best pools also reduces nodes subsequent rules score.
+ */
+public class PoolScoringRule extends ScoringRule {
+    private static final Logger LOGGER = Logger.getLogger(PoolScoringRule.class.getName());
+
+    /**
+     * How to rank pools.
+     */
+    public enum Criterion {
+        /**
+         * Prefers pools with more idle executors.
+         */
+        FREE_EXECUTORS(Messages._PoolScoringRule_Criterion_FreeExecutors()),
+        /**
+         * Prefers pools with less ratio of busy executors.
+         */
+        LOAD(Messages._PoolScoringRule_Criterion_Load());
+
+        private final Localizable displayName;
+
+        Criterion(Localizable displayName) {
+            this.displayName = displayName;
+        }
+
+        /**
+         * @return the name to display
+         */
+        public String getDisplayName() {
+            return displayName.toString();
+        }
+    }
+
+    /**
+     * How to treat nodes in the best pools.
+     */
+    public enum Mode {
+        /**
+         * Uses only nodes in the best pools.
+         */
+        RESTRICT(Messages._PoolScoringRule_Mode_Restrict()),
+        /**
+         * Increases scores of nodes in the best pools.
+         */
+        PREFER(Messages._PoolScoringRule_Mode_Prefer());
+
+        private final Localizable displayName;
+
+        Mode(Localizable displayName) {
+            this.displayName = displayName;
+        }
+
+        /**
+         * @return the name to display
+         */
+        public String getDisplayName() {
+            return displayName.toString();
+        }
+    }
+
+    // default values are defined in config.jelly.
+    private final String poolLabelPattern;
+    private final int poolCount;
+    private final Criterion criterion;
+    private final Mode mode;
+    private final int scale;
+
+    private transient volatile Pattern compiledPoolLabelPattern;
+
+    /**
+     * @return the regular expression for labels of pools.
+     */
+    public String getPoolLabelPattern() {
+        return poolLabelPattern;
+    }
+
+    /**
+     * @return the number of best pools to use.
+     */
+    public int getPoolCount() {
+        return poolCount;
+    }
+
+    /**
+     * @return how to rank pools.
+     */
+    public Criterion getCriterion() {
+        return (criterion != null) ? criterion : Criterion.FREE_EXECUTORS;
+    }
+
+    /**
+     * @return how to treat nodes in the best pools.
+     */
+    public Mode getMode() {
+        return (mode != null) ? mode : Mode.RESTRICT;
+    }
+
+    /**
+     * @return the scale
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param poolLabelPattern
+     * @param poolCount
+     * @param criterion
+     * @param mode
+     * @param scale
+     */
+    @DataBoundConstructor
+    public PoolScoringRule(String poolLabelPattern, int poolCount, Criterion criterion, Mode mode, int scale) {
+        this.poolLabelPattern = Util.fixEmptyAndTrim(poolLabelPattern);
+        this.poolCount = poolCount;
+        this.criterion = criterion;
+        this.mode = mode;
+        this.scale = scale;
+    }
+
+    private Pattern getCompiledPoolLabelPattern() {
+        Pattern pattern = compiledPoolLabelPattern;
+        if (pattern == null && getPoolLabelPattern() != null) {
+            try {
+                pattern = Pattern.compile(getPoolLabelPattern());
+            } catch (PatternSyntaxException e) {
+                LOGGER.log(
+                        Level.WARNING,
+                        String.format("Ignored an invalid pattern for pools: %s", getPoolLabelPattern()),
+                        e);
+                return null;
+            }
+            compiledPoolLabelPattern = pattern;
+        }
+        return pattern;
+    }
+
+    /**
+     * Exclude nodes out of the best pools if configured so.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param candidates
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#filterCandidates(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public void filterCandidates(Task task, WorkChunk wc, Mapping m, NodesScore candidates) {
+        if (getMode() != Mode.RESTRICT) {
+            return;
+        }
+        NodePools pools = getPools();
+        if (pools == null || getPoolCount() <= 0) {
+            return;
+        }
+        Buffers buffers = Buffers.acquire(pools, getPoolCount());
+        try {
+            if (!rankPools(pools, candidates, buffers)) {
+                return;
+            }
+            int[] ranks = buffers.ranks;
+            for (ExecutorChunk ec : candidates.getExecutorChunks()) {
+                int pool = pools.getPool(ec.node);
+                // nodes not indexed yet are left to other rules.
+                if (pool >= 0 && ranks[pool] >= getPoolCount()) {
+                    candidates.markInvalid(ec);
+                }
+            }
+        } finally {
+            buffers.release();
+        }
+    }
+
+    /**
+     * Scores nodes in the best pools if configured so.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param nodesScore
+     * @return
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#updateScores(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public boolean updateScores(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore) {
+        if (getMode() != Mode.PREFER) {
+            return true;
+        }
+        NodePools pools = getPools();
+        int k = getPoolCount();
+        if (pools == null || k <= 0) {
+            return true;
+        }
+        Buffers buffers = Buffers.acquire(pools, k);
+        try {
+            if (!rankPools(pools, nodesScore, buffers)) {
+                return true;
+            }
+            int[] ranks = buffers.ranks;
+            for (ExecutorChunk ec : nodesScore.getExecutorChunks()) {
+                int pool = pools.getPool(ec.node);
+                if (pool >= 0 && ranks[pool] < k) {
+                    nodesScore.addScore(ec, ScoreMath.multiply(getScale(), k - ranks[pool]) / k);
+                }
+            }
+        } finally {
+            buffers.release();
+        }
+        return true;
+    }
+
+    private NodePools getPools() {
+        Pattern pattern = getCompiledPoolLabelPattern();
+        return (pattern != null) ? NodePools.get(pattern) : null;
+    }
+
+    /**
+     * Buffers reused for ranking pools.
+     *
+     * Kept per thread and reused for subsequent subtasks.
+     * A new one is used when called recursively.
+     */
+    private static class Buffers {
+        private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+        /**
+         * Whether each pool has valid candidates, indexed with ids of pools.
+         */
+        private boolean[] present = new boolean[0];
+
+        /**
+         * Ids of the best pools in descending order.
+         */
+        private int[] top = new int[0];
+
+        /**
+         * Ranks of pools indexed with ids of pools.
+         */
+        private int[] ranks = new int[0];
+
+        private boolean inUse;
+
+        private static Buffers acquire(NodePools pools, int k) {
+            Buffers buffers = BUFFERS.get();
+            if (buffers.inUse) {
+                buffers = new Buffers();
+            }
+            buffers.inUse = true;
+            int size = pools.size();
+            if (buffers.present.length < size) {
+                buffers.present = new boolean[size];
+                buffers.ranks = new int[size];
+            }
+            Arrays.fill(buffers.present, 0, size, false);
+            if (buffers.top.length < Math.min(k, size)) {
+                buffers.top = new int[Math.min(k, size)];
+            }
+            return buffers;
+        }
+
+        private void release() {
+            inUse = false;
+        }
+    }
+
+    /**
+     * Ranks pools having valid candidates.
+     *
+     * Only the best pools get ranks, as other pools are treated the same.
+     *
+     * @param pools
+     * @param nodesScore
+     * @param buffers stores ranks of pools to {@link Buffers#ranks}.
+     * @return whether pools are ranked. false if no need to rank.
+     */
+    private boolean rankPools(NodePools pools, NodesScore nodesScore, Buffers buffers) {
+        boolean[] present = buffers.present;
+        int candidatePools = 0;
+        for (ExecutorChunk ec : nodesScore.getExecutorChunks()) {
+            int pool = pools.getPool(ec.node);
+            if (pool >= 0 && !present[pool] && !nodesScore.isInvalid(ec)) {
+                present[pool] = true;
+                ++candidatePools;
+            }
+        }
+        if (candidatePools <= getPoolCount() && getMode() == Mode.RESTRICT) {
+            return false;
+        }
+
+        Criterion c = getCriterion();
+        int[] top = buffers.top;
+        int k = Math.min(getPoolCount(), pools.size());
+        int topCount = 0;
+        for (int pool = 0; pool < pools.size(); ++pool) {
+            if (present[pool]) {
+                topCount = insert(pools, c, top, topCount, k, pool);
+            }
+        }
+
+        int[] ranks = buffers.ranks;
+        // pools without candidates never rank in.
+        Arrays.fill(ranks, 0, pools.size(), Integer.MAX_VALUE);
+        for (int rank = 0; rank < topCount; ++rank) {
+            ranks[top[rank]] = rank;
+        }
+        return true;
+    }
+
+    /**
+     * Inserts the pool into the sorted array if it ranks in.
+     *
+     * @param pools
+     * @param criterion
+     * @param top ids of pools in descending order.
+     * @param count the number of pools in top.
+     * @param k the maximum number of pools in top.
+     * @param pool
+     * @return the new number of pools in top.
+     */
+    private static int insert(NodePools pools, Criterion criterion, int[] top, int count, int k, int pool) {
+        int pos = count;
+        while (pos > 0 && compareWithNames(pools, criterion, pool, top[pos - 1]) < 0) {
+            --pos;
+        }
+        if (pos >= k) {
+            return count;
+        }
+        int last = Math.min(count, k - 1);
+        System.arraycopy(top, pos, top, pos + 1, last - pos);
+        top[pos] = pool;
+        return Math.min(count + 1, k);
+    }
+
+    /**
+     * @return negative if p1 is better than p2.
+     */
+    private static int compareWithNames(NodePools pools, Criterion criterion, int p1, int p2) {
+        int result = compare(pools, criterion, p1, p2);
+        // ties are broken by names to rank pools stably.
+        return (result != 0) ? result : pools.getName(p1).compareTo(pools.getName(p2));
+    }
+
+    /**
+     * @return negative if p1 is better than p2.
+     */
+    private static int compare(NodePools pools, Criterion criterion, int p1, int p2) {
+        switch (criterion) {
+            case LOAD:
+                // busy1 / executors1 < busy2 / executors2 without divisions.
+                return Long.compare(
+                        (long) pools.getBusy(p1) * Math.max(pools.getExecutors(p2), 1),
+                        (long) pools.getBusy(p2) * Math.max(pools.getExecutors(p1), 1));
+            case FREE_EXECUTORS:
+            default:
+                return Integer.compare(pools.getFree(p2), pools.getFree(p1));
+        }
+    }
+
+    /**
+     * Manages views for {@link PoolScoringRule}
+     */
+    @Extension
+    @Symbol("poolScoringRule")
+    public static class DescriptorImpl extends Descriptor<ScoringRule> {
+        /**
+         * Returns the name to display.
+         *
+         * Displayed in System Configuration page, as a name of a scoring rule.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.PoolScoringRule_DisplayName();
+        }
+
+        /**
+         * Verify the input pattern.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckPoolLabelPattern(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            value = Util.fixEmptyAndTrim(value);
+            if (value == null) {
+                return FormValidation.error(Messages.PoolScoringRule_poolLabelPattern_required());
+            }
+            try {
+                Pattern.compile(value);
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(e, Messages.PoolScoringRule_poolLabelPattern_invalid());
+            }
+            return FormValidation.ok();
+        }
+
+        /**
+         * Verify the input number of pools.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckPoolCount(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return ValidationUtil.doCheckNonNegativeInteger(value);
+        }
+
+        /**
+         * Verify the input scale.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckScale(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return ValidationUtil.doCheckInteger(value);
+        }
+    }
+}
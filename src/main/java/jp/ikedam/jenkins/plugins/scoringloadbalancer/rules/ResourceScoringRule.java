@@ -0,0 +1,305 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Queue.Task;
+import hudson.model.queue.MappingWorksheet;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.model.queue.MappingWorksheet.Mapping;
+import hudson.model.queue.MappingWorksheet.WorkChunk;
+import hudson.model.queue.SubTask;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.PendingAssignments;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.resources.ReservationLedger;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.resources.ResourceCapacityNodeProperty;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.resources.ResourceRequirementJobProperty;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.resources.Resources;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.NodeIndex;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ScoreMath;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
+import org.jenkinsci.Symbol;
+import org.jvnet.localizer.Localizable;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Score nodes depending on resources required by projects and resources left on nodes.
+ *
+ * Nodes without enough resources left are excluded.
+ */
+public class ResourceScoringRule extends ScoringRule {
+    /**
+     * How to choose nodes among ones with enough resources.
+     */
+    public enum FitStrategy {
+        /**
+         * Scores all nodes with enough resources equally.
+         */
+        FIT(Messages._ResourceScoringRule_FitStrategy_Fit()),
+        /**
+         * Prefers nodes with less resources left after the build, to keep large nodes available.
+         */
+        BEST_FIT(Messages._ResourceScoringRule_FitStrategy_BestFit()),
+        /**
+         * Prefers nodes with more resources left after the build, to spread loads.
+         */
+        WORST_FIT(Messages._ResourceScoringRule_FitStrategy_WorstFit());
+
+        private final Localizable displayName;
+
+        FitStrategy(Localizable displayName) {
+            this.displayName = displayName;
+        }
+
+        /**
+         * @return the name to display
+         */
+        public String getDisplayName() {
+            return displayName.toString();
+        }
+    }
+
+    // default values are defined in config.jelly.
+    private int scale;
+    private FitStrategy fitStrategy;
+
+    /**
+     * @return the scale
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * @return the strategy to choose nodes.
+     */
+    public FitStrategy getFitStrategy() {
+        return (fitStrategy != null) ? fitStrategy : FitStrategy.BEST_FIT;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param scale
+     * @param fitStrategy
+     */
+    @DataBoundConstructor
+    public ResourceScoringRule(int scale, FitStrategy fitStrategy) {
+        this.scale = scale;
+        this.fitStrategy = fitStrategy;
+    }
+
+    /**
+     * Exclude nodes without enough resources left.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param candidates
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#filterCandidates(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public void filterCandidates(Task task, WorkChunk wc, Mapping m, NodesScore candidates) {
+        Resources required = PendingAssignments.countRequirement(wc);
+        if (required.isZero()) {
+            return;
+        }
+
+        NodeIndex index = NodeIndex.get();
+        ReservationLedger ledger = ReservationLedger.get();
+        PendingAssignments pending = candidates.getPendingAssignments();
+        for (ExecutorChunk ec : candidates.getExecutorChunks()) {
+            if (candidates.isInvalid(ec)) {
+                continue;
+            }
+            ResourceCapacityNodeProperty prop = getCapacity(index, ec);
+            if (prop == null) {
+                // resources of this node are not managed.
+                continue;
+            }
+            Resources used = ledger.getReserved(ec.computer).add(getPendingRequirement(pending, m, ec));
+            if (!required.fitsIn(used, prop.getCapacity())) {
+                candidates.markInvalid(ec);
+            }
+        }
+    }
+
+    /**
+     * Score nodes depending on resources left on them.
+     *
+     * Nodes without enough resources are usually excluded in
+     * {@link #filterCandidates(Task, WorkChunk, Mapping, NodesScore)},
+     * but are also excluded here as resources may be consumed in the meantime.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param nodesScore
+     * @return
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#updateScores(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public boolean updateScores(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore) {
+        Resources required = PendingAssignments.countRequirement(wc);
+        if (required.isZero()) {
+            return true;
+        }
+
+        NodeIndex index = NodeIndex.get();
+        ReservationLedger ledger = ReservationLedger.get();
+        PendingAssignments pending = nodesScore.getPendingAssignments();
+        for (ExecutorChunk ec : nodesScore.getExecutorChunks()) {
+            ResourceCapacityNodeProperty prop = getCapacity(index, ec);
+            if (prop == null) {
+                // resources of this node are not managed.
+                continue;
+            }
+            Resources capacity = prop.getCapacity();
+            Resources used = ledger.getReserved(ec.computer).add(getPendingRequirement(pending, m, ec));
+            if (!required.fitsIn(used, capacity)) {
+                nodesScore.markInvalid(ec);
+                continue;
+            }
+            int fit = scoreFit(required.getLeftoverPercent(used, capacity));
+            nodesScore.addScore(ec, ScoreMath.multiply(fit, getScale()) / 100);
+        }
+
+        return true;
+    }
+
+    /**
+     * Count resources of the decided nodes until executors accept the builds.
+     *
+     * @param task
+     * @param worksheet
+     * @param m
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#onMapped(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet, hudson.model.queue.MappingWorksheet.Mapping)
+     */
+    @Override
+    public void onMapped(Task task, MappingWorksheet worksheet, Mapping m) {
+        if (worksheet.item == null) {
+            return;
+        }
+        ReservationLedger ledger = ReservationLedger.get();
+        for (int i = 0; i < m.size(); ++i) {
+            ExecutorChunk ec = m.assigned(i);
+            if (ec == null) {
+                continue;
+            }
+            for (SubTask subtask : m.get(i)) {
+                ledger.assign(
+                        worksheet.item.getId(),
+                        subtask,
+                        ec.computer,
+                        ResourceRequirementJobProperty.getRequirement(subtask));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Resources of each node are checked without looking at other rules.
+     */
+    @Override
+    public boolean isOrderIndependent() {
+        return true;
+    }
+
+    private int scoreFit(int leftoverPercent) {
+        switch (getFitStrategy()) {
+            case BEST_FIT:
+                return 100 - leftoverPercent;
+            case WORST_FIT:
+                return leftoverPercent;
+            default:
+                return 100;
+        }
+    }
+
+    private static ResourceCapacityNodeProperty getCapacity(NodeIndex index, ExecutorChunk ec) {
+        int id = index.indexOf(ec.node);
+        if (id >= 0) {
+            return index.getNodeProperty(id, ResourceCapacityNodeProperty.class);
+        }
+        // nodes not indexed yet are looked up directly.
+        return ec.node.getNodeProperties().get(ResourceCapacityNodeProperty.class);
+    }
+
+    /**
+     * Resources required by other work chunks about to be assigned to the executor chunk.
+     *
+     * @param pending executors about to be assigned. can be null.
+     * @param m
+     * @param ec
+     * @return resources about to be used.
+     */
+    private static Resources getPendingRequirement(PendingAssignments pending, Mapping m, ExecutorChunk ec) {
+        if (pending != null) {
+            return pending.getPendingResources(ec);
+        }
+        return PendingAssignments.countPendingResources(m, ec);
+    }
+
+    /**
+     * Manages views for {@link ResourceScoringRule}
+     */
+    @Extension
+    @Symbol("resourceScoringRule")
+    public static class DescriptorImpl extends Descriptor<ScoringRule> {
+        /**
+         * Returns the name to display.
+         *
+         * Displayed in System Configuration page, as a name of a scoring rule.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.ResourceScoringRule_DisplayName();
+        }
+
+        /**
+         * Verify the input scale.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckScale(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return ValidationUtil.doCheckInteger(value);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * A {@link ScoringRule} combined in {@link CompositeScoringRule}.
+ */
+public class ScoringRuleComponent extends AbstractDescribableImpl<ScoringRuleComponent> {
+    private ScoringRule scoringRule;
+    private int weight;
+
+    /**
+     * @return the scoring rule.
+     */
+    public ScoringRule getScoringRule() {
+        return scoringRule;
+    }
+
+    /**
+     * @return the weight used in weighted sums.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param scoringRule
+     * @param weight
+     */
+    @DataBoundConstructor
+    public ScoringRuleComponent(ScoringRule scoringRule, int weight) {
+        this.scoringRule = scoringRule;
+        this.weight = weight;
+    }
+
+    /**
+     * Manages view for {@link ScoringRuleComponent}.
+     */
+    @Extension
+    public static class DescriptorImpl extends Descriptor<ScoringRuleComponent> {
+        /**
+         * Returns the name to display.
+         *
+         * Never used.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return "Component Scoring Rule";
+        }
+
+        /**
+         * Returns {@link ScoringRule}s available as components.
+         *
+         * {@link CompositeScoringRule} is excluded not to nest forms infinitely.
+         *
+         * @return list of {@link Descriptor} of {@link ScoringRule}s.
+         */
+        public List<Descriptor<ScoringRule>> getScoringRuleDescriptors() {
+            List<Descriptor<ScoringRule>> descriptors = new ArrayList<Descriptor<ScoringRule>>();
+            for (Descriptor<ScoringRule> d : ScoringRule.all()) {
+                if (!CompositeScoringRule.class.equals(d.clazz)) {
+                    descriptors.add(d);
+                }
+            }
+            return descriptors;
+        }
+
+        /**
+         * Verify the input weight.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckWeight(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return ValidationUtil.doCheckNonNegativeInteger(value);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Queue.Task;
+import hudson.model.queue.MappingWorksheet.Mapping;
+import hudson.model.queue.MappingWorksheet.WorkChunk;
+import hudson.util.FormValidation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import jenkins.model.Jenkins;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.NodeRegistry;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.RendezvousHash;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ScoreMath;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.TaskUtil;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.util.ValidationUtil;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Prefers a stable small set of nodes for each project, to reuse workspaces and caches on them.
+ *
+ * Nodes are ranked with rendezvous hashing of the project name and the node name,
+ * so adding or removing a node changes sets of few projects.
+ */
+public class StickyNodeScoringRule extends ScoringRule {
+    private static final Logger LOGGER = Logger.getLogger(StickyNodeScoringRule.class.getName());
+
+    // default values are defined in config.jelly.
+    private int nodeCount;
+    private int scale;
+    private String ignoredNamePattern;
+
+    /**
+     * The pattern compiled from {@link #ignoredNamePattern}.
+     * null if not specified or invalid.
+     */
+    private transient volatile Pattern compiledIgnoredNamePattern;
+
+    private transient volatile boolean compiled;
+
+    /**
+     * Hashes of node keys, discarded when {@link #ignoredNamePattern} is changed.
+     */
+    private transient volatile NodeHashes nodeHashes;
+
+    /**
+     * @return the number of nodes preferred for each project.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the scale
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * Returns the regular expression for parts of node names ignored in hashing.
+     *
+     * Used for agents provisioned by clouds, whose names contain random parts.
+     *
+     * @return the regular expression
+     */
+    public String getIgnoredNamePattern() {
+        return ignoredNamePattern;
+    }
+
+    /**
+     * @param ignoredNamePattern the regular expression for parts of node names ignored in hashing.
+     */
+    @DataBoundSetter
+    public void setIgnoredNamePattern(String ignoredNamePattern) {
+        this.ignoredNamePattern =
+                (ignoredNamePattern == null || ignoredNamePattern.isBlank()) ? null : ignoredNamePattern.trim();
+        this.compiled = false;
+        this.nodeHashes = null;
+    }
+
+    /**
+     * Constructor.
+     *
+     * Initialized with values a user configured.
+     *
+     * @param nodeCount
+     * @param scale
+     */
+    @DataBoundConstructor
+    public StickyNodeScoringRule(int nodeCount, int scale) {
+        this.nodeCount = nodeCount;
+        this.scale = scale;
+    }
+
+    /**
+     * Returns the key of the node used in hashing.
+     *
+     * @param node
+     * @return the node name without ignored parts.
+     */
+    public String getNodeKey(Node node) {
+        if (!compiled) {
+            compiledIgnoredNamePattern = compileIgnoredNamePattern(getIgnoredNamePattern());
+            compiled = true;
+        }
+        Pattern p = compiledIgnoredNamePattern;
+        return (p != null) ? p.matcher(node.getNodeName()).replaceAll("") : node.getNodeName();
+    }
+
+    private static Pattern compileIgnoredNamePattern(String ignoredNamePattern) {
+        if (ignoredNamePattern == null) {
+            return null;
+        }
+        try {
+            return Pattern.compile(ignoredNamePattern);
+        } catch (PatternSyntaxException e) {
+            LOGGER.log(
+                    Level.WARNING, String.format("Ignored an invalid node name pattern: %s", ignoredNamePattern), e);
+            return null;
+        }
+    }
+
+    /**
+     * Hashes of node keys indexed with ids of {@link NodeRegistry}.
+     *
+     * Kept while nodes keep their ids, even when nodes are reconfigured or go online or offline.
+     */
+    private static class NodeHashes {
+        private long[] hashes = new long[0];
+        // generations + 1 of ids the hashes are computed for. 0 for not computed.
+        private int[] generations = new int[0];
+    }
+
+    private NodeHashes getNodeHashes() {
+        NodeHashes hashes = nodeHashes;
+        if (hashes == null) {
+            hashes = new NodeHashes();
+            nodeHashes = hashes;
+        }
+        return hashes;
+    }
+
+    private long getNodeHash(NodeHashes cache, NodeRegistry registry, Node node) {
+        int id = registry.getId(node);
+        int generation = registry.getGeneration(id) + 1;
+        if (id < cache.hashes.length && cache.generations[id] == generation) {
+            return cache.hashes[id];
+        }
+        long hash = RendezvousHash.hash(getNodeKey(node));
+        if (registry.lookup(node.getNodeName()) != id) {
+            // the id was released in the meantime.
+            return hash;
+        }
+        if (id >= cache.hashes.length) {
+            int length = Math.max(id + 1, registry.size());
+            cache.hashes = Arrays.copyOf(cache.hashes, length);
+            cache.generations = Arrays.copyOf(cache.generations, length);
+        }
+        cache.hashes[id] = hash;
+        cache.generations[id] = generation;
+        return hash;
+    }
+
+    /**
+     * Buffers reused for ranking nodes.
+     *
+     * Kept per thread and reused for subsequent subtasks.
+     * A new one is used when called recursively.
+     */
+    private static class Buffers {
+        private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+        /**
+         * Nodes to rank, to access with indexes.
+         */
+        private final List<Node> nodes = new ArrayList<Node>();
+
+        /**
+         * Weights for each of {@link #nodes}.
+         */
+        private long[] weights = new long[0];
+
+        /**
+         * Top distinct weights in descending order.
+         */
+        private long[] top = new long[0];
+
+        private boolean inUse;
+
+        private static Buffers acquire(NodesScore nodesScore, int k) {
+            Buffers buffers = BUFFERS.get();
+            if (buffers.inUse) {
+                buffers = new Buffers();
+            }
+            buffers.inUse = true;
+            for (Node node : nodesScore.getNodes()) {
+                buffers.nodes.add(node);
+            }
+            if (buffers.weights.length < buffers.nodes.size()) {
+                buffers.weights = new long[buffers.nodes.size()];
+            }
+            if (buffers.top.length < k) {
+                buffers.top = new long[k];
+            }
+            return buffers;
+        }
+
+        private void release() {
+            // not to retain nodes until the next subtask.
+            nodes.clear();
+            inUse = false;
+        }
+    }
+
+    /**
+     * Add scores to the nodes ranked top for the project.
+     *
+     * Nodes sharing the same key (e.g. agents from the same cloud template) share the same rank.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param nodesScore
+     * @return
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#updateScores(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public boolean updateScores(Task task, WorkChunk wc, Mapping m, NodesScore nodesScore) {
+        int k = getNodeCount();
+        if (k <= 0) {
+            return true;
+        }
+        Buffers buffers = Buffers.acquire(nodesScore, k);
+        try {
+            List<Node> nodes = buffers.nodes;
+            long[] weights = buffers.weights;
+            long[] top = buffers.top;
+            computeWeights(task, wc, nodes, weights);
+            int topCount = rankTopWeights(weights, nodes.size(), top, k);
+
+            for (int i = 0; i < nodes.size(); ++i) {
+                for (int rank = 0; rank < topCount; ++rank) {
+                    if (weights[i] == top[rank]) {
+                        nodesScore.addScore(nodes.get(i), ScoreMath.multiply(getScale(), k - rank) / k);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            buffers.release();
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds nodes ranked top for the project.
+     *
+     * Ranks among sampled nodes stay the same as ones among all candidates.
+     *
+     * @param task
+     * @param wc
+     * @param m
+     * @param candidates
+     * @param preferred
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#addPreferredNodes(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore, java.util.Set)
+     */
+    @Override
+    public void addPreferredNodes(Task task, WorkChunk wc, Mapping m, NodesScore candidates, Set<Node> preferred) {
+        int k = getNodeCount();
+        if (k <= 0 || getScale() <= 0) {
+            return;
+        }
+        Buffers buffers = Buffers.acquire(candidates, k);
+        try {
+            List<Node> nodes = buffers.nodes;
+            long[] weights = buffers.weights;
+            long[] top = buffers.top;
+            computeWeights(task, wc, nodes, weights);
+            int topCount = rankTopWeights(weights, nodes.size(), top, k);
+            if (topCount == 0) {
+                return;
+            }
+            for (int i = 0; i < nodes.size(); ++i) {
+                if (weights[i] >= top[topCount - 1]) {
+                    preferred.add(nodes.get(i));
+                }
+            }
+        } finally {
+            buffers.release();
+        }
+    }
+
+    /**
+     * @param task
+     * @param wc
+     * @param nodes
+     * @param weights stores weights of nodes for the project.
+     */
+    private void computeWeights(Task task, WorkChunk wc, List<Node> nodes, long[] weights) {
+        Job<?, ?> job = TaskUtil.getJob(wc.get(0));
+        long jobHash = RendezvousHash.hash((job != null) ? job.getFullName() : task.getFullDisplayName());
+
+        NodeRegistry registry = NodeRegistry.get();
+        NodeHashes cache = getNodeHashes();
+        synchronized (cache) {
+            for (int i = 0; i < nodes.size(); ++i) {
+                weights[i] = RendezvousHash.weight(jobHash, getNodeHash(cache, registry, nodes.get(i)));
+            }
+        }
+    }
+
+    /**
+     * @param weights
+     * @param size the number of weights to rank.
+     * @param top stores top k distinct weights in descending order.
+     * @param k
+     * @return the number of weights stored in top.
+     */
+    private static int rankTopWeights(long[] weights, int size, long[] top, int k) {
+        int topCount = 0;
+        for (int i = 0; i < size; ++i) {
+            topCount = insert(top, topCount, k, weights[i]);
+        }
+        return topCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Scores depend only on hashes of the task and nodes.
+     */
+    @Override
+    public boolean isOrderIndependent() {
+        return true;
+    }
+
+    /**
+     * Inserts the weight into the sorted array if it ranks in.
+     *
+     * @param top distinct weights in descending order.
+     * @param count the number of weights in top.
+     * @param k the maximum number of weights in top.
+     * @param weight
+     * @return the new number of weights in top.
+     */
+    private static int insert(long[] top, int count, int k, long weight) {
+        int pos = count;
+        while (pos > 0 && top[pos - 1] < weight) {
+            --pos;
+        }
+        if (pos > 0 && top[pos - 1] == weight) {
+            return count;
+        }
+        if (pos >= k) {
+            return count;
+        }
+        int last = Math.min(count, k - 1);
+        System.arraycopy(top, pos, top, pos + 1, last - pos);
+        top[pos] = weight;
+        return Math.min(count + 1, k);
+    }
+
+    /**
+     * Manages views for {@link StickyNodeScoringRule}
+     */
+    @Extension
+    @Symbol("stickyNodeScoringRule")
+    public static class DescriptorImpl extends Descriptor<ScoringRule> {
+        /**
+         * Returns the name to display.
+         *
+         * Displayed in System Configuration page, as a name of a scoring rule.
+         *
+         * @return the name to display
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName() {
+            return Messages.StickyNodeScoringRule_DisplayName();
+        }
+
+        /**
+         * Verify the input number of nodes.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckNodeCount(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return ValidationUtil.doCheckNonNegativeInteger(value);
+        }
+
+        /**
+         * Verify the input scale.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckScale(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            return ValidationUtil.doCheckInteger(value);
+        }
+
+        /**
+         * Verify the input ignored name pattern.
+         *
+         * @param value
+         * @return
+         */
+        @POST
+        public FormValidation doCheckIgnoredNamePattern(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            if (value == null || value.isBlank()) {
+                return FormValidation.ok();
+            }
+            try {
+                Pattern.compile(value.trim());
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(e, Messages.StickyNodeScoringRule_ignoredNamePattern_invalid());
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.util;
+
+import hudson.model.queue.SubTask;
+
+/**
+ * Identifies a subtask assigned by the load balancer until an executor accepts it.
+ *
+ * The same subtask can be assigned for multiple queue items (e.g. concurrent builds of a project),
+ * so it is identified with the id of the queue item.
+ */
+public final class AssignmentKey {
+    private final long itemId;
+    private final SubTask work;
+
+    /**
+     * Constructor.
+     *
+     * @param itemId the id of the queue item.
+     * @param work the subtask.
+     */
+    public AssignmentKey(long itemId, SubTask work) {
+        this.itemId = itemId;
+        this.work = work;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AssignmentKey)) {
+            return false;
+        }
+        AssignmentKey other = (AssignmentKey) o;
+        return itemId == other.itemId && work == other.work;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(itemId) * 31 + System.identityHashCode(work);
+    }
+}
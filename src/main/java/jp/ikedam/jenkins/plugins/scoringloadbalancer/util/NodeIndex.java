@@ -0,0 +1,512 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.util;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
+import hudson.model.labels.LabelExpression;
+import hudson.model.labels.LabelVisitor;
+import hudson.slaves.ComputerListener;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.OfflineCause;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+/**
+ * Snapshot of nodes indexed with dense integer ids.
+ *
+ * Ids are ones assigned by {@link NodeRegistry}, so they are the same among snapshots.
+ *
+ * Holds nodes with each label atom as a {@link BitSet},
+ * and evaluates label expressions with set operations of them
+ * instead of testing each node with {@link Label#contains(Node)}.
+ *
+ * Also caches tables derived from nodes (e.g. values of node properties)
+ * aligned with ids of nodes, not to look up nodes in each scheduling.
+ *
+ * When a node is added, updated or removed, bits of the node are patched in a copy of the snapshot.
+ * The snapshot is rebuilt when it is requested after the global configuration is changed.
+ */
+public class NodeIndex {
+    private static final AtomicInteger generation = new AtomicInteger();
+    private static volatile NodeIndex instance;
+
+    /**
+     * Returns the index of current nodes.
+     *
+     * @return the index of current nodes.
+     */
+    public static NodeIndex get() {
+        int gen = generation.get();
+        NodeIndex index = instance;
+        if (index == null || index.generation != gen) {
+            index = new NodeIndex(Jenkins.get(), gen);
+            instance = index;
+        }
+        return index;
+    }
+
+    /**
+     * Discards the current index.
+     *
+     * Called when nodes or labels can be changed in ways not told to {@link #update(Node, Node)}.
+     */
+    public static synchronized void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Updates the index for a changed node.
+     *
+     * Only bits of the node are patched in a copy of the current index,
+     * as nodes are changed one by one and rebuilding the whole index costs labels of all nodes.
+     * Nothing is done when the index is already discarded, as it is rebuilt when requested.
+     *
+     * @param oldOne the node before the change. null for a created node.
+     * @param newOne the node after the change. null for a removed node.
+     */
+    static synchronized void update(@CheckForNull Node oldOne, @CheckForNull Node newOne) {
+        NodeIndex index = instance;
+        if (index == null || index.generation != generation.get()) {
+            return;
+        }
+        instance = new NodeIndex(index, oldOne, newOne, generation.incrementAndGet());
+    }
+
+    private final int generation;
+    private final List<Node> nodes;
+    private final Map<String, BitSet> atomNodes;
+    private final String[] labelNames;
+    private final int[] labelUsages;
+    private final BitSet allNodes;
+    private final Map<Label, BitSet> labelNodes = new ConcurrentHashMap<Label, BitSet>();
+    private final Map<Class<?>, Object[]> nodeProperties = new ConcurrentHashMap<Class<?>, Object[]>();
+    private final Map<String, Object> tables = new ConcurrentHashMap<String, Object>();
+
+    private NodeIndex(Jenkins jenkins, int generation) {
+        this.generation = generation;
+
+        List<Node> registered = new ArrayList<Node>();
+        registered.add(jenkins);
+        registered.addAll(jenkins.getNodes());
+
+        NodeRegistry registry = NodeRegistry.get();
+        int[] ids = new int[registered.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = registry.getId(registered.get(i));
+        }
+        Node[] nodes = new Node[registry.size()];
+        BitSet allNodes = new BitSet(nodes.length);
+        Map<String, BitSet> atomNodes = new HashMap<String, BitSet>();
+        for (int i = 0; i < ids.length; ++i) {
+            int id = ids[i];
+            Node node = registered.get(i);
+            nodes[id] = node;
+            allNodes.set(id);
+            for (LabelAtom atom : node.getAssignedLabels()) {
+                atomNodes.computeIfAbsent(atom.getName(), k -> new BitSet()).set(id);
+            }
+        }
+
+        this.nodes = Collections.unmodifiableList(Arrays.asList(nodes));
+        this.atomNodes = atomNodes;
+        this.labelNames = atomNodes.keySet().toArray(new String[0]);
+        Arrays.sort(this.labelNames);
+        this.labelUsages = new int[labelNames.length];
+        for (int i = 0; i < labelNames.length; ++i) {
+            this.labelUsages[i] = atomNodes.get(labelNames[i]).cardinality();
+        }
+        this.allNodes = allNodes;
+    }
+
+    /**
+     * Copies the index patching bits of a changed node.
+     *
+     * Cached results of label expressions and tables are not copied, and built again when requested.
+     *
+     * @param base the index to copy.
+     * @param oldOne the node before the change. can be null.
+     * @param newOne the node after the change. can be null.
+     * @param generation the generation of the new index.
+     */
+    private NodeIndex(NodeIndex base, Node oldOne, Node newOne, int generation) {
+        this.generation = generation;
+
+        int oldId = (oldOne != null) ? base.findId(oldOne) : -1;
+        int newId = (newOne != null) ? NodeRegistry.get().getId(newOne) : -1;
+        Node[] nodes = base.nodes.toArray(new Node[Math.max(base.nodes.size(), newId + 1)]);
+        BitSet allNodes = (BitSet) base.allNodes.clone();
+        Map<String, BitSet> atomNodes = new HashMap<String, BitSet>(base.atomNodes);
+
+        // the new id can be one released by another node, which is removed here.
+        for (int id : new int[] {oldId, newId}) {
+            if (id < 0 || nodes[id] == null) {
+                continue;
+            }
+            nodes[id] = null;
+            allNodes.clear(id);
+            // labels of an updated node may be changed in place. look up all labels.
+            for (String name : base.atomNodes.keySet()) {
+                if (atomNodes.get(name).get(id)) {
+                    copyOnWrite(base, atomNodes, name).clear(id);
+                }
+            }
+        }
+        if (newId >= 0) {
+            nodes[newId] = newOne;
+            allNodes.set(newId);
+            for (LabelAtom atom : newOne.getAssignedLabels()) {
+                copyOnWrite(base, atomNodes, atom.getName()).set(newId);
+            }
+        }
+        atomNodes.values().removeIf(BitSet::isEmpty);
+
+        this.nodes = Collections.unmodifiableList(Arrays.asList(nodes));
+        this.atomNodes = atomNodes;
+        if (atomNodes.keySet().equals(base.atomNodes.keySet())) {
+            this.labelNames = base.labelNames;
+        } else {
+            this.labelNames = atomNodes.keySet().toArray(new String[0]);
+            Arrays.sort(this.labelNames);
+        }
+        this.labelUsages = new int[labelNames.length];
+        for (int i = 0; i < labelNames.length; ++i) {
+            BitSet ids = atomNodes.get(labelNames[i]);
+            this.labelUsages[i] = (labelNames == base.labelNames && ids == base.atomNodes.get(labelNames[i]))
+                    ? base.labelUsages[i]
+                    : ids.cardinality();
+        }
+        this.allNodes = allNodes;
+
+        for (Map.Entry<Class<?>, Object[]> entry : base.nodeProperties.entrySet()) {
+            Object[] values = Arrays.copyOf(entry.getValue(), nodes.length);
+            if (oldId >= 0) {
+                values[oldId] = null;
+            }
+            if (newId >= 0) {
+                values[newId] = lookUpNodeProperty(newOne, entry.getKey());
+            }
+            nodeProperties.put(entry.getKey(), values);
+        }
+    }
+
+    private static BitSet copyOnWrite(NodeIndex base, Map<String, BitSet> atomNodes, String name) {
+        BitSet ids = atomNodes.get(name);
+        if (ids == null || ids == base.atomNodes.get(name)) {
+            ids = (ids != null) ? (BitSet) ids.clone() : new BitSet();
+            atomNodes.put(name, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the id of the node in this index.
+     *
+     * Also finds a removed or renamed node whose name is already released by {@link NodeRegistry}.
+     *
+     * @param node
+     * @return the id of the node. -1 if the node is not indexed.
+     */
+    private int findId(Node node) {
+        int id = indexOf(node);
+        if (id >= 0) {
+            return id;
+        }
+        for (int i = allNodes.nextSetBit(0); i >= 0; i = allNodes.nextSetBit(i + 1)) {
+            if (nodes.get(i) == node) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Object lookUpNodeProperty(Node node, Class<?> type) {
+        List<?> found = Util.filter(node.getNodeProperties(), type);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * Returns indexed nodes. The position in the list is the id of the node.
+     *
+     * Ids not used in this snapshot (e.g. ones of removed nodes) are null.
+     *
+     * @return indexed nodes.
+     */
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the id of the node.
+     *
+     * @param node
+     * @return the id of the node. -1 if the node is not indexed (e.g. just added or reconfigured).
+     */
+    public int indexOf(Node node) {
+        int id = NodeRegistry.get().lookup(node.getNodeName());
+        if (id < 0 || id >= nodes.size() || nodes.get(id) != node) {
+            return -1;
+        }
+        return id;
+    }
+
+    /**
+     * Returns ids of nodes matching the label.
+     *
+     * Results are cached for each label. Do not modify the returned value.
+     * Use {@link #evaluate(Label)} for labels not configured (e.g. ones typed in forms),
+     * not to have the cache grow without limit.
+     *
+     * @param label
+     * @return ids of nodes matching the label.
+     */
+    public BitSet getNodes(Label label) {
+        return labelNodes.computeIfAbsent(label, this::evaluate);
+    }
+
+    /**
+     * Returns ids of nodes matching the label without caching.
+     *
+     * @param label
+     * @return ids of nodes matching the label. a new object for each call.
+     */
+    public BitSet evaluate(Label label) {
+        return label.accept(new Evaluator(), null);
+    }
+
+    /**
+     * Returns the number of nodes having the label.
+     *
+     * @param labelName the name of the label atom.
+     * @return the number of nodes having the label.
+     */
+    public int getLabelUsage(String labelName) {
+        BitSet ids = atomNodes.get(labelName);
+        return (ids != null) ? ids.cardinality() : 0;
+    }
+
+    /**
+     * Returns names of labels starting with the prefix.
+     *
+     * Labels are looked up with a binary search in sorted names,
+     * and ones used by more nodes come first.
+     *
+     * @param prefix the prefix of label names.
+     * @param limit the maximum number of names to return.
+     * @return names of labels, in descending order of the number of nodes having them.
+     */
+    public List<String> findLabels(String prefix, int limit) {
+        int from = Arrays.binarySearch(labelNames, prefix);
+        if (from < 0) {
+            from = -from - 1;
+        }
+
+        // ranks more used labels first, and then in alphabetical order (that is, order of indices).
+        Comparator<Integer> ranking = (a, b) -> (labelUsages[a] != labelUsages[b])
+                ? Integer.compare(labelUsages[b], labelUsages[a])
+                : Integer.compare(a, b);
+
+        // keeps only top ones not to sort all labels matching a short prefix.
+        PriorityQueue<Integer> top = new PriorityQueue<Integer>(ranking.reversed());
+        for (int i = from; i < labelNames.length && labelNames[i].startsWith(prefix); ++i) {
+            top.add(i);
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+
+        List<Integer> found = new ArrayList<Integer>(top);
+        found.sort(ranking);
+        List<String> names = new ArrayList<String>(found.size());
+        for (int i : found) {
+            names.add(labelNames[i]);
+        }
+        return names;
+    }
+
+    /**
+     * Returns the node property of the node.
+     *
+     * Node properties are looked up only once for each type in this snapshot.
+     *
+     * @param id the id of the node.
+     * @param type the type of the node property.
+     * @param <T> the type of the node property.
+     * @return the node property. null if not configured.
+     */
+    public <T extends NodeProperty<?>> T getNodeProperty(int id, Class<T> type) {
+        Object[] props = nodeProperties.computeIfAbsent(type, t -> {
+            Object[] values = new Object[nodes.size()];
+            for (int i = allNodes.nextSetBit(0); i >= 0; i = allNodes.nextSetBit(i + 1)) {
+                values[i] = lookUpNodeProperty(nodes.get(i), type);
+            }
+            return values;
+        });
+        return type.cast(props[id]);
+    }
+
+    /**
+     * Returns a table derived from nodes in this snapshot.
+     *
+     * The table is built only once in this snapshot,
+     * and typically an array aligned with ids of nodes.
+     *
+     * @param key the key to identify the table. Use the class name of the user.
+     * @param builder builds the table.
+     * @param <T> the type of the table.
+     * @return the table.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getTable(String key, Function<NodeIndex, T> builder) {
+        return (T) tables.computeIfAbsent(key, k -> builder.apply(this));
+    }
+
+    /**
+     * Evaluates label expressions into ids of matching nodes.
+     */
+    private class Evaluator extends LabelVisitor<BitSet, Void> {
+        @Override
+        public BitSet onAtom(LabelAtom a, Void param) {
+            BitSet ids = atomNodes.get(a.getName());
+            return (ids != null) ? (BitSet) ids.clone() : new BitSet();
+        }
+
+        @Override
+        public BitSet onParen(LabelExpression.Paren p, Void param) {
+            return p.base.accept(this, param);
+        }
+
+        @Override
+        public BitSet onNot(LabelExpression.Not p, Void param) {
+            return not(p.base.accept(this, param));
+        }
+
+        @Override
+        public BitSet onAnd(LabelExpression.And p, Void param) {
+            BitSet ids = p.lhs.accept(this, param);
+            ids.and(p.rhs.accept(this, param));
+            return ids;
+        }
+
+        @Override
+        public BitSet onOr(LabelExpression.Or p, Void param) {
+            BitSet ids = p.lhs.accept(this, param);
+            ids.or(p.rhs.accept(this, param));
+            return ids;
+        }
+
+        @Override
+        public BitSet onIff(LabelExpression.Iff p, Void param) {
+            // a <=> b is !(a ^ b)
+            BitSet ids = p.lhs.accept(this, param);
+            ids.xor(p.rhs.accept(this, param));
+            return not(ids);
+        }
+
+        @Override
+        public BitSet onImplies(LabelExpression.Implies p, Void param) {
+            // a => b is !a || b
+            BitSet ids = not(p.lhs.accept(this, param));
+            ids.or(p.rhs.accept(this, param));
+            return ids;
+        }
+
+        private BitSet not(BitSet ids) {
+            BitSet result = (BitSet) allNodes.clone();
+            result.andNot(ids);
+            return result;
+        }
+    }
+
+    /**
+     * Updates the index when nodes are changed.
+     */
+    @Extension
+    public static class NodeListenerImpl extends NodeListener {
+        @Override
+        protected void onCreated(Node node) {
+            update(null, node);
+        }
+
+        @Override
+        protected void onUpdated(Node oldOne, Node newOne) {
+            update(oldOne, newOne);
+        }
+
+        @Override
+        protected void onDeleted(Node node) {
+            update(node, null);
+        }
+    }
+
+    /**
+     * Updates the index when labels or states of nodes can be changed.
+     */
+    @Extension
+    public static class ComputerListenerImpl extends ComputerListener {
+        @Override
+        public void onConfigurationChange() {
+            invalidate();
+        }
+
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            // labels provided by LabelFinder can be changed.
+            updateComputer(c);
+        }
+
+        @Override
+        public void onOffline(Computer c, OfflineCause cause) {
+            // tables can hold executors of online nodes.
+            updateComputer(c);
+        }
+
+        private static void updateComputer(Computer c) {
+            Node node = c.getNode();
+            if (node != null) {
+                update(node, node);
+            } else {
+                invalidate();
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.util;
+
+import hudson.Extension;
+import hudson.model.Node;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import jenkins.model.NodeListener;
+
+/**
+ * Assigns stable dense integer ids to nodes.
+ *
+ * Ids are assigned to names of nodes, so a node keeps its id
+ * even when Jenkins replaces the {@link Node} instance for a reconfigured node.
+ * Tables indexed with ids (instead of maps keyed by {@link Node}) are shared by {@link NodeIndex},
+ * {@link jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore} and rules.
+ *
+ * Ids of removed nodes are reused for nodes registered later, to keep tables small.
+ * The generation of an id is incremented when the id is released,
+ * so caches outliving nodes can tell reused ids by comparing generations.
+ */
+public class NodeRegistry {
+    private static final NodeRegistry INSTANCE = new NodeRegistry();
+
+    /**
+     * @return the registry.
+     */
+    public static NodeRegistry get() {
+        return INSTANCE;
+    }
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private final BitSet freeIds = new BitSet();
+    private int[] generations = new int[16];
+    private volatile int size = 0;
+
+    /**
+     * Returns the id of the node, registering the node if not registered yet.
+     *
+     * @param node
+     * @return the id of the node.
+     */
+    public int getId(Node node) {
+        return getId(node.getNodeName());
+    }
+
+    /**
+     * Returns the id of the node, registering the node if not registered yet.
+     *
+     * @param name the name of the node.
+     * @return the id of the node.
+     */
+    public int getId(String name) {
+        Integer id = ids.get(name);
+        return (id != null) ? id : register(name);
+    }
+
+    /**
+     * Returns the id of the node without registering it.
+     *
+     * @param name the name of the node.
+     * @return the id of the node. -1 if not registered.
+     */
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return (id != null) ? id : -1;
+    }
+
+    private synchronized int register(String name) {
+        Integer registered = ids.get(name);
+        if (registered != null) {
+            return registered;
+        }
+        // reuse the smallest released id.
+        int id = freeIds.nextSetBit(0);
+        if (id >= 0) {
+            freeIds.clear(id);
+        } else {
+            id = size;
+            if (generations.length <= id) {
+                generations = Arrays.copyOf(generations, generations.length * 2);
+            }
+            size = id + 1;
+        }
+        ids.put(name, id);
+        return id;
+    }
+
+    /**
+     * Releases the id of the node to reuse for other nodes.
+     *
+     * @param name the name of the node.
+     */
+    public synchronized void release(String name) {
+        Integer id = ids.remove(name);
+        if (id == null) {
+            return;
+        }
+        ++generations[id];
+        freeIds.set(id);
+    }
+
+    /**
+     * Returns the generation of the id.
+     *
+     * @param id
+     * @return the number of times the id was released.
+     */
+    public synchronized int getGeneration(int id) {
+        return (id >= 0 && id < size) ? generations[id] : 0;
+    }
+
+    /**
+     * Returns the upper bound of ids.
+     *
+     * Tables sized with this value can hold all ids assigned so far.
+     *
+     * @return the upper bound of ids (exclusive).
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Releases ids of removed or renamed nodes.
+     */
+    @Extension
+    public static class NodeListenerImpl extends NodeListener {
+        @Override
+        protected void onUpdated(Node oldOne, Node newOne) {
+            if (!oldOne.getNodeName().equals(newOne.getNodeName())) {
+                // keys derived from names can no longer be reused.
+                get().release(oldOne.getNodeName());
+            }
+        }
+
+        @Override
+        protected void onDeleted(Node node) {
+            get().release(node.getNodeName());
+        }
+    }
+}
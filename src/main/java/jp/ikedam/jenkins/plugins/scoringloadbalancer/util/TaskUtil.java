@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.util;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.Job;
+import hudson.model.Queue.Task;
+import hudson.model.queue.SubTask;
+
+/**
+ * Common methods for tasks
+ */
+public class TaskUtil {
+    /**
+     * Returns the project the subtask belongs to.
+     *
+     * Configurations of multi-configuration projects are resolved to their parents.
+     * Subtasks other than projects (e.g. tasks for {@code node} blocks of Pipeline jobs)
+     * are resolved to the projects through their owner tasks.
+     *
+     * @param subtask
+     * @return the project. null if the subtask does not belong to any project.
+     */
+    @CheckForNull
+    public static Job<?, ?> getJob(SubTask subtask) {
+        if (subtask instanceof MatrixConfiguration) {
+            return ((MatrixConfiguration) subtask).getParent();
+        }
+
+        if (subtask instanceof Job) {
+            return (Job<?, ?>) subtask;
+        }
+
+        Task owner = subtask.getOwnerTask();
+        if (owner instanceof Job) {
+            return (Job<?, ?>) owner;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.util;
+
+import hudson.scheduler.CronTabList;
+import hudson.util.FormValidation;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A time window specified in cron syntax, like "* 9-17 * * 1-5".
+ *
+ * The window is active in minutes matching the specification.
+ * Minutes of a day are evaluated all at once when the day is first requested,
+ * and later tests are just lookups of the precomputed schedule.
+ */
+public class TimeWindow {
+    private static final Logger LOGGER = Logger.getLogger(TimeWindow.class.getName());
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    private final CronTabList cronTabList;
+
+    private volatile DaySchedule schedule;
+
+    private TimeWindow(CronTabList cronTabList) {
+        this.cronTabList = cronTabList;
+    }
+
+    /**
+     * Compiles a time window.
+     *
+     * @param spec the specification in cron syntax. Multiple lines are allowed.
+     * @return the compiled time window. null if no window is specified, that is, always active.
+     */
+    public static TimeWindow compile(String spec) {
+        if (spec == null || spec.isBlank()) {
+            return null;
+        }
+        try {
+            return new TimeWindow(CronTabList.create(spec.trim()));
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, String.format("Never activated an invalid time window: %s", spec), e);
+            return new TimeWindow(null);
+        }
+    }
+
+    /**
+     * Verify a time window specification.
+     *
+     * @param spec the specification in cron syntax.
+     * @return the result of the validation.
+     */
+    public static FormValidation doCheck(String spec) {
+        if (spec == null || spec.isBlank()) {
+            return FormValidation.ok();
+        }
+        try {
+            CronTabList.create(spec.trim());
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e, Messages.TimeWindow_invalid());
+        }
+        return FormValidation.ok();
+    }
+
+    /**
+     * Returns whether the window is active at the time.
+     *
+     * @param now the time to test.
+     * @return whether the window is active.
+     */
+    public boolean isActive(Calendar now) {
+        if (cronTabList == null) {
+            return false;
+        }
+        int day = getDayKey(now);
+        DaySchedule s = schedule;
+        if (s == null || s.day != day) {
+            s = new DaySchedule(day, computeActiveMinutes(now));
+            schedule = s;
+        }
+        return s.activeMinutes.get(now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE));
+    }
+
+    private static int getDayKey(Calendar cal) {
+        return cal.get(Calendar.YEAR) * 1000 + cal.get(Calendar.DAY_OF_YEAR);
+    }
+
+    private BitSet computeActiveMinutes(Calendar now) {
+        BitSet activeMinutes = new BitSet(MINUTES_PER_DAY);
+        Calendar cal = (Calendar) now.clone();
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        int day = getDayKey(cal);
+        // iterate with the calendar to handle days with daylight saving time transitions.
+        while (getDayKey(cal) == day) {
+            if (cronTabList.check(cal)) {
+                activeMinutes.set(cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE));
+            }
+            cal.add(Calendar.MINUTE, 1);
+        }
+        return activeMinutes;
+    }
+
+    /**
+     * Active minutes in a day.
+     */
+    private static class DaySchedule {
+        private final int day;
+        private final BitSet activeMinutes;
+
+        private DaySchedule(int day, BitSet activeMinutes) {
+            this.day = day;
+            this.activeMinutes = activeMinutes;
+        }
+    }
+}
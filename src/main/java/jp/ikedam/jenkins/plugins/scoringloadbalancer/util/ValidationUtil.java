@@ -43,4 +43,31 @@ public class ValidationUtil {
 
         return FormValidation.ok();
     }
+
+    public static FormValidation doCheckNonNegativeInteger(String value) {
+        FormValidation v = doCheckInteger(value);
+        if (v.kind != FormValidation.Kind.OK) {
+            return v;
+        }
+
+        if (Integer.parseInt(value.trim()) < 0) {
+            return FormValidation.error(Messages.ValidationUtil_nonNegativeInteger_invalid());
+        }
+
+        return FormValidation.ok();
+    }
+
+    public static FormValidation doCheckPercentage(String value) {
+        FormValidation v = doCheckInteger(value);
+        if (v.kind != FormValidation.Kind.OK) {
+            return v;
+        }
+
+        int percentage = Integer.parseInt(value.trim());
+        if (percentage < 0 || percentage > 100) {
+            return FormValidation.error(Messages.ValidationUtil_percentage_invalid());
+        }
+
+        return FormValidation.ok();
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.RuleOrderOptimizer.Phase;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.TestingScoringRule;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class RuleOrderOptimizerTest {
+    private static TestingScoringRule createRule(boolean orderIndependent) {
+        TestingScoringRule rule = new TestingScoringRule();
+        rule.orderIndependent = orderIndependent;
+        return rule;
+    }
+
+    private static void measure(
+            RuleOrderOptimizer optimizer, ScoringRule rule, Phase phase, long nanos, int excluded, boolean stop) {
+        for (int i = 0; i < RuleOrderOptimizer.REORDER_INTERVAL; ++i) {
+            optimizer.record(rule, phase, nanos, 10, excluded, stop);
+        }
+    }
+
+    @Test
+    void testReorder() {
+        TestingScoringRule expensive = createRule(true);
+        TestingScoringRule cheap = createRule(true);
+        TestingScoringRule selective = createRule(true);
+        List<ScoringRule> rules = Arrays.asList(expensive, cheap, selective);
+        RuleOrderOptimizer optimizer = new RuleOrderOptimizer();
+
+        // not measured yet.
+        assertEquals(rules, optimizer.order(rules, Phase.FILTER));
+
+        measure(optimizer, expensive, Phase.FILTER, 10000, 0, false);
+        measure(optimizer, cheap, Phase.FILTER, 100, 0, false);
+        measure(optimizer, selective, Phase.FILTER, 1000, 9, false);
+
+        assertEquals(Arrays.asList(selective, cheap, expensive), optimizer.order(rules, Phase.FILTER));
+    }
+
+    @Test
+    void testPinned() {
+        TestingScoringRule pinned1 = createRule(false);
+        TestingScoringRule expensive = createRule(true);
+        TestingScoringRule pinned2 = createRule(false);
+        TestingScoringRule cheap = createRule(true);
+        List<ScoringRule> rules = Arrays.asList(pinned1, expensive, pinned2, cheap);
+        RuleOrderOptimizer optimizer = new RuleOrderOptimizer();
+
+        assertEquals(rules, optimizer.order(rules, Phase.SCORE));
+
+        measure(optimizer, pinned1, Phase.SCORE, 100000, 0, false);
+        measure(optimizer, expensive, Phase.SCORE, 10000, 0, false);
+        measure(optimizer, pinned2, Phase.SCORE, 100000, 0, false);
+        measure(optimizer, cheap, Phase.SCORE, 100, 0, false);
+
+        // cheap never moves before pinned2.
+        assertEquals(rules, optimizer.order(rules, Phase.SCORE));
+    }
+
+    @Test
+    void testPinnedBetweenMovable() {
+        TestingScoringRule expensive1 = createRule(true);
+        TestingScoringRule cheap1 = createRule(true);
+        TestingScoringRule pinned = createRule(false);
+        TestingScoringRule expensive2 = createRule(true);
+        TestingScoringRule cheap2 = createRule(true);
+        List<ScoringRule> rules = Arrays.asList(expensive1, cheap1, pinned, expensive2, cheap2);
+        RuleOrderOptimizer optimizer = new RuleOrderOptimizer();
+
+        optimizer.order(rules, Phase.SCORE);
+        measure(optimizer, expensive1, Phase.SCORE, 10000, 0, false);
+        measure(optimizer, cheap1, Phase.SCORE, 1000, 0, false);
+        measure(optimizer, pinned, Phase.SCORE, 100000, 0, false);
+        measure(optimizer, expensive2, Phase.SCORE, 100000, 0, false);
+        measure(optimizer, cheap2, Phase.SCORE, 100, 0, false);
+
+        // sorted only among rules on the same side of the pinned rule.
+        List<ScoringRule> ordered = optimizer.order(rules, Phase.SCORE);
+        assertEquals(Arrays.asList(cheap1, expensive1, pinned, cheap2, expensive2), ordered);
+    }
+
+    @Test
+    void testShortCircuit() {
+        TestingScoringRule cheap = createRule(true);
+        TestingScoringRule stopping = createRule(true);
+        List<ScoringRule> rules = Arrays.asList(cheap, stopping);
+        RuleOrderOptimizer optimizer = new RuleOrderOptimizer();
+
+        optimizer.order(rules, Phase.SCORE);
+        measure(optimizer, cheap, Phase.SCORE, 100, 0, false);
+        measure(optimizer, stopping, Phase.SCORE, 1000, 0, true);
+
+        assertEquals(Arrays.asList(stopping, cheap), optimizer.order(rules, Phase.SCORE));
+    }
+
+    @Test
+    void testPhases() {
+        TestingScoringRule rule1 = createRule(true);
+        TestingScoringRule rule2 = createRule(true);
+        List<ScoringRule> rules = Arrays.asList(rule1, rule2);
+        RuleOrderOptimizer optimizer = new RuleOrderOptimizer();
+
+        optimizer.order(rules, Phase.FILTER);
+        optimizer.order(rules, Phase.SCORE);
+        measure(optimizer, rule1, Phase.SCORE, 10000, 0, false);
+        measure(optimizer, rule2, Phase.SCORE, 100, 0, false);
+
+        assertEquals(rules, optimizer.order(rules, Phase.FILTER));
+        assertEquals(Arrays.asList(rule2, rule1), optimizer.order(rules, Phase.SCORE));
+    }
+
+    @Test
+    void testNothingToReorder() {
+        List<ScoringRule> rules = Arrays.asList(createRule(false), createRule(true), createRule(false));
+        RuleOrderOptimizer optimizer = new RuleOrderOptimizer();
+
+        assertSame(rules, optimizer.order(rules, Phase.FILTER));
+    }
+}
@@ -28,12 +28,20 @@ import static org.mockito.Mockito.*;
 
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Node;
 import hudson.model.Slave;
 import hudson.model.labels.LabelExpression;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
+import hudson.slaves.DumbSlave;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.RuleOrderOptimizer.Phase;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.DescriptorImpl;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.DummySubTask;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.JenkinsTestUtil;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.TestingScoringRule;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.TriggerOtherProjectProperty;
 import net.sf.json.JSONObject;
@@ -163,6 +171,248 @@ class ScoringLoadBalancerTest {
         }
     }
 
+    @Test
+    void testLargeScores() throws Exception {
+        TestingScoringRule scoringRule2 = new TestingScoringRule();
+        descriptor.configure(true, true, false, 0, scoringRule, scoringRule2);
+        FreeStyleProject p = j.createFreeStyleProject();
+
+        // Run on node1. Sums and differences of these scores overflow int.
+        {
+            scoringRule.scoreMap.clear();
+            scoringRule.scoreMap.put(j.jenkins, Integer.MIN_VALUE);
+            scoringRule.scoreMap.put(node1, Integer.MAX_VALUE);
+            scoringRule.scoreMap.put(node2, 1);
+            scoringRule.scoreMap.put(node3, Integer.MIN_VALUE);
+
+            scoringRule2.scoreMap.clear();
+            scoringRule2.scoreMap.put(j.jenkins, Integer.MIN_VALUE);
+            scoringRule2.scoreMap.put(node1, Integer.MAX_VALUE);
+            scoringRule2.scoreMap.put(node2, 0);
+            scoringRule2.scoreMap.put(node3, 0);
+
+            for (int i = 0; i < REPEAT_BUILD; ++i) {
+                scoringRule2.clear();
+                FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+                assertNotNull(b);
+                j.assertBuildStatusSuccess(b);
+
+                assertEquals(node1, b.getBuiltOn());
+                NodesScore nodesScore = scoringRule2.nodesScoreList.get(0);
+                assertEquals(2L * Integer.MAX_VALUE, nodesScore.getLongScore(node1));
+                assertEquals(Integer.MAX_VALUE, nodesScore.getScore(node1));
+                assertEquals(2L * Integer.MIN_VALUE, nodesScore.getLongScore(j.jenkins));
+                assertEquals(Integer.MIN_VALUE, nodesScore.getScore(j.jenkins));
+            }
+        }
+    }
+
+    @Test
+    void testFilterCandidates() throws Exception {
+        TestingScoringRule scoringRule2 = new TestingScoringRule();
+        descriptor.configure(true, true, false, 0, scoringRule, scoringRule2);
+        FreeStyleProject p = j.createFreeStyleProject();
+
+        // Run on node2, as node1 is excluded before scoring.
+        {
+            scoringRule.scoreMap.clear();
+            scoringRule.scoreMap.put(j.jenkins, 0);
+            scoringRule.scoreMap.put(node1, 10);
+            scoringRule.scoreMap.put(node2, 5);
+            scoringRule.scoreMap.put(node3, 0);
+
+            scoringRule2.excludeSet.add(node1);
+
+            for (int i = 0; i < REPEAT_BUILD; ++i) {
+                scoringRule.clear();
+                FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+                assertNotNull(b);
+                j.assertBuildStatusSuccess(b);
+
+                assertEquals(node2, b.getBuiltOn());
+                // scoring rules never see excluded nodes.
+                assertFalse(scoringRule.nodesScoreList.get(0).getNodes().contains(node1));
+                assertTrue(scoringRule.nodesScoreList.get(0).getNodes().contains(node2));
+            }
+        }
+    }
+
+    @Test
+    void testRuleOrderOptimization() throws Exception {
+        TestingScoringRule scoringRule2 = new TestingScoringRule();
+        TestingScoringRule scoringRule3 = new TestingScoringRule();
+        scoringRule.orderIndependent = true;
+        scoringRule3.orderIndependent = true;
+        descriptor.configure(true, true, false, 0, scoringRule, scoringRule2, scoringRule3);
+        descriptor.setRuleOrderOptimizationEnabled(true);
+        FreeStyleProject p = j.createFreeStyleProject();
+
+        // Decisions are the same as without reordering.
+        {
+            scoringRule.scoreMap.clear();
+            scoringRule.scoreMap.put(j.jenkins, 0);
+            scoringRule.scoreMap.put(node1, 10);
+            scoringRule.scoreMap.put(node2, 5);
+            scoringRule.scoreMap.put(node3, 0);
+
+            scoringRule2.scoreMap.put(node3, 3);
+
+            scoringRule3.excludeSet.add(node1);
+
+            for (int i = 0; i < REPEAT_BUILD; ++i) {
+                scoringRule.clear();
+                scoringRule2.clear();
+                FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+                assertNotNull(b);
+                j.assertBuildStatusSuccess(b);
+
+                assertEquals(node2, b.getBuiltOn());
+                assertEquals(1, scoringRule.calledWorkChunkList.size());
+                assertEquals(1, scoringRule2.calledWorkChunkList.size());
+            }
+        }
+
+        // The rule not reorderable keeps its position.
+        ScoringLoadBalancer balancer = (ScoringLoadBalancer) j.jenkins.getQueue().getLoadBalancer();
+        List<ScoringRule> ordered =
+                balancer.getRuleOrderOptimizer().order(descriptor.getScoringRuleList(), Phase.SCORE);
+        assertEquals(3, ordered.size());
+        assertSame(scoringRule2, ordered.get(1));
+    }
+
+    @Test
+    void testSampling() throws Exception {
+        descriptor.configure(true, true, false, 0, scoringRule);
+        descriptor.setSampleSize(1);
+        FreeStyleProject p = j.createFreeStyleProject();
+
+        // Preferred nodes are always evaluated.
+        {
+            scoringRule.scoreMap.clear();
+            scoringRule.scoreMap.put(j.jenkins, 0);
+            scoringRule.scoreMap.put(node1, 0);
+            scoringRule.scoreMap.put(node2, 10);
+            scoringRule.scoreMap.put(node3, 0);
+
+            scoringRule.preferredSet.add(node2);
+
+            for (int i = 0; i < REPEAT_BUILD; ++i) {
+                scoringRule.clear();
+                FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+                assertNotNull(b);
+                j.assertBuildStatusSuccess(b);
+
+                assertEquals(node2, b.getBuiltOn());
+                assertTrue(scoringRule.nodesScoreList.get(0).getNodes().size() <= 2);
+            }
+        }
+
+        // Widen the sample when no node is assignable.
+        {
+            scoringRule.preferredSet.clear();
+            scoringRule.excludeSet.add(j.jenkins);
+            scoringRule.excludeSet.add(node1);
+            scoringRule.excludeSet.add(node2);
+
+            for (int i = 0; i < REPEAT_BUILD; ++i) {
+                FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+                assertNotNull(b);
+                j.assertBuildStatusSuccess(b);
+
+                assertEquals(node3, b.getBuiltOn());
+            }
+        }
+    }
+
+    @Test
+    void testNegativeCache() throws Exception {
+        descriptor.configure(true, true, false, 0, scoringRule);
+        descriptor.setNegativeCacheTime(600000);
+        FreeStyleProject p = j.createFreeStyleProject();
+
+        scoringRule.reject = true;
+        p.scheduleBuild2(0);
+        for (int i = 0; i < BUILD_TIMEOUT * 10 && scoringRule.calledWorkChunkList.isEmpty(); ++i) {
+            Thread.sleep(100);
+        }
+        assertFalse(scoringRule.calledWorkChunkList.isEmpty());
+
+        // the same worksheet fails without scoring.
+        int called = scoringRule.calledWorkChunkList.size();
+        for (int i = 0; i < 3; ++i) {
+            j.jenkins.getQueue().maintain();
+        }
+        assertEquals(called, scoringRule.calledWorkChunkList.size());
+        assertNull(p.getLastBuild());
+
+        // failures are forgotten when the configuration is changed.
+        scoringRule.reject = false;
+        descriptor.configure(true, true, false, 0, scoringRule);
+        descriptor.setNegativeCacheTime(600000);
+        j.jenkins.getQueue().maintain();
+        j.waitUntilNoActivity();
+        assertNotNull(p.getLastBuild());
+        j.assertBuildStatusSuccess(p.getLastBuild());
+    }
+
+    @Test
+    void testReusedNodesScore() throws Exception {
+        TestingScoringRule scoringRule2 = new TestingScoringRule();
+        descriptor.configure(true, true, false, 0, scoringRule2, scoringRule);
+        FreeStyleProject p = j.createFreeStyleProject();
+
+        scoringRule.scoreMap.clear();
+        scoringRule.scoreMap.put(j.jenkins, 0);
+        scoringRule.scoreMap.put(node1, 10);
+        scoringRule.scoreMap.put(node2, 5);
+        scoringRule.scoreMap.put(node3, 0);
+
+        // Scores and candidates of a decision never leak into subsequent decisions.
+        for (int i = 0; i < REPEAT_BUILD * 2; ++i) {
+            boolean excludeNode1 = (i % 2 == 0);
+            scoringRule2.excludeSet.clear();
+            if (excludeNode1) {
+                scoringRule2.excludeSet.add(node1);
+            }
+            scoringRule.clear();
+            FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull(b);
+            j.assertBuildStatusSuccess(b);
+
+            assertEquals(excludeNode1 ? node2 : node1, b.getBuiltOn());
+            NodesScore nodesScore = scoringRule.nodesScoreList.get(0);
+            assertEquals(!excludeNode1, nodesScore.getNodes().contains(node1));
+            assertEquals(excludeNode1 ? 3 : 4, nodesScore.getNodes().size());
+            assertEquals(5, nodesScore.getLongScore(node2));
+            assertFalse(nodesScore.isInvalid(node2));
+        }
+    }
+
+    @Test
+    void testClusterSnapshot() throws Exception {
+        descriptor.configure(true, true, false, 0, scoringRule);
+        FreeStyleProject p = j.createFreeStyleProject();
+
+        FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        assertNotNull(b);
+        j.assertBuildStatusSuccess(b);
+        assertNull(scoringRule.nodesScoreList.get(0).getClusterSnapshot());
+
+        descriptor.setClusterSnapshotEnabled(true);
+        scoringRule.clear();
+        b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        assertNotNull(b);
+        j.assertBuildStatusSuccess(b);
+
+        NodesScore nodesScore = scoringRule.nodesScoreList.get(0);
+        ClusterSnapshot snapshot = nodesScore.getClusterSnapshot();
+        assertNotNull(snapshot);
+        assertEquals(4, nodesScore.getExecutorChunks().size());
+        for (ExecutorChunk ec : nodesScore.getExecutorChunks()) {
+            assertEquals(ec.computer.countExecutors(), snapshot.countExecutors(ec));
+        }
+    }
+
     @Test
     void testDisabled() throws Exception {
         descriptor.configure(false, true, false, 0, scoringRule);
@@ -298,6 +548,76 @@ class ScoringLoadBalancerTest {
         }
     }
 
+    @Test
+    void testPendingAssignments() throws Exception {
+        descriptor.configure(true, true, false, 0, scoringRule);
+        DumbSlave nodeA = JenkinsTestUtil.createOnlineSlave(j, "pending", 2);
+        DumbSlave nodeB = JenkinsTestUtil.createOnlineSlave(j, "pending", 1);
+
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedLabel(LabelExpression.parseExpression("pending"));
+        DummySubTask task2 = new DummySubTask("Task 2", p, 1000);
+        task2.setAssignedLabel(LabelExpression.parseExpression("pending"));
+        DummySubTask task3 = new DummySubTask("Task 3", p, 1000);
+        task3.setAssignedLabel(LabelExpression.parseExpression("pending"));
+        p.addProperty(new TriggerOtherProjectProperty(task2, task3));
+
+        scoringRule.scoreMap.put(nodeA, 10);
+        scoringRule.scoreMap.put(nodeB, 5);
+
+        FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+        j.waitUntilNoActivityUpTo(BUILD_TIMEOUT * 1000);
+        assertEquals(nodeA, b.getBuiltOn());
+        assertEquals(nodeA, task2.getLastBuiltOn());
+        assertEquals(nodeB, task3.getLastBuiltOn());
+
+        // counted for each executor chunk as work chunks are assigned.
+        List<Map<Node, Integer>> pendingList = scoringRule.pendingExecutorsList;
+        assertEquals(Map.of(nodeA, 0, nodeB, 0), pendingList.get(0));
+        assertEquals(Map.of(nodeA, 1, nodeB, 0), pendingList.get(1));
+        assertEquals(Map.of(nodeA, 2, nodeB, 0), pendingList.get(2));
+    }
+
+    @Test
+    void testPendingAssignmentsBacktracking() throws Exception {
+        descriptor.configure(true, true, false, 0, scoringRule);
+        DumbSlave nodeA = JenkinsTestUtil.createOnlineSlave(j, "nodeA", 1);
+        DumbSlave nodeB = JenkinsTestUtil.createOnlineSlave(j, "nodeB", 2);
+
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedLabel(LabelExpression.parseExpression("nodeA||nodeB"));
+        DummySubTask task2 = new DummySubTask("Task 2", p, 1000);
+        task2.setAssignedLabel(LabelExpression.parseExpression("nodeA||nodeB"));
+        // only nodeA can run this, which requires reassigning preceding work chunks.
+        DummySubTask task3 = new DummySubTask("Task 3", p, 1000);
+        task3.setAssignedLabel(LabelExpression.parseExpression("nodeA"));
+        p.addProperty(new TriggerOtherProjectProperty(task2, task3));
+
+        scoringRule.scoreMap.put(nodeA, 10);
+        scoringRule.scoreMap.put(nodeB, 5);
+
+        FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+        j.waitUntilNoActivityUpTo(BUILD_TIMEOUT * 1000);
+        assertEquals(nodeB, b.getBuiltOn());
+        assertEquals(nodeB, task2.getLastBuiltOn());
+        assertEquals(nodeA, task3.getLastBuiltOn());
+
+        List<Map<Node, Integer>> pendingList = scoringRule.pendingExecutorsList;
+        assertEquals(6, pendingList.size());
+        // p on nodeA, task2 on nodeB, and task3 fails.
+        assertEquals(Map.of(nodeA, 0, nodeB, 0), pendingList.get(0));
+        assertEquals(Map.of(nodeA, 1, nodeB, 0), pendingList.get(1));
+        assertEquals(Map.of(nodeA, 1), pendingList.get(2));
+        // task2 is reset and p is reassigned to nodeB.
+        assertEquals(Map.of(nodeA, 0, nodeB, 1), pendingList.get(3));
+        // task2 on nodeA, and task3 fails.
+        assertEquals(Map.of(nodeA, 1), pendingList.get(4));
+        // task2 is reassigned to nodeB.
+        assertEquals(Map.of(nodeA, 0), pendingList.get(5));
+    }
+
     @Disabled("TODO: fix me #15")
     @Test
     void testMultipleTasksWithConstraintShortage() throws Exception {
@@ -25,10 +25,14 @@
 package jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.mockito.Mockito.*;
 
 import hudson.model.AutoCompletionCandidates;
 import hudson.model.Item;
+import hudson.model.Label;
 import hudson.util.FormValidation;
 import java.util.Arrays;
 import java.util.Collections;
@@ -92,6 +96,19 @@ class BuildPreferenceJenkinsTest {
         }
     }
 
+    @Test
+    void testDescriptor_doCheckLabelExpressionStatistics(JenkinsRule j) throws Exception {
+        j.createOnlineSlave(Label.get("label1"));
+        DescriptorImpl descriptor = getDescriptor(j);
+
+        FormValidation v = descriptor.doCheckLabelExpression("label1", null);
+        assertEquals(FormValidation.Kind.OK, v.kind);
+        assertEquals(Messages.BuildPreference_labelExpression_matched(1, 1, 1), v.getMessage());
+
+        // cached
+        assertSame(v, descriptor.doCheckLabelExpression(" label1 ", null));
+    }
+
     @Test
     void testDescriptor_doCheckLabelExpressionError(JenkinsRule j) {
         DescriptorImpl descriptor = getDescriptor(j);
@@ -184,6 +201,22 @@ class BuildPreferenceJenkinsTest {
         }
     }
 
+    @Test
+    void testGetLabel(JenkinsRule j) throws Exception {
+        {
+            BuildPreference target = new BuildPreference("label1 && !label2", 10);
+            Label l = target.getLabel();
+            assertNotNull(l);
+            assertSame(l, target.getLabel());
+        }
+
+        {
+            BuildPreference target = new BuildPreference("a b c", 10);
+            assertNull(target.getLabel());
+            assertNull(target.getLabel());
+        }
+    }
+
     private static DescriptorImpl getDescriptor(JenkinsRule j) {
         return (DescriptorImpl) j.jenkins.getDescriptorOrDie(BuildPreference.class);
     }
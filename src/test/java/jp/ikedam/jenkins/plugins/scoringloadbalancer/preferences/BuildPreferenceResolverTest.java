@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.model.FreeStyleProject;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.DummySubTask;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ *
+ */
+@WithJenkins
+class BuildPreferenceResolverTest {
+    @Test
+    void testResolve(JenkinsRule j) throws Exception {
+        BuildPreference jobPref = new BuildPreference("label1", 1);
+        BuildPreference folderPref = new BuildPreference("label2", 2);
+        JobNameBuildPreference namePref = new JobNameBuildPreference("folder1/.*", "label3", 3);
+        JobNameBuildPreference otherPref = new JobNameBuildPreference("folder2/.*", "label4", 4);
+
+        Folder folder = j.jenkins.createProject(Folder.class, "folder1");
+        folder.getProperties().add(new BuildPreferenceFolderProperty(Arrays.asList(folderPref)));
+        FreeStyleProject p = folder.createProject(FreeStyleProject.class, "test1");
+        p.addProperty(new BuildPreferenceJobProperty(Arrays.asList(jobPref)));
+
+        BuildPreferenceResolver resolver = new BuildPreferenceResolver(Arrays.asList(namePref, otherPref));
+        List<BuildPreference> prefs = resolver.resolve(p);
+        assertEquals(Arrays.asList(jobPref, folderPref, namePref), prefs);
+
+        // cached
+        assertSame(prefs, resolver.resolve(p));
+
+        // discarded when reconfigured
+        p.removeProperty(BuildPreferenceJobProperty.class);
+        assertEquals(Arrays.asList(folderPref, namePref), resolver.resolve(p));
+    }
+
+    @Test
+    void testInvalidate(JenkinsRule j) throws Exception {
+        BuildPreference folderPref = new BuildPreference("label1", 1);
+        Folder folder = j.jenkins.createProject(Folder.class, "folder1");
+        FreeStyleProject p1 = folder.createProject(FreeStyleProject.class, "test1");
+        FreeStyleProject p2 = j.createFreeStyleProject("test2");
+        FreeStyleProject p3 = j.createFreeStyleProject("test3");
+
+        BuildPreferenceResolver resolver = new BuildPreferenceResolver(null);
+        List<BuildPreference> prefs1 = resolver.resolve(p1);
+        List<BuildPreference> prefs2 = resolver.resolve(p2);
+        List<BuildPreference> prefs3 = resolver.resolve(p3);
+
+        // only the saved project is discarded.
+        p2.save();
+        assertNotSame(prefs2, resolver.resolve(p2));
+        assertSame(prefs1, resolver.resolve(p1));
+        assertSame(prefs3, resolver.resolve(p3));
+
+        // projects in the folder are discarded with the folder.
+        folder.getProperties().add(new BuildPreferenceFolderProperty(Arrays.asList(folderPref)));
+        assertEquals(Arrays.asList(folderPref), resolver.resolve(p1));
+        assertSame(prefs3, resolver.resolve(p3));
+
+        // renamed projects are resolved again.
+        p3.renameTo("test4");
+        assertNotSame(prefs3, resolver.resolve(p3));
+    }
+
+    @Test
+    void testResolveOwnerTask(JenkinsRule j) throws Exception {
+        BuildPreference jobPref = new BuildPreference("label1", 1);
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new BuildPreferenceJobProperty(Arrays.asList(jobPref)));
+
+        // like tasks for node blocks of Pipeline jobs
+        DummySubTask subtask = new DummySubTask("subtask", p, 5);
+
+        BuildPreferenceResolver resolver = new BuildPreferenceResolver(null);
+        assertEquals(Arrays.asList(jobPref), resolver.resolve(subtask));
+        assertEquals(Collections.emptyList(), resolver.resolve(new DummySubTask("orphan", null, 5)));
+    }
+
+    @Test
+    void testResolveWithoutPreferences(JenkinsRule j) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject();
+        BuildPreferenceResolver resolver = new BuildPreferenceResolver(null);
+        assertEquals(Collections.emptyList(), resolver.resolve(p));
+    }
+}
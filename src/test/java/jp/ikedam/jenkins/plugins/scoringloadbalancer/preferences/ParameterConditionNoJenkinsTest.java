@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences.ParameterCondition.MatchType;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class ParameterConditionNoJenkinsTest {
+    private static Map<String, String> params(String... keyValues) {
+        Map<String, String> ret = new HashMap<String, String>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            ret.put(keyValues[i], keyValues[i + 1]);
+        }
+        return ret;
+    }
+
+    @Test
+    void testExact() {
+        ParameterCondition target = new ParameterCondition("PLATFORM", MatchType.EXACT, "arm64");
+        assertTrue(target.matches(params("PLATFORM", "arm64")));
+        assertFalse(target.matches(params("PLATFORM", "arm64e")));
+        assertFalse(target.matches(params("OTHER", "arm64")));
+        assertFalse(target.matches(Collections.<String, String>emptyMap()));
+    }
+
+    @Test
+    void testRegex() {
+        ParameterCondition target = new ParameterCondition("PLATFORM", MatchType.REGEX, "arm.*");
+        assertTrue(target.matches(params("PLATFORM", "arm64")));
+        assertFalse(target.matches(params("PLATFORM", "x86_64-arm")));
+
+        ParameterCondition invalid = new ParameterCondition("PLATFORM", MatchType.REGEX, "[");
+        assertFalse(invalid.matches(params("PLATFORM", "[")));
+    }
+
+    @Test
+    void testRange() {
+        ParameterCondition target = new ParameterCondition("SIZE", MatchType.RANGE, "1..10");
+        assertTrue(target.matches(params("SIZE", "1")));
+        assertTrue(target.matches(params("SIZE", "10")));
+        assertTrue(target.matches(params("SIZE", "5.5")));
+        assertFalse(target.matches(params("SIZE", "0")));
+        assertFalse(target.matches(params("SIZE", "11")));
+        assertFalse(target.matches(params("SIZE", "large")));
+
+        ParameterCondition lower = new ParameterCondition("SIZE", MatchType.RANGE, "..10");
+        assertTrue(lower.matches(params("SIZE", "-100")));
+        assertFalse(lower.matches(params("SIZE", "11")));
+
+        ParameterCondition upper = new ParameterCondition("SIZE", MatchType.RANGE, "10..");
+        assertTrue(upper.matches(params("SIZE", "100")));
+        assertFalse(upper.matches(params("SIZE", "9")));
+
+        ParameterCondition invalid = new ParameterCondition("SIZE", MatchType.RANGE, "10");
+        assertFalse(invalid.matches(params("SIZE", "10")));
+    }
+
+    @Test
+    void testBuildPreferenceMatchesParameters() {
+        BuildPreference target = new BuildPreference("label1", 10);
+        assertTrue(target.matchesParameters(Collections.<String, String>emptyMap()));
+
+        target.setParameterConditionList(Arrays.asList(
+                new ParameterCondition("PLATFORM", MatchType.EXACT, "arm64"),
+                new ParameterCondition("HEAVY_TESTS", MatchType.EXACT, "true")));
+        assertTrue(target.matchesParameters(params("PLATFORM", "arm64", "HEAVY_TESTS", "true")));
+        assertFalse(target.matchesParameters(params("PLATFORM", "arm64", "HEAVY_TESTS", "false")));
+        assertFalse(target.matchesParameters(params("PLATFORM", "arm64")));
+    }
+}
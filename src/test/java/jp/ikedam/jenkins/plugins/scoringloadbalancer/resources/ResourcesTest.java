@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.resources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class ResourcesTest {
+    @Test
+    void testAddAndSubtract() {
+        Resources r = new Resources(1, 1024, 2048);
+        Resources sum = r.add(new Resources(2, 512, 0));
+        assertEquals(3, sum.getCpu());
+        assertEquals(1536, sum.getMemory());
+        assertEquals(2048, sum.getDisk());
+
+        assertTrue(sum.subtract(sum).isZero());
+        assertSame(r, r.add(Resources.ZERO));
+    }
+
+    @Test
+    void testFitsIn() {
+        Resources capacity = new Resources(4, 32768, 0);
+        Resources required = new Resources(1, 16384, 100000);
+
+        assertTrue(required.fitsIn(Resources.ZERO, capacity));
+        assertTrue(required.fitsIn(new Resources(3, 16384, 0), capacity));
+        assertFalse(required.fitsIn(new Resources(0, 16385, 0), capacity));
+        assertFalse(required.fitsIn(new Resources(4, 0, 0), capacity));
+    }
+
+    @Test
+    void testGetLeftoverPercent() {
+        Resources capacity = new Resources(4, 1000, 0);
+        // cpu: 50%, memory: 30%
+        assertEquals(40, new Resources(2, 700, 0).getLeftoverPercent(Resources.ZERO, capacity));
+        // cpu: 0%, memory: 0%
+        assertEquals(0, new Resources(2, 500, 0).getLeftoverPercent(new Resources(2, 500, 0), capacity));
+        assertEquals(100, new Resources(2, 500, 0).getLeftoverPercent(Resources.ZERO, Resources.ZERO));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import static jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.JenkinsTestUtil.abortAll;
+import static jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.JenkinsTestUtil.createOnlineSlave;
+import static jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.JenkinsTestUtil.setScoringRules;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.Computer;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.labels.LabelExpression;
+import hudson.slaves.DumbSlave;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.affinity.AntiAffinityJobProperty;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.affinity.GroupOccupancy;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.DummySubTask;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.TestingScoringRule;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ *
+ */
+@WithJenkins
+class AntiAffinityScoringRuleJenkinsTest {
+    private static final int BUILD_TIMEOUT = 10;
+
+    private JenkinsRule j;
+
+    TestingScoringRule testScoringRule;
+
+    @BeforeEach
+    void setUp(JenkinsRule j) {
+        this.j = j;
+        testScoringRule = new TestingScoringRule();
+    }
+
+    @Test
+    void testGroupsParsed() {
+        assertEquals(Collections.singleton("db"), new AntiAffinityJobProperty("  db ").getGroupSet());
+        assertEquals(3, new AntiAffinityJobProperty("db, port\ngpu").getGroupSet().size());
+        assertTrue(new AntiAffinityJobProperty(" , ").getGroupSet().isEmpty());
+        assertTrue(new AntiAffinityJobProperty(null).getGroupSet().isEmpty());
+    }
+
+    @Test
+    void testPenalize() throws Exception {
+        DumbSlave node1 = createOnlineSlave(j, "node", 2);
+        DumbSlave node2 = createOnlineSlave(j, "node", 2);
+
+        setScoringRules(j, new AntiAffinityScoringRule(10, AntiAffinityScoringRule.Mode.PENALIZE), testScoringRule);
+
+        FreeStyleProject runningProject = j.createFreeStyleProject();
+        runningProject.setAssignedNode(node1);
+        runningProject.addProperty(new AntiAffinityJobProperty("db"));
+        runningProject.getBuildersList().add(new SleepBuilder(60 * 1000));
+
+        FreeStyleProject testingProject = j.createFreeStyleProject();
+        testingProject.setAssignedLabel(LabelExpression.parseExpression("node"));
+        testingProject.addProperty(new AntiAffinityJobProperty("db gpu"));
+
+        runningProject.scheduleBuild2(0).waitForStart();
+        assertEquals(1, GroupOccupancy.get().count(node1.toComputer(), Collections.singleton("db")));
+        assertEquals(0, GroupOccupancy.get().count(node1.toComputer(), Collections.singleton("gpu")));
+
+        testScoringRule.clear();
+        FreeStyleBuild b = testingProject.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+        assertEquals(node2, b.getBuiltOn());
+        assertEquals(-10, testScoringRule.nodesScoreList.get(0).getScore(node1));
+        assertEquals(0, testScoringRule.nodesScoreList.get(0).getScore(node2));
+
+        abortAll(node1);
+        j.waitUntilNoActivityUpTo(BUILD_TIMEOUT * 1000);
+        assertEquals(0, GroupOccupancy.get().count(node1.toComputer(), Collections.singleton("db")));
+    }
+
+    @Test
+    void testExclude() throws Exception {
+        DumbSlave node1 = createOnlineSlave(j, "node", 2);
+        DumbSlave node2 = createOnlineSlave(j, "node", 2);
+
+        setScoringRules(j, new AntiAffinityScoringRule(10, AntiAffinityScoringRule.Mode.EXCLUDE), testScoringRule);
+
+        FreeStyleProject runningProject = j.createFreeStyleProject();
+        runningProject.setAssignedNode(node1);
+        runningProject.addProperty(new AntiAffinityJobProperty("db"));
+        runningProject.getBuildersList().add(new SleepBuilder(60 * 1000));
+
+        FreeStyleProject testingProject = j.createFreeStyleProject();
+        testingProject.setAssignedLabel(LabelExpression.parseExpression("node"));
+        testingProject.addProperty(new AntiAffinityJobProperty("db"));
+
+        runningProject.scheduleBuild2(0).waitForStart();
+
+        testScoringRule.clear();
+        FreeStyleBuild b = testingProject.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+        assertEquals(node2, b.getBuiltOn());
+        // excluded before scoring.
+        assertFalse(testScoringRule.nodesScoreList.get(0).getNodes().contains(node1));
+        assertTrue(testScoringRule.nodesScoreList.get(0).getNodes().contains(node2));
+
+        abortAll(node1);
+        j.waitUntilNoActivityUpTo(BUILD_TIMEOUT * 1000);
+    }
+
+    @Test
+    void testAssigned() throws Exception {
+        DumbSlave node1 = createOnlineSlave(j, "node", 2);
+        GroupOccupancy occupancy = GroupOccupancy.get();
+        DummySubTask subtask = new DummySubTask("test", null, 1);
+
+        // counted until accepted.
+        occupancy.assign(1, subtask, node1.toComputer(), Collections.singleton("db"));
+        assertEquals(1, occupancy.count(node1.toComputer(), Collections.singleton("db")));
+
+        // the same subtask of the same item is counted only once.
+        occupancy.assign(1, subtask, node1.toComputer(), Collections.singleton("db"));
+        assertEquals(1, occupancy.count(node1.toComputer(), Collections.singleton("db")));
+        occupancy.assign(2, subtask, node1.toComputer(), Collections.singleton("db"));
+        assertEquals(2, occupancy.count(node1.toComputer(), Collections.singleton("db")));
+
+        // discarded with the node.
+        Computer computer = node1.toComputer();
+        j.jenkins.removeNode(node1);
+        assertEquals(0, occupancy.count(computer, Collections.singleton("db")));
+    }
+}
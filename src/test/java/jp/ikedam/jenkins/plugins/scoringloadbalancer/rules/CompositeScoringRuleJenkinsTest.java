@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.labels.LabelExpression;
+import hudson.slaves.DumbSlave;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.DescriptorImpl;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.TestingScoringRule;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ *
+ */
+@WithJenkins
+class CompositeScoringRuleJenkinsTest {
+    private static final int BUILD_TIMEOUT = 10;
+
+    private JenkinsRule j;
+
+    TestingScoringRule testScoringRule;
+    TestingScoringRule component1;
+    TestingScoringRule component2;
+    DumbSlave node1;
+    DumbSlave node2;
+    DumbSlave node3;
+    FreeStyleProject p;
+
+    @BeforeEach
+    void setUp(JenkinsRule j) throws Exception {
+        this.j = j;
+        testScoringRule = new TestingScoringRule();
+        component1 = new TestingScoringRule();
+        component2 = new TestingScoringRule();
+
+        node1 = j.createOnlineSlave(LabelExpression.parseExpression("node"));
+        node2 = j.createOnlineSlave(LabelExpression.parseExpression("node"));
+        node3 = j.createOnlineSlave(LabelExpression.parseExpression("node"));
+
+        // node1 and node2 are tied in component1.
+        component1.scoreMap.put(node1, 10);
+        component1.scoreMap.put(node2, 10);
+        component1.scoreMap.put(node3, 0);
+        component2.scoreMap.put(node1, 0);
+        component2.scoreMap.put(node2, 1);
+        component2.scoreMap.put(node3, 100);
+
+        p = j.createFreeStyleProject();
+        p.setAssignedLabel(LabelExpression.parseExpression("node"));
+    }
+
+    private NodesScore build(CompositeScoringRule rule) throws Exception {
+        DescriptorImpl descriptor = (DescriptorImpl) j.jenkins.getDescriptorOrDie(ScoringLoadBalancer.class);
+        descriptor.configure(true, true, false, 0, rule, testScoringRule);
+        testScoringRule.clear();
+        FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+        return testScoringRule.nodesScoreList.get(0);
+    }
+
+    private CompositeScoringRule createRule(CompositeScoringRule.Combination combination, int scale) {
+        return new CompositeScoringRule(
+                combination,
+                scale,
+                Arrays.asList(
+                        new ScoringRuleComponent(component1, 1),
+                        new ScoringRuleComponent(component2, 1)));
+    }
+
+    @Test
+    void testWeightedSum() throws Exception {
+        NodesScore nodesScore = build(createRule(CompositeScoringRule.Combination.WEIGHTED_SUM, 100));
+        assertEquals(50, nodesScore.getScore(node1));
+        assertEquals(51, nodesScore.getScore(node2));
+        assertEquals(50, nodesScore.getScore(node3));
+    }
+
+    @Test
+    void testMin() throws Exception {
+        NodesScore nodesScore = build(createRule(CompositeScoringRule.Combination.MIN, 100));
+        assertEquals(0, nodesScore.getScore(node1));
+        assertEquals(1, nodesScore.getScore(node2));
+        assertEquals(0, nodesScore.getScore(node3));
+    }
+
+    @Test
+    void testMax() throws Exception {
+        NodesScore nodesScore = build(createRule(CompositeScoringRule.Combination.MAX, 100));
+        assertEquals(100, nodesScore.getScore(node1));
+        assertEquals(100, nodesScore.getScore(node2));
+        assertEquals(100, nodesScore.getScore(node3));
+    }
+
+    @Test
+    void testTiers() throws Exception {
+        NodesScore nodesScore = build(createRule(CompositeScoringRule.Combination.TIERS, 10));
+        assertEquals(10, nodesScore.getScore(node1));
+        assertEquals(20, nodesScore.getScore(node2));
+        assertEquals(0, nodesScore.getScore(node3));
+        assertEquals(1, component2.calledWorkChunkList.size());
+    }
+
+    @Test
+    void testTiersStopAtUniqueTop() throws Exception {
+        component1.scoreMap.put(node2, 5);
+        CompositeScoringRule rule = createRule(CompositeScoringRule.Combination.TIERS, 10);
+        rule.setStopAtUniqueTop(true);
+        NodesScore nodesScore = build(rule);
+        assertEquals(20, nodesScore.getScore(node1));
+        assertEquals(10, nodesScore.getScore(node2));
+        assertEquals(0, nodesScore.getScore(node3));
+        assertEquals(0, component2.calledWorkChunkList.size());
+    }
+
+    @Test
+    void testInvalid() throws Exception {
+        component2.reject = true;
+        CompositeScoringRule rule = createRule(CompositeScoringRule.Combination.WEIGHTED_SUM, 100);
+        DescriptorImpl descriptor = (DescriptorImpl) j.jenkins.getDescriptorOrDie(ScoringLoadBalancer.class);
+        descriptor.configure(true, true, false, 0, rule, testScoringRule);
+        p.scheduleBuild2(0);
+        for (int i = 0; i < BUILD_TIMEOUT * 10 && testScoringRule.nodesScoreList.isEmpty(); ++i) {
+            Thread.sleep(100);
+        }
+        assertFalse(testScoringRule.nodesScoreList.isEmpty());
+        // not built as all nodes are invalid.
+        assertTrue(testScoringRule.nodesScoreList.get(0).isInvalid(node1));
+        assertTrue(testScoringRule.nodesScoreList.get(0).isInvalid(node2));
+        assertTrue(testScoringRule.nodesScoreList.get(0).isInvalid(node3));
+        j.jenkins.getQueue().clear();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import static jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.JenkinsTestUtil.abortAll;
+import static jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.JenkinsTestUtil.createOnlineSlave;
+import static jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.JenkinsTestUtil.setScoringRules;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.labels.LabelExpression;
+import hudson.slaves.DumbSlave;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare.ExecutorUsage;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare.FairShare;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.fairshare.GroupBy;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.TestingScoringRule;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockFolder;
+import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ *
+ */
+@WithJenkins
+class FairShareScoringRuleJenkinsTest {
+    private static final int BUILD_TIMEOUT = 10;
+
+    private JenkinsRule j;
+
+    TestingScoringRule testScoringRule;
+
+    @BeforeEach
+    void setUp(JenkinsRule j) {
+        this.j = j;
+        testScoringRule = new TestingScoringRule();
+    }
+
+    @Test
+    void testGetShare() {
+        FairShareScoringRule rule =
+                new FairShareScoringRule(GroupBy.FOLDER, 30, 50, FairShareScoringRule.Mode.PENALIZE, 10);
+        rule.setShareList(Collections.singletonList(new FairShare(" team1 ", 60)));
+        assertEquals(60, rule.getShare("team1"));
+        assertEquals(30, rule.getShare("team2"));
+    }
+
+    @Test
+    void testGroupBy() throws Exception {
+        MockFolder folder = j.createFolder("team");
+        MockFolder subfolder = folder.createProject(MockFolder.class, "sub");
+        FreeStyleProject p1 = subfolder.createProject(FreeStyleProject.class, "p1");
+        p1.setAssignedLabel(LabelExpression.parseExpression("linux && docker"));
+        FreeStyleProject p2 = j.createFreeStyleProject();
+
+        assertEquals("team", GroupBy.FOLDER.getGroup(p1));
+        assertEquals(null, GroupBy.FOLDER.getGroup(p2));
+        assertEquals("linux&&docker", GroupBy.LABEL.getGroup(p1));
+        assertEquals(null, GroupBy.LABEL.getGroup(p2));
+    }
+
+    private DumbSlave[] runOverShare(int idlePercentToBorrow) throws Exception {
+        DumbSlave node1 = createOnlineSlave(j, "node", 2);
+        DumbSlave node2 = createOnlineSlave(j, "node", 2);
+
+        // 25% of 4 executors.
+        setScoringRules(
+                j,
+                new FairShareScoringRule(
+                        GroupBy.FOLDER, 25, idlePercentToBorrow, FairShareScoringRule.Mode.PENALIZE, 10),
+                testScoringRule);
+
+        MockFolder folder = j.createFolder("team");
+        FreeStyleProject runningProject = folder.createProject(FreeStyleProject.class, "running");
+        runningProject.setAssignedNode(node1);
+        runningProject.getBuildersList().add(new SleepBuilder(60 * 1000));
+
+        FreeStyleProject testingProject = folder.createProject(FreeStyleProject.class, "testing");
+        testingProject.setAssignedLabel(LabelExpression.parseExpression("node"));
+
+        runningProject.scheduleBuild2(0).waitForStart();
+        assertEquals(1, ExecutorUsage.get().count(node1.toComputer(), GroupBy.FOLDER, "team"));
+        assertEquals(1, ExecutorUsage.get().countBusy(node1.toComputer()));
+
+        testScoringRule.clear();
+        FreeStyleBuild b = testingProject.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+
+        abortAll(node1);
+        j.waitUntilNoActivityUpTo(BUILD_TIMEOUT * 1000);
+        assertEquals(0, ExecutorUsage.get().count(node1.toComputer(), GroupBy.FOLDER, "team"));
+        assertEquals(0, ExecutorUsage.get().countBusy(node1.toComputer()));
+        return new DumbSlave[] {node1, node2};
+    }
+
+    @Test
+    void testPenalize() throws Exception {
+        // 75% idle is not enough to borrow.
+        DumbSlave[] nodes = runOverShare(80);
+        assertEquals(-20, testScoringRule.nodesScoreList.get(0).getScore(nodes[0]));
+        assertEquals(-10, testScoringRule.nodesScoreList.get(0).getScore(nodes[1]));
+    }
+
+    @Test
+    void testBorrow() throws Exception {
+        // 75% idle is enough to borrow.
+        DumbSlave[] nodes = runOverShare(75);
+        assertEquals(0, testScoringRule.nodesScoreList.get(0).getScore(nodes[0]));
+        assertEquals(0, testScoringRule.nodesScoreList.get(0).getScore(nodes[1]));
+    }
+
+    @Test
+    void testFullyUsedNode() throws Exception {
+        DumbSlave node1 = createOnlineSlave(j, "node", 1);
+        DumbSlave node2 = createOnlineSlave(j, "node", 3);
+
+        // 25% of 4 executors. 75% idle is not enough to borrow.
+        setScoringRules(
+                j,
+                new FairShareScoringRule(GroupBy.FOLDER, 25, 80, FairShareScoringRule.Mode.PENALIZE, 10),
+                testScoringRule);
+
+        MockFolder folder = j.createFolder("team");
+        FreeStyleProject runningProject = folder.createProject(FreeStyleProject.class, "running");
+        runningProject.setAssignedNode(node1);
+        runningProject.getBuildersList().add(new SleepBuilder(60 * 1000));
+
+        FreeStyleProject testingProject = folder.createProject(FreeStyleProject.class, "testing");
+        testingProject.setAssignedLabel(LabelExpression.parseExpression("node"));
+
+        runningProject.scheduleBuild2(0).waitForStart();
+
+        // node1 is no longer a candidate, but still counted in the pool.
+        testScoringRule.clear();
+        FreeStyleBuild b = testingProject.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+        assertEquals(node2, b.getBuiltOn());
+        assertEquals(-10, testScoringRule.nodesScoreList.get(0).getScore(node2));
+
+        abortAll(node1);
+        j.waitUntilNoActivityUpTo(BUILD_TIMEOUT * 1000);
+    }
+}
@@ -26,15 +26,22 @@ package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import hudson.model.AbstractProject;
+import hudson.model.Computer;
 import hudson.model.Executor;
+import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Node;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.model.labels.LabelExpression;
 import hudson.model.listeners.RunListener;
+import hudson.slaves.AbstractCloudSlave;
 import hudson.slaves.DumbSlave;
 import hudson.slaves.RetentionStrategy;
 import java.io.File;
@@ -281,6 +288,131 @@ class NodeLoadScoringRuleJenkinsTest {
         assertEquals(-30, testScoringRule.nodesScoreList.get(2).getScore(node1));
     }
 
+    @Test
+    void testPackStrategy() throws Exception {
+        DumbSlave node1 = createOnlineSlave("node", 3);
+        DumbSlave node2 = createOnlineSlave("node", 3);
+
+        NodeLoadScoringRule rule = new NodeLoadScoringRule(10, 1, -1);
+        rule.setPlacementStrategy(NodeLoadScoringRule.PlacementStrategy.PACK);
+        setScoringRule(rule);
+
+        FreeStyleProject testingProject = j.createFreeStyleProject();
+        testingProject.setAssignedLabel(LabelExpression.parseExpression("node"));
+        FreeStyleProject node1Project = j.createFreeStyleProject();
+        node1Project.setAssignedNode(node1);
+        node1Project.getBuildersList().add(new SleepBuilder(60 * 1000));
+        node1Project.setConcurrentBuild(true);
+
+        // build on node1
+        startBuild(node1Project, BUILD_TIMEOUT);
+
+        // node1 busy 1
+        // node2 busy 0
+        testScoringRule.clear();
+        FreeStyleBuild b = testingProject.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+        assertEquals(node1, b.getBuiltOn());
+        assertEquals(1, testScoringRule.nodesScoreList.size());
+        assertEquals(10, testScoringRule.nodesScoreList.get(0).getScore(node1));
+        assertEquals(0, testScoringRule.nodesScoreList.get(0).getScore(node2));
+
+        for (Executor e : node1.toComputer().getExecutors()) {
+            if (e.isBusy()) {
+                e.interrupt(Result.ABORTED);
+            }
+        }
+
+        j.waitUntilNoActivityUpTo(BUILD_TIMEOUT * 1000);
+    }
+
+    @Test
+    void testSpreadStrategy() throws Exception {
+        DumbSlave node1 = createOnlineSlave("node", 3);
+        DumbSlave node2 = createOnlineSlave("node", 2);
+
+        NodeLoadScoringRule rule = new NodeLoadScoringRule(10, 0, 0);
+        rule.setPlacementStrategy(NodeLoadScoringRule.PlacementStrategy.SPREAD);
+        setScoringRule(rule);
+
+        FreeStyleProject testingProject = j.createFreeStyleProject();
+        testingProject.setAssignedLabel(LabelExpression.parseExpression("node"));
+
+        // node1 idle 3
+        // node2 idle 2
+        testScoringRule.clear();
+        j.assertBuildStatusSuccess(testingProject.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(1, testScoringRule.nodesScoreList.size());
+        assertEquals(30, testScoringRule.nodesScoreList.get(0).getScore(node1));
+        assertEquals(20, testScoringRule.nodesScoreList.get(0).getScore(node2));
+    }
+
+    @Test
+    void testScoreExecutors() throws Exception {
+        Node staticNode = j.createSlave();
+        Computer staticComputer = mock(Computer.class);
+        doReturn(RetentionStrategy.NOOP).when(staticComputer).getRetentionStrategy();
+
+        {
+            NodeLoadScoringRule rule = new NodeLoadScoringRule(10, 2, -1);
+            assertEquals(3 * 2 - 2, rule.scoreExecutors(staticNode, staticComputer, null, 2, 3));
+        }
+        {
+            // products of large scores never overflow int.
+            NodeLoadScoringRule rule = new NodeLoadScoringRule(1, Integer.MAX_VALUE, Integer.MAX_VALUE);
+            assertEquals(5L * Integer.MAX_VALUE, rule.scoreExecutors(staticNode, staticComputer, null, 2, 3));
+        }
+        {
+            NodeLoadScoringRule rule = new NodeLoadScoringRule(10, 0, 0);
+            rule.setPlacementStrategy(NodeLoadScoringRule.PlacementStrategy.PACK);
+            assertEquals(2, rule.scoreExecutors(staticNode, staticComputer, null, 2, 3));
+            assertEquals(0, rule.scoreExecutors(staticNode, staticComputer, null, 0, 5));
+        }
+        {
+            NodeLoadScoringRule rule = new NodeLoadScoringRule(10, 0, 0);
+            rule.setPlacementStrategy(NodeLoadScoringRule.PlacementStrategy.SPREAD);
+            assertEquals(1, rule.scoreExecutors(staticNode, staticComputer, null, 2, 3));
+            assertEquals(5, rule.scoreExecutors(staticNode, staticComputer, null, 0, 5));
+        }
+        {
+            NodeLoadScoringRule rule = new NodeLoadScoringRule(10, 0, 0);
+            rule.setPlacementStrategy(NodeLoadScoringRule.PlacementStrategy.HYBRID);
+            rule.setHybridThreshold(80);
+            // packs under the threshold.
+            assertEquals(7, rule.scoreExecutors(staticNode, staticComputer, null, 7, 3));
+            // spreads at the threshold, ranked below idle nodes.
+            assertEquals(-8, rule.scoreExecutors(staticNode, staticComputer, null, 8, 2));
+            assertEquals(0, rule.scoreExecutors(staticNode, staticComputer, null, 0, 10));
+        }
+    }
+
+    @Test
+    void testPackStrategyForCloudNodes() throws Exception {
+        Node cloudNode = mock(AbstractCloudSlave.class);
+        Computer cloudComputer = mock(Computer.class);
+        doReturn(new RetentionStrategy.Demand(0, 10)).when(cloudComputer).getRetentionStrategy();
+
+        NodeLoadScoringRule rule = new NodeLoadScoringRule(10, 0, 0);
+        rule.setPlacementStrategy(NodeLoadScoringRule.PlacementStrategy.PACK);
+
+        // busy cloud nodes are scored as static nodes.
+        assertEquals(1, rule.scoreExecutors(cloudNode, cloudComputer, null, 1, 1));
+
+        // idle for 1 minute in 10 minutes.
+        when(cloudComputer.getIdleStartMilliseconds())
+                .thenReturn(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1));
+        assertEquals(-1, rule.scoreExecutors(cloudNode, cloudComputer, null, 0, 2));
+
+        // idle for 6 minutes in 10 minutes: about to be reclaimed.
+        when(cloudComputer.getIdleStartMilliseconds())
+                .thenReturn(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(6));
+        assertEquals(-2, rule.scoreExecutors(cloudNode, cloudComputer, null, 0, 2));
+
+        // also packs under the threshold with HYBRID.
+        rule.setPlacementStrategy(NodeLoadScoringRule.PlacementStrategy.HYBRID);
+        assertEquals(-2, rule.scoreExecutors(cloudNode, cloudComputer, null, 0, 2));
+    }
+
     @Test
     void testDescriptor() {
         @SuppressWarnings("unused")
@@ -48,4 +48,25 @@ class NodeLoadScoringRuleNoJenkinsTest {
             assertEquals(-5, target.getScoreForBusyExecutor());
         }
     }
+
+    @Test
+    void testPlacementStrategy() {
+        {
+            NodeLoadScoringRule target = new NodeLoadScoringRule(10, 1, -1);
+            assertEquals(NodeLoadScoringRule.PlacementStrategy.SCORE_PER_EXECUTOR, target.getPlacementStrategy());
+            assertEquals(80, target.getHybridThreshold());
+        }
+        {
+            NodeLoadScoringRule target = new NodeLoadScoringRule(10, 1, -1);
+            target.setPlacementStrategy(NodeLoadScoringRule.PlacementStrategy.HYBRID);
+            target.setHybridThreshold(50);
+            assertEquals(NodeLoadScoringRule.PlacementStrategy.HYBRID, target.getPlacementStrategy());
+            assertEquals(50, target.getHybridThreshold());
+        }
+        {
+            NodeLoadScoringRule target = new NodeLoadScoringRule(10, 1, -1);
+            target.setPlacementStrategy(null);
+            assertEquals(NodeLoadScoringRule.PlacementStrategy.SCORE_PER_EXECUTOR, target.getPlacementStrategy());
+        }
+    }
 }
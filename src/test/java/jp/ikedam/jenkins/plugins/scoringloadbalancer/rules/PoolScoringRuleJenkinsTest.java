@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.labels.LabelExpression;
+import hudson.slaves.DumbSlave;
+import java.util.concurrent.TimeUnit;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.DescriptorImpl;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.TestingScoringRule;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ *
+ */
+@WithJenkins
+class PoolScoringRuleJenkinsTest {
+    private static final int BUILD_TIMEOUT = 10;
+
+    private JenkinsRule j;
+
+    TestingScoringRule testScoringRule;
+    DumbSlave node1;
+    DumbSlave node2;
+    DumbSlave node3;
+
+    @BeforeEach
+    void setUp(JenkinsRule j) throws Exception {
+        this.j = j;
+        testScoringRule = new TestingScoringRule();
+        // zone-a has more executors than zone-b.
+        node1 = j.createSlave("node1", "pool zone-a", null);
+        node2 = j.createSlave("node2", "pool zone-a", null);
+        node3 = j.createSlave("node3", "pool zone-b", null);
+        j.waitOnline(node1);
+        j.waitOnline(node2);
+        j.waitOnline(node3);
+        testScoringRule.scoreMap.put(node3, 10);
+    }
+
+    private void setScoringRule(ScoringRule scoringRule) {
+        DescriptorImpl descriptor = (DescriptorImpl) j.jenkins.getDescriptorOrDie(ScoringLoadBalancer.class);
+        descriptor.configure(true, true, false, 0, scoringRule, testScoringRule);
+    }
+
+    @Test
+    void testRestrict() throws Exception {
+        setScoringRule(new PoolScoringRule(
+                "zone-.*", 1, PoolScoringRule.Criterion.FREE_EXECUTORS, PoolScoringRule.Mode.RESTRICT, 10));
+
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedLabel(LabelExpression.parseExpression("pool"));
+
+        FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+        assertNotEquals(node3, b.getBuiltOn());
+        // nodes in other pools are never scored.
+        NodesScore nodesScore = testScoringRule.nodesScoreList.get(0);
+        assertFalse(nodesScore.getNodes().contains(node3));
+        assertEquals(2, nodesScore.getNodes().size());
+    }
+
+    @Test
+    void testPrefer() throws Exception {
+        setScoringRule(new PoolScoringRule(
+                "zone-.*", 1, PoolScoringRule.Criterion.FREE_EXECUTORS, PoolScoringRule.Mode.PREFER, 100));
+
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedLabel(LabelExpression.parseExpression("pool"));
+
+        FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+        assertNotEquals(node3, b.getBuiltOn());
+        NodesScore nodesScore = testScoringRule.nodesScoreList.get(0);
+        assertEquals(100, nodesScore.getScore(node1));
+        assertEquals(100, nodesScore.getScore(node2));
+        assertEquals(10, nodesScore.getScore(node3));
+    }
+
+    @Test
+    void testOnlyAvailablePoolsRanked() throws Exception {
+        setScoringRule(new PoolScoringRule(
+                "zone-.*", 1, PoolScoringRule.Criterion.FREE_EXECUTORS, PoolScoringRule.Mode.RESTRICT, 10));
+
+        // zone-a has no nodes for the project.
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedLabel(LabelExpression.parseExpression("zone-b"));
+
+        FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+        assertEquals(node3, b.getBuiltOn());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import static jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.JenkinsTestUtil.abortAll;
+import static jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.JenkinsTestUtil.setScoringRules;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.labels.LabelExpression;
+import hudson.slaves.DumbSlave;
+import java.util.concurrent.TimeUnit;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.resources.ReservationLedger;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.resources.ResourceCapacityNodeProperty;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.resources.ResourceRequirementJobProperty;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.resources.Resources;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.DummySubTask;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.JenkinsTestUtil;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.TestingScoringRule;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.SleepBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ *
+ */
+@WithJenkins
+class ResourceScoringRuleJenkinsTest {
+    private static final int BUILD_TIMEOUT = 10;
+
+    private JenkinsRule j;
+
+    TestingScoringRule testScoringRule;
+
+    @BeforeEach
+    void setUp(JenkinsRule j) {
+        this.j = j;
+        testScoringRule = new TestingScoringRule();
+    }
+
+    private DumbSlave createOnlineSlave(int memory) throws Exception {
+        return JenkinsTestUtil.createOnlineSlave(j, "node", 2, new ResourceCapacityNodeProperty(0, memory, 0));
+    }
+
+    @Test
+    void testExhausted() throws Exception {
+        DumbSlave node1 = createOnlineSlave(8192);
+        DumbSlave node2 = createOnlineSlave(8192);
+
+        setScoringRules(j, new ResourceScoringRule(10, ResourceScoringRule.FitStrategy.BEST_FIT), testScoringRule);
+
+        FreeStyleProject heavyProject = j.createFreeStyleProject();
+        heavyProject.setAssignedNode(node1);
+        heavyProject.addProperty(new ResourceRequirementJobProperty(0, 6144, 0));
+        heavyProject.getBuildersList().add(new SleepBuilder(60 * 1000));
+
+        FreeStyleProject testingProject = j.createFreeStyleProject();
+        testingProject.setAssignedLabel(LabelExpression.parseExpression("node"));
+        testingProject.addProperty(new ResourceRequirementJobProperty(0, 4096, 0));
+
+        // node1 has only 2048MB left.
+        heavyProject.scheduleBuild2(0).waitForStart();
+        assertEquals(6144, ReservationLedger.get().getReserved(node1.toComputer()).getMemory());
+
+        testScoringRule.clear();
+        FreeStyleBuild b = testingProject.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b);
+        assertEquals(node2, b.getBuiltOn());
+        // excluded before scoring.
+        assertFalse(testScoringRule.nodesScoreList.get(0).getNodes().contains(node1));
+        assertTrue(testScoringRule.nodesScoreList.get(0).getNodes().contains(node2));
+        // 50% left on node2
+        assertEquals(5, testScoringRule.nodesScoreList.get(0).getScore(node2));
+
+        abortAll(node1);
+
+        j.waitUntilNoActivityUpTo(BUILD_TIMEOUT * 1000);
+        assertEquals(0, ReservationLedger.get().getReserved(node1.toComputer()).getMemory());
+    }
+
+    @Test
+    void testAssigned() throws Exception {
+        DumbSlave node1 = createOnlineSlave(8192);
+        ReservationLedger ledger = ReservationLedger.get();
+        DummySubTask subtask = new DummySubTask("test", null, 1);
+
+        // counted until accepted.
+        ledger.assign(1, subtask, node1.toComputer(), new Resources(0, 1024, 0));
+        assertEquals(1024, ledger.getReserved(node1.toComputer()).getMemory());
+
+        // the same subtask of the same item is counted only once.
+        ledger.assign(1, subtask, node1.toComputer(), new Resources(0, 1024, 0));
+        assertEquals(1024, ledger.getReserved(node1.toComputer()).getMemory());
+        ledger.assign(2, subtask, node1.toComputer(), new Resources(0, 1024, 0));
+        assertEquals(2048, ledger.getReserved(node1.toComputer()).getMemory());
+    }
+}
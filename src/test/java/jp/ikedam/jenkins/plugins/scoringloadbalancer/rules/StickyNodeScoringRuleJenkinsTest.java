@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.rules;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Node;
+import hudson.model.labels.LabelExpression;
+import hudson.slaves.DumbSlave;
+import java.util.concurrent.TimeUnit;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.DescriptorImpl;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils.TestingScoringRule;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ *
+ */
+@WithJenkins
+class StickyNodeScoringRuleJenkinsTest {
+    private static final int BUILD_TIMEOUT = 10;
+
+    private JenkinsRule j;
+
+    TestingScoringRule testScoringRule;
+
+    @BeforeEach
+    void setUp(JenkinsRule j) {
+        this.j = j;
+        testScoringRule = new TestingScoringRule();
+    }
+
+    private void setScoringRule(ScoringRule scoringRule) {
+        DescriptorImpl descriptor = (DescriptorImpl) j.jenkins.getDescriptorOrDie(ScoringLoadBalancer.class);
+        descriptor.configure(true, true, false, 0, scoringRule, testScoringRule);
+    }
+
+    @Test
+    void testGetNodeKey() throws Exception {
+        DumbSlave node = j.createSlave("docker-java-1a2b3c", "", null);
+        StickyNodeScoringRule rule = new StickyNodeScoringRule(2, 10);
+        assertEquals("docker-java-1a2b3c", rule.getNodeKey(node));
+        rule.setIgnoredNamePattern("-[0-9a-z]+$");
+        assertEquals("docker-java", rule.getNodeKey(node));
+        rule.setIgnoredNamePattern("(");
+        assertEquals("docker-java-1a2b3c", rule.getNodeKey(node));
+    }
+
+    @Test
+    void testSticky() throws Exception {
+        for (int i = 0; i < 4; ++i) {
+            j.createOnlineSlave(LabelExpression.parseExpression("node"));
+        }
+        setScoringRule(new StickyNodeScoringRule(2, 10));
+
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedLabel(LabelExpression.parseExpression("node"));
+
+        FreeStyleBuild b1 = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b1);
+        NodesScore nodesScore = testScoringRule.nodesScoreList.get(0);
+        int first = 0;
+        int second = 0;
+        for (Node node : nodesScore.getNodes()) {
+            int score = nodesScore.getScore(node);
+            if (score == 10) {
+                ++first;
+                assertEquals(node, b1.getBuiltOn());
+            } else if (score == 5) {
+                ++second;
+            } else {
+                assertEquals(0, score);
+            }
+        }
+        assertEquals(1, first);
+        assertEquals(1, second);
+
+        testScoringRule.clear();
+        FreeStyleBuild b2 = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.SECONDS);
+        j.assertBuildStatusSuccess(b2);
+        assertEquals(b1.getBuiltOn(), b2.getBuiltOn());
+    }
+}
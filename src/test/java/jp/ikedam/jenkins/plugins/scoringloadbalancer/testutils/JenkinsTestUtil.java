@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils;
+
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.labels.LabelExpression;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.NodeProperty;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.DescriptorImpl;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Fixtures shared by tests running scoring rules in Jenkins.
+ */
+public class JenkinsTestUtil {
+    private JenkinsTestUtil() {}
+
+    /**
+     * Enables the load balancer with the scoring rules.
+     *
+     * @param j
+     * @param scoringRules
+     */
+    public static void setScoringRules(JenkinsRule j, ScoringRule... scoringRules) {
+        DescriptorImpl descriptor = (DescriptorImpl) j.jenkins.getDescriptorOrDie(ScoringLoadBalancer.class);
+        descriptor.configure(true, true, false, 0, scoringRules);
+    }
+
+    /**
+     * Creates an online node.
+     *
+     * @param j
+     * @param label labels of the node.
+     * @param executors the number of executors.
+     * @param properties properties of the node.
+     * @return the node.
+     * @throws Exception
+     */
+    public static DumbSlave createOnlineSlave(JenkinsRule j, String label, int executors, NodeProperty<?>... properties)
+            throws Exception {
+        DumbSlave slave = j.createOnlineSlave(LabelExpression.parseExpression(label));
+        slave.setNumExecutors(executors);
+        for (NodeProperty<?> property : properties) {
+            slave.getNodeProperties().add(property);
+        }
+        j.jenkins.updateNode(slave);
+        j.waitOnline(slave);
+        return slave;
+    }
+
+    /**
+     * Aborts all builds running on the node.
+     *
+     * @param node
+     */
+    public static void abortAll(Node node) {
+        Computer computer = node.toComputer();
+        if (computer == null) {
+            return;
+        }
+        for (Executor e : computer.getExecutors()) {
+            if (e.isBusy()) {
+                e.interrupt(Result.ABORTED);
+            }
+        }
+    }
+}
@@ -26,12 +26,16 @@ package jp.ikedam.jenkins.plugins.scoringloadbalancer.testutils;
 
 import hudson.model.Node;
 import hudson.model.Queue.Task;
+import hudson.model.queue.MappingWorksheet.ExecutorChunk;
 import hudson.model.queue.MappingWorksheet.Mapping;
 import hudson.model.queue.MappingWorksheet.WorkChunk;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.PendingAssignments;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore;
 import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
 
@@ -41,15 +45,55 @@ import jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule;
 public class TestingScoringRule extends ScoringRule {
     public List<WorkChunk> calledWorkChunkList = new ArrayList<WorkChunk>();
     public List<NodesScore> nodesScoreList = new ArrayList<NodesScore>();
+    // executors about to be assigned to each node when scored, as they change with subsequent assignments.
+    public List<Map<Node, Integer>> pendingExecutorsList = new ArrayList<Map<Node, Integer>>();
     public boolean result = true;
     public boolean reset = false;
     public boolean reject = false;
     public Map<Node, Integer> scoreMap = new HashMap<Node, Integer>();
+    public Set<Node> excludeSet = new HashSet<Node>();
+    public Set<Node> preferredSet = new HashSet<Node>();
     public Exception e = null;
+    public boolean orderIndependent = false;
 
     public void clear() {
         calledWorkChunkList.clear();
         nodesScoreList.clear();
+        pendingExecutorsList.clear();
+    }
+
+    /**
+     * @param task
+     * @param wc
+     * @param m
+     * @param candidates
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#filterCandidates(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore)
+     */
+    @Override
+    public synchronized void filterCandidates(Task task, WorkChunk wc, Mapping m, NodesScore candidates) {
+        for (Node node : candidates.getNodes()) {
+            if (excludeSet.contains(node)) {
+                candidates.markInvalid(node);
+            }
+        }
+    }
+
+    /**
+     * @param task
+     * @param wc
+     * @param m
+     * @param candidates
+     * @param preferred
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#addPreferredNodes(hudson.model.Queue.Task, hudson.model.queue.MappingWorksheet.WorkChunk, hudson.model.queue.MappingWorksheet.Mapping, jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringLoadBalancer.NodesScore, java.util.Set)
+     */
+    @Override
+    public synchronized void addPreferredNodes(
+            Task task, WorkChunk wc, Mapping m, NodesScore candidates, Set<Node> preferred) {
+        for (Node node : candidates.getNodes()) {
+            if (preferredSet.contains(node)) {
+                preferred.add(node);
+            }
+        }
     }
 
     /**
@@ -68,6 +112,14 @@ public class TestingScoringRule extends ScoringRule {
             throw e;
         }
         calledWorkChunkList.add(wc);
+        PendingAssignments pending = nodesScore.getPendingAssignments();
+        if (pending != null) {
+            Map<Node, Integer> pendingExecutors = new HashMap<Node, Integer>();
+            for (ExecutorChunk ec : nodesScore.getExecutorChunks()) {
+                pendingExecutors.put(ec.node, pending.getPendingExecutors(ec));
+            }
+            pendingExecutorsList.add(pendingExecutors);
+        }
         if (!reject) {
             for (Node node : nodesScore.getNodes()) {
                 if (reset) {
@@ -80,7 +132,38 @@ public class TestingScoringRule extends ScoringRule {
         } else {
             nodesScore.markAllInvalid();
         }
-        nodesScoreList.add(nodesScore);
+        nodesScoreList.add(copy(nodesScore));
         return result;
     }
+
+    /**
+     * Copies scores to refer after the decision, as {@link NodesScore} passed to rules is cleared then.
+     *
+     * @param nodesScore
+     * @return the copy.
+     */
+    private static NodesScore copy(NodesScore nodesScore) {
+        List<ExecutorChunk> executors = new ArrayList<ExecutorChunk>(nodesScore.getExecutorChunks());
+        NodesScore copy = new NodesScore(
+                executors,
+                nodesScore.getPendingAssignments(),
+                nodesScore.getQueueItem(),
+                nodesScore.getClusterSnapshot());
+        for (ExecutorChunk ec : executors) {
+            copy.addScore(ec, nodesScore.getLongScore(ec));
+            if (nodesScore.isInvalid(ec)) {
+                copy.markInvalid(ec);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return
+     * @see jp.ikedam.jenkins.plugins.scoringloadbalancer.ScoringRule#isOrderIndependent()
+     */
+    @Override
+    public boolean isOrderIndependent() {
+        return orderIndependent;
+    }
 }
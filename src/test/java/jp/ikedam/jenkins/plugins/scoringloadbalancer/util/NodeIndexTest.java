@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.labels.LabelExpression;
+import hudson.slaves.DumbSlave;
+import java.util.Arrays;
+import java.util.Collections;
+import jp.ikedam.jenkins.plugins.scoringloadbalancer.preferences.BuildPreferenceNodeProperty;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ *
+ */
+@WithJenkins
+class NodeIndexTest {
+
+    @Test
+    void testGetNodes(JenkinsRule j) throws Exception {
+        DumbSlave node1 = j.createSlave("node1", "label1 label2", null);
+        DumbSlave node2 = j.createSlave("node2", "label1", null);
+        DumbSlave node3 = j.createSlave("node3", "label3", null);
+
+        NodeIndex index = NodeIndex.get();
+        assertSame(index, NodeIndex.get());
+
+        for (String expr : new String[] {
+            "label1",
+            "label1 && label2",
+            "label1 || label3",
+            "!label1",
+            "(label1 && !label2) || node3",
+            "label1 <-> label2",
+            "label2 -> label1",
+            "nolabel",
+        }) {
+            Label l = LabelExpression.parseExpression(expr);
+            // evaluated without caching for validation.
+            assertEquals(index.getNodes(l), index.evaluate(l));
+            assertNotSame(index.evaluate(l), index.evaluate(l));
+            for (Node node : new Node[] {j.jenkins, node1, node2, node3}) {
+                int id = index.indexOf(node);
+                assertTrue(id >= 0);
+                assertEquals(l.contains(node), index.getNodes(l).get(id), expr + " for " + node.getNodeName());
+            }
+        }
+    }
+
+    @Test
+    void testGetNodeProperty(JenkinsRule j) throws Exception {
+        DumbSlave node1 = j.createSlave("node1", "label1", null);
+        node1.getNodeProperties().add(new BuildPreferenceNodeProperty(10));
+        DumbSlave node2 = j.createSlave("node2", "label1", null);
+
+        NodeIndex index = NodeIndex.get();
+        assertEquals(
+                10,
+                index.getNodeProperty(index.indexOf(node1), BuildPreferenceNodeProperty.class)
+                        .getPreference());
+        assertNull(index.getNodeProperty(index.indexOf(node2), BuildPreferenceNodeProperty.class));
+
+        int[] table = index.getTable("test", i -> new int[i.getNodes().size()]);
+        assertSame(table, index.getTable("test", i -> new int[0]));
+    }
+
+    @Test
+    void testFindLabels(JenkinsRule j) throws Exception {
+        j.createSlave("node1", "label1 label2", null);
+        j.createSlave("node2", "label2", null);
+        j.createSlave("node3", "label2 other", null);
+
+        NodeIndex index = NodeIndex.get();
+        assertEquals(3, index.getLabelUsage("label2"));
+        assertEquals(1, index.getLabelUsage("label1"));
+        assertEquals(0, index.getLabelUsage("nolabel"));
+
+        // more used labels come first, and then in alphabetical order.
+        assertEquals(Arrays.asList("label2", "label1"), index.findLabels("label", 10));
+        assertEquals(Arrays.asList("node1", "node2", "node3"), index.findLabels("node", 10));
+        assertEquals(Arrays.asList("label2"), index.findLabels("l", 1));
+        assertEquals(Arrays.asList("other"), index.findLabels("o", 10));
+        assertEquals(Collections.emptyList(), index.findLabels("x", 10));
+        assertEquals(Collections.emptyList(), index.findLabels("zzz", 10));
+    }
+
+    @Test
+    void testInvalidate(JenkinsRule j) throws Exception {
+        NodeIndex index = NodeIndex.get();
+        DumbSlave node1 = j.createSlave("node1", "label1", null);
+
+        assertEquals(-1, index.indexOf(node1));
+
+        NodeIndex newIndex = NodeIndex.get();
+        assertNotSame(index, newIndex);
+        assertTrue(newIndex.getNodes(LabelExpression.parseExpression("label1")).get(newIndex.indexOf(node1)));
+    }
+
+    @Test
+    void testUpdate(JenkinsRule j) throws Exception {
+        Label label1 = LabelExpression.parseExpression("label1");
+        Label label2 = LabelExpression.parseExpression("label2");
+        DumbSlave node1 = j.createSlave("node1", "label1", null);
+        node1.getNodeProperties().add(new BuildPreferenceNodeProperty(10));
+
+        NodeIndex index = NodeIndex.get();
+        int id1 = index.indexOf(node1);
+        assertTrue(id1 >= 0);
+        assertTrue(index.getNodes(label1).get(id1));
+        assertEquals(10, index.getNodeProperty(id1, BuildPreferenceNodeProperty.class).getPreference());
+
+        // added nodes are patched in.
+        DumbSlave node2 = j.createSlave("node2", "label1 label2", null);
+        index = NodeIndex.get();
+        int id2 = index.indexOf(node2);
+        assertEquals(id1, index.indexOf(node1));
+        assertTrue(id2 >= 0);
+        assertTrue(index.getNodes(label1).get(id2));
+        assertEquals(2, index.getLabelUsage("label1"));
+        assertEquals(Arrays.asList("label1", "label2"), index.findLabels("label", 10));
+
+        // labels changed in place are patched.
+        node1.setLabelString("label2");
+        j.jenkins.updateNode(node1);
+        index = NodeIndex.get();
+        assertEquals(id1, index.indexOf(node1));
+        assertFalse(index.getNodes(label1).get(id1));
+        assertTrue(index.getNodes(label2).get(id1));
+        assertEquals(1, index.getLabelUsage("label1"));
+        assertEquals(2, index.getLabelUsage("label2"));
+        assertEquals(Arrays.asList("label2", "label1"), index.findLabels("label", 10));
+        assertEquals(10, index.getNodeProperty(id1, BuildPreferenceNodeProperty.class).getPreference());
+
+        // removed nodes are patched out.
+        j.jenkins.removeNode(node2);
+        index = NodeIndex.get();
+        assertEquals(-1, index.indexOf(node2));
+        assertEquals(0, index.getLabelUsage("label1"));
+        assertEquals(Arrays.asList("label2"), index.findLabels("label", 10));
+        assertTrue(index.getNodes(LabelExpression.parseExpression("!label2")).get(index.indexOf(j.jenkins)));
+        assertFalse(index.getNodes(LabelExpression.parseExpression("!label2")).get(id1));
+
+        // the same as the rebuilt index.
+        NodeIndex.invalidate();
+        NodeIndex rebuilt = NodeIndex.get();
+        assertNotSame(index, rebuilt);
+        assertEquals(rebuilt.getNodes(label2), index.getNodes(label2));
+        assertEquals(rebuilt.findLabels("", 100), index.findLabels("", 100));
+    }
+
+    @Test
+    void testStableIds(JenkinsRule j) throws Exception {
+        DumbSlave node1 = j.createSlave("node1", "label1", null);
+        DumbSlave node2 = j.createSlave("node2", "label1", null);
+
+        NodeIndex index = NodeIndex.get();
+        int id1 = index.indexOf(node1);
+        assertTrue(id1 >= 0);
+
+        // ids are kept when the index is rebuilt.
+        j.jenkins.removeNode(node2);
+        NodeIndex newIndex = NodeIndex.get();
+        assertNotSame(index, newIndex);
+        assertEquals(id1, newIndex.indexOf(node1));
+        assertEquals(-1, newIndex.indexOf(node2));
+        assertTrue(newIndex.getNodes(LabelExpression.parseExpression("label1")).get(id1));
+        assertEquals(1, newIndex.getLabelUsage("label1"));
+    }
+}
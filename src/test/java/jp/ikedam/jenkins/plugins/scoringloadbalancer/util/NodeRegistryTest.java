@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class NodeRegistryTest {
+    @Test
+    void testGetId() {
+        NodeRegistry registry = NodeRegistry.get();
+        int id1 = registry.getId("NodeRegistryTest-node1");
+        int id2 = registry.getId("NodeRegistryTest-node2");
+
+        assertTrue(id1 >= 0);
+        assertTrue(id2 >= 0);
+        assertNotEquals(id1, id2);
+        assertEquals(id1, registry.getId("NodeRegistryTest-node1"));
+        assertEquals(id1, registry.lookup("NodeRegistryTest-node1"));
+        assertEquals(-1, registry.lookup("NodeRegistryTest-unregistered"));
+        assertTrue(registry.size() > Math.max(id1, id2));
+    }
+
+    @Test
+    void testRelease() {
+        NodeRegistry registry = NodeRegistry.get();
+        int id = registry.getId("NodeRegistryTest-removed");
+        int generation = registry.getGeneration(id);
+
+        registry.release("NodeRegistryTest-removed");
+        assertEquals(-1, registry.lookup("NodeRegistryTest-removed"));
+        assertEquals(generation + 1, registry.getGeneration(id));
+
+        // released ids are reused instead of growing tables.
+        int size = registry.size();
+        registry.getId("NodeRegistryTest-added");
+        assertEquals(size, registry.size());
+
+        // releasing unregistered names does nothing.
+        registry.release("NodeRegistryTest-unregistered");
+        assertEquals(generation + 1, registry.getGeneration(id));
+    }
+}
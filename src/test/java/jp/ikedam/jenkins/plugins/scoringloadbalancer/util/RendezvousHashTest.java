@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class RendezvousHashTest {
+    private static String top(String key, List<String> nodes) {
+        long keyHash = RendezvousHash.hash(key);
+        String top = null;
+        long topWeight = Long.MIN_VALUE;
+        for (String node : nodes) {
+            long weight = RendezvousHash.weight(keyHash, RendezvousHash.hash(node));
+            if (top == null || weight > topWeight) {
+                top = node;
+                topWeight = weight;
+            }
+        }
+        return top;
+    }
+
+    @Test
+    void testHash() {
+        assertEquals(RendezvousHash.hash("node1"), RendezvousHash.hash("node1"));
+        assertNotEquals(RendezvousHash.hash("node1"), RendezvousHash.hash("node2"));
+        assertNotEquals(RendezvousHash.hash(""), RendezvousHash.hash("\u0000"));
+    }
+
+    @Test
+    void testChurn() {
+        List<String> nodes = new ArrayList<String>();
+        for (int i = 0; i < 10; ++i) {
+            nodes.add(String.format("node%d", i));
+        }
+        List<String> removed = new ArrayList<String>(nodes);
+        removed.remove("node3");
+
+        int moved = 0;
+        for (int i = 0; i < 1000; ++i) {
+            String key = String.format("folder/project%d", i);
+            String before = top(key, nodes);
+            String after = top(key, removed);
+            if (!before.equals(after)) {
+                // only keys on the removed node move.
+                assertEquals("node3", before);
+                ++moved;
+            }
+        }
+        // roughly 1/10 of keys.
+        assertTrue(moved > 50 && moved < 150, String.format("%d keys moved", moved));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class ScoreMathTest {
+    @Test
+    void testAdd() {
+        assertEquals(3L, ScoreMath.add(1, 2));
+        assertEquals(-1L, ScoreMath.add(Long.MAX_VALUE, Long.MIN_VALUE));
+        assertEquals(Long.MAX_VALUE, ScoreMath.add(Long.MAX_VALUE, 1));
+        assertEquals(Long.MAX_VALUE, ScoreMath.add(Long.MAX_VALUE, Long.MAX_VALUE));
+        assertEquals(Long.MIN_VALUE, ScoreMath.add(Long.MIN_VALUE, -1));
+        assertEquals(Long.MIN_VALUE, ScoreMath.add(Long.MIN_VALUE, Long.MIN_VALUE));
+    }
+
+    @Test
+    void testMultiply() {
+        assertEquals(-6L, ScoreMath.multiply(2, -3));
+        assertEquals(
+                (long) Integer.MAX_VALUE * Integer.MAX_VALUE, ScoreMath.multiply(Integer.MAX_VALUE, Integer.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, ScoreMath.multiply(Long.MAX_VALUE, 2));
+        assertEquals(Long.MAX_VALUE, ScoreMath.multiply(Long.MIN_VALUE, -1));
+        assertEquals(Long.MIN_VALUE, ScoreMath.multiply(Long.MAX_VALUE, -2));
+        assertEquals(Long.MIN_VALUE, ScoreMath.multiply(Long.MIN_VALUE, 1));
+        assertEquals(0L, ScoreMath.multiply(Long.MIN_VALUE, 0));
+    }
+
+    @Test
+    void testToInt() {
+        assertEquals(-5, ScoreMath.toInt(-5L));
+        assertEquals(Integer.MAX_VALUE, ScoreMath.toInt(Integer.MAX_VALUE + 1L));
+        assertEquals(Integer.MIN_VALUE, ScoreMath.toInt(Integer.MIN_VALUE - 1L));
+    }
+}
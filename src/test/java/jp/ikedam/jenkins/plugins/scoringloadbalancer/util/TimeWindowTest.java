@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013 IKEDA Yasuyuki
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jp.ikedam.jenkins.plugins.scoringloadbalancer.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.util.FormValidation;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+class TimeWindowTest {
+    private static Calendar at(int year, int month, int day, int hour, int minute) {
+        return new GregorianCalendar(year, month, day, hour, minute);
+    }
+
+    @Test
+    void testIsActive() {
+        // working hours in weekdays
+        TimeWindow target = TimeWindow.compile("* 9-17 * * 1-5");
+
+        // 2024-01-15 is Monday
+        assertFalse(target.isActive(at(2024, Calendar.JANUARY, 15, 8, 59)));
+        assertTrue(target.isActive(at(2024, Calendar.JANUARY, 15, 9, 0)));
+        assertTrue(target.isActive(at(2024, Calendar.JANUARY, 15, 17, 59)));
+        assertFalse(target.isActive(at(2024, Calendar.JANUARY, 15, 18, 0)));
+
+        // recomputed for another day (Sunday)
+        assertFalse(target.isActive(at(2024, Calendar.JANUARY, 14, 10, 0)));
+        assertTrue(target.isActive(at(2024, Calendar.JANUARY, 16, 10, 0)));
+    }
+
+    @Test
+    void testMultipleLines() {
+        TimeWindow target = TimeWindow.compile("* 0-5 * * *\n* 22-23 * * *");
+        assertTrue(target.isActive(at(2024, Calendar.JANUARY, 15, 1, 0)));
+        assertFalse(target.isActive(at(2024, Calendar.JANUARY, 15, 12, 0)));
+        assertTrue(target.isActive(at(2024, Calendar.JANUARY, 15, 23, 30)));
+    }
+
+    @Test
+    void testCompile() {
+        assertNull(TimeWindow.compile(null));
+        assertNull(TimeWindow.compile("  "));
+
+        // invalid windows are never active.
+        TimeWindow invalid = TimeWindow.compile("invalid");
+        assertFalse(invalid.isActive(at(2024, Calendar.JANUARY, 15, 12, 0)));
+    }
+
+    @Test
+    void testDoCheck() {
+        assertEquals(FormValidation.Kind.OK, TimeWindow.doCheck(null).kind);
+        assertEquals(FormValidation.Kind.OK, TimeWindow.doCheck("").kind);
+        assertEquals(FormValidation.Kind.OK, TimeWindow.doCheck("* 9-17 * * 1-5").kind);
+        assertEquals(FormValidation.Kind.ERROR, TimeWindow.doCheck("invalid").kind);
+    }
+}
@@ -125,4 +125,15 @@ class ValidationUtilTest {
             assertEquals(FormValidation.Kind.ERROR, v.kind);
         }
     }
+
+    @Test
+    void testDoCheckPercentage() {
+        assertEquals(FormValidation.Kind.OK, ValidationUtil.doCheckPercentage("0").kind);
+        assertEquals(FormValidation.Kind.OK, ValidationUtil.doCheckPercentage(" 50 ").kind);
+        assertEquals(FormValidation.Kind.OK, ValidationUtil.doCheckPercentage("100").kind);
+        assertEquals(FormValidation.Kind.ERROR, ValidationUtil.doCheckPercentage("-1").kind);
+        assertEquals(FormValidation.Kind.ERROR, ValidationUtil.doCheckPercentage("101").kind);
+        assertEquals(FormValidation.Kind.ERROR, ValidationUtil.doCheckPercentage("").kind);
+        assertEquals(FormValidation.Kind.ERROR, ValidationUtil.doCheckPercentage("1.5").kind);
+    }
 }